@@ -0,0 +1,86 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Decoding and encoding of the API bodies in isolation, without any I/O
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+	private ObjectMapper mapper;
+	private SessionParser parser;
+	private byte[] sessionJson;
+	private byte[] payloadJson;
+	private byte[] controlMessageJson;
+	private Map<String, Object> startParams;
+	private ChoiceViewSession.Property property;
+
+	@Setup
+	public void setUp() throws IOException {
+		mapper = new ObjectMapper();
+		parser = new SessionParser(mapper.getJsonFactory());
+		String sessionUri = "http://localhost:8080/ivr/api/session/" + StubSwitch.SessionId;
+		sessionJson = Responses.session(sessionUri).getBytes("UTF-8");
+		payloadJson = Responses.payload(sessionUri).getBytes("UTF-8");
+		controlMessageJson = Responses.ControlMessage.getBytes("UTF-8");
+
+		startParams = new HashMap<String, Object>();
+		startParams.put("callerId", "7202950840");
+		startParams.put("callId", "12345");
+		startParams.put("stateChangeUri", "http://ivr.example.com/1001/state_change");
+		startParams.put("newMessageUri", "http://ivr.example.com/1001/new_message");
+		startParams.put("notificationType", "basic");
+		property = new ChoiceViewSession.Property("AccountNumber", "12345678");
+	}
+
+	@Benchmark
+	public ChoiceViewSession.Session readSession() throws IOException {
+		return parser.readSession(new ByteArrayInputStream(sessionJson));
+	}
+
+	// The data binding decode the parser replaced, for comparison
+	@Benchmark
+	public ChoiceViewSession.Session readSessionDataBinding() throws IOException {
+		return mapper.readValue(new ByteArrayInputStream(sessionJson), ChoiceViewSession.Session.class);
+	}
+
+	@Benchmark
+	public ChoiceViewSession.Payload readPayload() throws IOException {
+		return parser.readPayload(new ByteArrayInputStream(payloadJson));
+	}
+
+	@Benchmark
+	public Map<String, String> readControlMessage() throws IOException {
+		return parser.readControlMessage(new ByteArrayInputStream(controlMessageJson));
+	}
+
+	@Benchmark
+	public String writeStartSession() throws IOException {
+		return mapper.writeValueAsString(startParams);
+	}
+
+	@Benchmark
+	public String writeProperty() throws IOException {
+		return mapper.writeValueAsString(property);
+	}
+}
@@ -0,0 +1,29 @@
+package com.radishsystems.choiceview.webapi;
+
+// Response bodies shaped like the ones the Switch returns
+final class Responses {
+
+	final static String ControlMessage = "{\"MenuNumber\":\"1\",\"MenuName\":\"Radish_Main_Menu\"," +
+			"\"ButtonNumber\":\"0\",\"ButtonName\":\"ChoiceView+Demo\"}";
+
+	private Responses() {}
+
+	static String session(String sessionUri) {
+		return "{\"sessionId\":" + StubSwitch.SessionId + ",\"callerId\":\"7202950840\",\"callId\":\"12345\"," +
+				"\"status\":\"connected\",\"networkQuality\":\"excellent\",\"networkType\":\"WiFi\"," +
+				"\"properties\":{\"ClientType\":\"Android\",\"ClientVersion\":\"2.4.1\"," +
+				"\"Language\":\"en-US\",\"TimeZone\":\"America/Denver\"}," +
+				"\"links\":[{\"rel\":\"self\",\"href\":\"" + sessionUri + "\"}," +
+				"{\"rel\":\"/rels/statenotification\",\"href\":\"http://ivr.example.com/1001/state_change\"}," +
+				"{\"rel\":\"/rels/messagenotification\",\"href\":\"http://ivr.example.com/1001/new_message\"}," +
+				"{\"rel\":\"/rels/controlmessage\",\"href\":\"" + sessionUri + "/controlmessage\"}," +
+				"{\"rel\":\"/rels/properties\",\"href\":\"" + sessionUri + "/properties\"}]}";
+	}
+
+	static String payload(String sessionUri) {
+		return "{\"properties\":{\"ClientType\":\"Android\",\"ClientVersion\":\"2.4.1\"," +
+				"\"Language\":\"en-US\",\"TimeZone\":\"America/Denver\",\"AccountNumber\":\"12345678\"}," +
+				"\"links\":[{\"rel\":\"self\",\"href\":\"" + sessionUri + "/properties\"}," +
+				"{\"rel\":\"/rels/session\",\"href\":\"" + sessionUri + "\"}]}";
+	}
+}
@@ -0,0 +1,115 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Session API calls against the in-process stub Switch, measured end to end
+// through the pooled HttpClient.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SessionBenchmark {
+
+	private StubSwitch stub;
+	private ChoiceViewClient client;
+
+	@Setup(Level.Trial)
+	public void startSwitch() throws Exception {
+		stub = new StubSwitch();
+		stub.start();
+		client = new ChoiceViewClient(stub.getAddress().getHostName(), stub.getAddress().getPort(), false);
+	}
+
+	@TearDown(Level.Trial)
+	public void stopSwitch() throws Exception {
+		client.close();
+		stub.stop();
+	}
+
+	// A connected session for each benchmark thread
+	@State(Scope.Thread)
+	public static class Call {
+		ChoiceViewSession session;
+		final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+		@Setup(Level.Trial)
+		public void start(SessionBenchmark benchmark) throws IOException {
+			session = benchmark.client.createSession();
+			if(!session.startSession("7202950840", "12345")) {
+				throw new IllegalStateException("Stub Switch did not start the session.");
+			}
+			properties.put("AccountNumber", "12345678");
+			properties.put("ReasonForCall", "Billing");
+			properties.put("Queue", "Support");
+		}
+	}
+
+	// A session for each benchmark thread that is started and ended by the benchmark
+	@State(Scope.Thread)
+	public static class IdleCall {
+		ChoiceViewSession session;
+
+		@Setup(Level.Trial)
+		public void create(SessionBenchmark benchmark) {
+			session = benchmark.client.createSession();
+		}
+	}
+
+	@Benchmark
+	public boolean startSession(IdleCall call) throws IOException {
+		return call.session.startSession("7202950840", "12345") & call.session.endSession();
+	}
+
+	@Benchmark
+	public boolean sendUrl(Call call) throws IOException {
+		return call.session.sendUrl("http://www.radishsystems.com/");
+	}
+
+	@Benchmark
+	public boolean sendText(Call call) throws IOException {
+		return call.session.sendText("How may I help you?");
+	}
+
+	@Benchmark
+	public boolean addProperties(Call call) throws IOException {
+		return call.session.addProperties(call.properties);
+	}
+
+	// Always downloads and parses the session
+	@Benchmark
+	public boolean updateSession(Call call) throws IOException {
+		call.session.forgetValidators();
+		return call.session.updateSession();
+	}
+
+	// The stub answers 304 to the conditional GET
+	@Benchmark
+	public boolean updateSessionNotModified(Call call) throws IOException {
+		return call.session.updateSession();
+	}
+
+	@Benchmark
+	public Map<String, String> getControlMessage(Call call) throws IOException {
+		return call.session.getControlMessage();
+	}
+}
@@ -0,0 +1,85 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+
+// In-process Switch that answers every API call with canned responses, so the
+// benchmarks measure the client request path rather than a real server.
+final class StubSwitch {
+
+	final static int SessionId = 1001;
+	final static String ETag = "\"session-1\"";
+
+	private final LocalTestServer server = new LocalTestServer(null, null);
+	private byte[] sessionJson;
+	private byte[] payloadJson;
+	private byte[] controlMessageJson;
+
+	private final HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			consume(request);
+			response.setStatusCode(201);
+			response.setEntity(new ByteArrayEntity(sessionJson, ContentType.APPLICATION_JSON));
+		}
+	};
+
+	private final HttpRequestHandler sessionHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			consume(request);
+			String method = request.getRequestLine().getMethod();
+			String uri = request.getRequestLine().getUri();
+			response.setStatusCode(200);
+			if(!method.equals("GET")) {
+				return;
+			}
+			if(uri.endsWith("/controlmessage")) {
+				response.setEntity(new ByteArrayEntity(controlMessageJson, ContentType.APPLICATION_JSON));
+			} else if(uri.endsWith("/properties")) {
+				response.setEntity(new ByteArrayEntity(payloadJson, ContentType.APPLICATION_JSON));
+			} else if(request.containsHeader("If-None-Match")) {
+				// The stub session never changes
+				response.setHeader("ETag", ETag);
+				response.setStatusCode(304);
+			} else {
+				response.setHeader("ETag", ETag);
+				response.setEntity(new ByteArrayEntity(sessionJson, ContentType.APPLICATION_JSON));
+			}
+		}
+	};
+
+	void start() throws Exception {
+		server.register("/ivr/api/sessions", sessionsHandler);
+		server.register("/ivr/api/session/*", sessionHandler);
+		server.start();
+		String base = "http://" + getAddress().getHostName() + ":" + getAddress().getPort() +
+				"/ivr/api/session/" + SessionId;
+		sessionJson = Responses.session(base).getBytes("UTF-8");
+		payloadJson = Responses.payload(base).getBytes("UTF-8");
+		controlMessageJson = Responses.ControlMessage.getBytes("UTF-8");
+	}
+
+	void stop() throws Exception {
+		server.stop();
+	}
+
+	InetSocketAddress getAddress() { return server.getServiceAddress(); }
+
+	private static void consume(HttpRequest request) throws IOException {
+		if(request instanceof HttpEntityEnclosingRequest) {
+			EntityUtils.consume(((HttpEntityEnclosingRequest) request).getEntity());
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a SessionBatch for each of its sessions, in the order the
+ * sessions were given to the batch.
+ */
+public class BatchResult {
+
+	public enum Outcome {
+		// The Switch ended or transferred the session
+		SUCCEEDED,
+		// The session was not connected, or the Switch refused the request
+		REJECTED,
+		// The request failed or timed out, see getError
+		FAILED,
+		// The deadline passed before the request could be sent
+		SKIPPED
+	}
+
+	private final Map<ChoiceViewSession, Outcome> outcomes;
+	private final Map<ChoiceViewSession, Throwable> errors;
+
+	BatchResult(Map<ChoiceViewSession, Outcome> outcomes, Map<ChoiceViewSession, Throwable> errors) {
+		this.outcomes = Collections.unmodifiableMap(outcomes);
+		this.errors = errors;
+	}
+
+	public Map<ChoiceViewSession, Outcome> getOutcomes() { return outcomes; }
+	public Outcome getOutcome(ChoiceViewSession session) { return outcomes.get(session); }
+
+	// Null unless the outcome of the session is FAILED
+	public Throwable getError(ChoiceViewSession session) { return errors.get(session); }
+
+	public List<ChoiceViewSession> getSessions(Outcome outcome) {
+		List<ChoiceViewSession> sessions = new ArrayList<ChoiceViewSession>();
+		for(Map.Entry<ChoiceViewSession, Outcome> entry : outcomes.entrySet()) {
+			if(entry.getValue() == outcome) {
+				sessions.add(entry.getKey());
+			}
+		}
+		return sessions;
+	}
+
+	public int getCount(Outcome outcome) {
+		int count = 0;
+		for(Outcome o : outcomes.values()) {
+			if(o == outcome) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public boolean isSuccessful() { return getCount(Outcome.SUCCEEDED) == outcomes.size(); }
+
+	@Override
+	public String toString() {
+		return "BatchResult[succeeded=" + getCount(Outcome.SUCCEEDED) + ", rejected=" + getCount(Outcome.REJECTED) +
+				", failed=" + getCount(Outcome.FAILED) + ", skipped=" + getCount(Outcome.SKIPPED) + "]";
+	}
+}
@@ -0,0 +1,1415 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolException;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.AuthState;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.ClientParamsStack;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.EntityEnclosingRequestWrapper;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Connection pool, credentials and JSON mapper shared by every session
+ * created for one Switch. Instances are thread-safe and should live as long
+ * as the application; call {@link #close()} to release the pooled connections.
+ */
+public class ChoiceViewClient implements Closeable {
+
+	final static int DefaultMaxConnections = 200;
+	final static int DefaultMaxConnectionsPerRoute = 100;
+	// Every caller parked in startSession holds a connection until the app starts
+	final static int DefaultVirtualThreadMaxConnections = 2000;
+	final static Duration DefaultConnectTimeout = Duration.ofSeconds(10);
+	// The System.nanoTime at which the deadline of a request expires
+	final static String DeadlineParameter = "com.radishsystems.choiceview.deadline";
+	final static Duration DefaultSocketTimeout = Duration.ofSeconds(30);
+	final static Duration DefaultConnectionRequestTimeout = Duration.ofSeconds(30);
+	// The Switch answers startSession when the caller starts the app, or after two minutes
+	final static Duration DefaultStartSessionTimeout = Duration.ofSeconds(150);
+	final static int DefaultCircuitBreakerThreshold = 10;
+	final static Duration DefaultCircuitBreakerOpenDuration = Duration.ofSeconds(30);
+	final static Duration DefaultHealthCheckInterval = Duration.ofSeconds(10);
+
+	static boolean isSuccessful(HttpResponse response) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		return (statusCode > 199 && statusCode < 300);
+	}
+	
+	final ResponseHandler<ChoiceViewSession.Session> sessionHandler = new ResponseHandler<ChoiceViewSession.Session>() {
+		public ChoiceViewSession.Session handleResponse(HttpResponse response) 
+				throws ClientProtocolException, IOException {
+			if(isSuccessful(response)) {
+				HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					try {
+						ChoiceViewSession.Session session = parser.readSession(entity.getContent());
+						if(session != null) {
+							session.etag = headerValue(response, HttpHeaders.ETAG);
+							session.lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+						}
+						return session;
+					}
+					finally {
+						entity.getContent().close();
+					}
+				}
+			} else {
+				printErrorResponse(response);
+			}
+			return null;
+		}
+	};
+	// Only a 404 tells that the session is gone. Other errors, such as a 503 that is left
+	// after the retries or an answer without a session, say nothing about the session and
+	// are thrown instead.
+	final ResponseHandler<ChoiceViewSession.Session> updateHandler = new ResponseHandler<ChoiceViewSession.Session>() {
+		public ChoiceViewSession.Session handleResponse(HttpResponse response)
+				throws ClientProtocolException, IOException {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if(statusCode == HttpStatus.SC_NOT_FOUND) {
+				EntityUtils.consume(response.getEntity());
+				return null;
+			}
+			if(!isSuccessful(response)) {
+				printErrorResponse(response);
+				throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+			}
+			ChoiceViewSession.Session session = sessionHandler.handleResponse(response);
+			if(session == null) {
+				throw new ClientProtocolException("No session in the response.");
+			}
+			return session;
+		}
+	};
+	final ResponseHandler<ChoiceViewSession.ControlMessage> controlMessageHandler = new ResponseHandler<ChoiceViewSession.ControlMessage>() {
+		public ChoiceViewSession.ControlMessage handleResponse(HttpResponse response) 
+				throws ClientProtocolException, IOException {
+			if(isSuccessful(response)) {
+				HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					try {
+						Map<String, String> fields = parser.readControlMessage(entity.getContent());
+						return fields != null ? new ChoiceViewSession.ControlMessage(fields,
+								headerValue(response, HttpHeaders.ETAG)) : null;
+					}
+					finally {
+						entity.getContent().close();
+					}
+				}
+			} else {
+				printErrorResponse(response);
+			}
+			return null;
+		}
+	};
+	final ResponseHandler<ChoiceViewSession.Payload> payloadHandler = new ResponseHandler<ChoiceViewSession.Payload>() {
+		public ChoiceViewSession.Payload handleResponse(HttpResponse response) 
+				throws ClientProtocolException, IOException {
+			if(isSuccessful(response)) {
+				HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					try {
+						ChoiceViewSession.Payload payload = parser.readPayload(entity.getContent());
+						if(payload != null) {
+							payload.etag = headerValue(response, HttpHeaders.ETAG);
+							payload.lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+						}
+						return payload;
+					}
+					finally {
+						entity.getContent().close();
+					}
+				}
+			} else {
+				printErrorResponse(response);
+			}
+			return null;
+		}
+	};
+	final ResponseHandler<Boolean> defaultHandler = new ResponseHandler<Boolean>() {
+		public Boolean handleResponse(HttpResponse response)
+		throws ClientProtocolException, IOException {
+			if(!isSuccessful(response)) {
+				printErrorResponse(response);
+				return false;
+			}
+			return true;
+		}
+	};
+	
+	// A 304 answer to a conditional GET keeps the cached object without reading a body
+	static <T> ResponseHandler<T> unlessNotModified(final T cached, final ResponseHandler<T> handler) {
+		return new ResponseHandler<T>() {
+			public T handleResponse(HttpResponse response)
+			throws ClientProtocolException, IOException {
+				if(cached != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+					EntityUtils.consume(response.getEntity());
+					return cached;
+				}
+				return handler.handleResponse(response);
+			}
+		};
+	}
+	
+	static void addValidators(HttpGet request, String etag, String lastModified) {
+		if(etag != null) {
+			request.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+		}
+		if(lastModified != null) {
+			request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+		}
+	}
+	
+	private static String headerValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header != null ? header.getValue() : null;
+	}
+	
+	// A conditional DELETE of the control message that fails because the message was replaced
+	// or already cleared leaves the newer message for the next get; neither is an error
+	final ResponseHandler<Boolean> consumeHandler = new ResponseHandler<Boolean>() {
+		public Boolean handleResponse(HttpResponse response)
+		throws ClientProtocolException, IOException {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if(isSuccessful(response)) {
+				EntityUtils.consume(response.getEntity());
+				return true;
+			}
+			if(statusCode == HttpStatus.SC_PRECONDITION_FAILED || statusCode == HttpStatus.SC_NOT_FOUND ||
+			   statusCode == HttpStatus.SC_NOT_MODIFIED) {
+				EntityUtils.consume(response.getEntity());
+			} else {
+				printErrorResponse(response);
+			}
+			return false;
+		}
+	};
+
+	private final List<SwitchEndpoint> endpoints;
+	private final Map<String, SwitchEndpoint> endpointsByKey;
+	private final MeteredConnectionManager connectionManager;
+	private final DefaultHttpClient client;
+	private final ObjectMapper mapper;
+	private final SessionParser parser;
+	private final AuthCache authCache;
+	// Preemptive basic authentication for transports other than the built-in one
+	private final String authorization;
+	private final Transport defaultTransport = new HttpClientTransport();
+	private volatile Transport transport = defaultTransport;
+	private int ioThreadCount;
+	private DefaultHttpAsyncClient asyncClient;
+	private ExecutionMode executionMode = ExecutionMode.NON_BLOCKING;
+	private int virtualThreadMaxConnections = DefaultVirtualThreadMaxConnections;
+	private volatile ExecutorService virtualThreadExecutor;
+	private volatile boolean pipelining = true;
+	// Hosts that do not keep connections open, so cannot be pipelined to
+	private final Set<String> sequentialHosts = ConcurrentHashMap.newKeySet();
+	private final DefaultConnectionReuseStrategy reuseStrategy = new DefaultConnectionReuseStrategy();
+	// Pipelined requests cannot wait for a 100 Continue
+	private final HttpParams pipelineParams = new BasicHttpParams()
+			.setBooleanParameter(CoreProtocolPNames.USE_EXPECT_CONTINUE, false);
+	private volatile boolean closed;
+	private Duration connectTimeout = DefaultConnectTimeout;
+	private Duration socketTimeout = DefaultSocketTimeout;
+	private Duration connectionRequestTimeout = DefaultConnectionRequestTimeout;
+	private volatile Duration startSessionTimeout = DefaultStartSessionTimeout;
+	private volatile Duration requestTimeout;
+	private ScheduledThreadPoolExecutor deadlineTimer;
+	private volatile ChoiceViewMetrics metrics = ChoiceViewMetrics.NONE;
+	private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private final List<CircuitBreakerListener> breakerListeners = new CopyOnWriteArrayList<CircuitBreakerListener>();
+	private int breakerThreshold = DefaultCircuitBreakerThreshold;
+	private Duration breakerOpenDuration = DefaultCircuitBreakerOpenDuration;
+	private volatile LoadBalancingPolicy loadBalancingPolicy = LoadBalancingPolicy.roundRobin();
+	private Duration healthCheckInterval = DefaultHealthCheckInterval;
+	private ScheduledThreadPoolExecutor healthChecker;
+
+	// New sessions are placed on the endpoints by the load balancing policy; the
+	// credentials, if any, are used for all of them
+	public ChoiceViewClient(List<SwitchEndpoint> endpoints, String username, String password) {
+		if(endpoints == null || endpoints.isEmpty()) throw new IllegalArgumentException("No Switch endpoints specified.");
+		Map<String, SwitchEndpoint> byKey = new HashMap<String, SwitchEndpoint>();
+		for(SwitchEndpoint endpoint : endpoints) {
+			if(byKey.put(endpoint.getKey(), endpoint) != null) {
+				throw new IllegalArgumentException("Duplicate Switch endpoint " + endpoint + ".");
+			}
+		}
+		this.endpoints = Collections.unmodifiableList(new ArrayList<SwitchEndpoint>(endpoints));
+		endpointsByKey = byKey;
+
+		connectionManager = new MeteredConnectionManager();
+		connectionManager.setMaxTotal(DefaultMaxConnections);
+		connectionManager.setDefaultMaxPerRoute(DefaultMaxConnectionsPerRoute);
+		client = new DefaultHttpClient(connectionManager);
+		applyTimeouts(client.getParams());
+
+		if(username != null && password != null) {
+			// Add basic authentication credentials
+			authCache = new BasicAuthCache();
+			for(SwitchEndpoint endpoint : this.endpoints) {
+				client.getCredentialsProvider().setCredentials(
+	                    new AuthScope(endpoint.getHost(), endpoint.getPort()),
+	                    new UsernamePasswordCredentials(username, password));
+	            authCache.put(new HttpHost(endpoint.getHost(), endpoint.getPort(), endpoint.isHttps() ? "https" : "http"),
+	            		      new BasicScheme());
+			}
+			authorization = "Basic " + Base64.getEncoder().encodeToString(
+					(username + ":" + password).getBytes(StandardCharsets.ISO_8859_1));
+		} else {
+			authCache = null;
+			authorization = null;
+		}
+
+		mapper = new ObjectMapper();
+		parser = new SessionParser(mapper.getJsonFactory());
+	}
+
+	public ChoiceViewClient(List<SwitchEndpoint> endpoints) {
+		this(endpoints, null, null);
+	}
+
+	ChoiceViewClient(String serverAddress, int serverPort, boolean useHttps,
+			String username, String password) {
+		this(Collections.singletonList(new SwitchEndpoint(serverAddress, serverPort, useHttps)), username, password);
+	}
+
+	// If username and password is specified, must use https
+	public ChoiceViewClient(String serverAddress, int serverPort, String username, String password) {
+		this(serverAddress, serverPort, true, username, password);
+	}
+
+	public ChoiceViewClient(String serverAddress, String username, String password) {
+		this(serverAddress, 443, username, password);
+	}
+
+	public ChoiceViewClient(String serverAddress, int serverPort, boolean useHttps) {
+		this(serverAddress, serverPort, useHttps, null, null);
+	}
+
+	public ChoiceViewClient(String serverAddress, boolean useHttps) {
+		this(serverAddress, useHttps ? 443 : 80, useHttps, null, null);
+	}
+
+	public ChoiceViewClient(String serverAddress) {
+		this(serverAddress, false);
+	}
+
+	public ChoiceViewSession createSession() {
+		if(closed) throw new IllegalStateException("Client has been closed.");
+		return new ChoiceViewSession(this);
+	}
+
+	public int getMaxConnections() { return connectionManager.getMaxTotal(); }
+	public synchronized void setMaxConnections(int max) {
+		connectionManager.setMaxTotal(max);
+		if(asyncClient != null) {
+			((PoolingClientAsyncConnectionManager) asyncClient.getConnectionManager()).setMaxTotal(max);
+		}
+	}
+
+	public int getMaxConnectionsPerRoute() { return connectionManager.getDefaultMaxPerRoute(); }
+	public synchronized void setMaxConnectionsPerRoute(int max) {
+		connectionManager.setDefaultMaxPerRoute(max);
+		if(asyncClient != null) {
+			((PoolingClientAsyncConnectionManager) asyncClient.getConnectionManager()).setDefaultMaxPerRoute(max);
+		}
+	}
+
+	// Number of I/O dispatch threads used by the asynchronous methods, 0 for one per CPU.
+	// Only takes effect if set before the first asynchronous call.
+	public synchronized int getIoThreadCount() { return ioThreadCount; }
+	public synchronized void setIoThreadCount(int count) {
+		if(count < 0) throw new IllegalArgumentException("Invalid I/O thread count.");
+		ioThreadCount = count;
+	}
+
+	// Only the asynchronous methods follow the execution mode; the blocking methods
+	// always run on the calling thread, which may itself be a virtual thread.
+	public synchronized ExecutionMode getExecutionMode() { return executionMode; }
+	public synchronized void setExecutionMode(ExecutionMode mode) {
+		if(mode == null) throw new IllegalArgumentException("No execution mode specified.");
+		if(closed) throw new IllegalStateException("Client has been closed.");
+		if(mode == executionMode) {
+			return;
+		}
+		if(mode == ExecutionMode.VIRTUAL_THREADS) {
+			virtualThreadExecutor = VirtualThreads.newExecutor();
+			raiseConnectionLimits(virtualThreadMaxConnections);
+		} else {
+			virtualThreadExecutor.shutdown();
+			virtualThreadExecutor = null;
+		}
+		executionMode = mode;
+	}
+
+	// The executor the asynchronous methods run on, null for the non-blocking client
+	ExecutorService getAsyncExecutor() { return virtualThreadExecutor; }
+
+	// The pool limits the VIRTUAL_THREADS mode raises the connection limits to, if they are lower
+	public synchronized int getVirtualThreadMaxConnections() { return virtualThreadMaxConnections; }
+	public synchronized void setVirtualThreadMaxConnections(int max) {
+		if(max < 1) throw new IllegalArgumentException("Invalid connection limit.");
+		virtualThreadMaxConnections = max;
+		if(executionMode == ExecutionMode.VIRTUAL_THREADS) {
+			raiseConnectionLimits(max);
+		}
+	}
+
+	// The connection pool, not the thread count, becomes the limit on concurrent calls
+	private synchronized void raiseConnectionLimits(int max) {
+		if(getMaxConnections() < max) {
+			setMaxConnections(max);
+		}
+		if(getMaxConnectionsPerRoute() < max) {
+			setMaxConnectionsPerRoute(max);
+		}
+	}
+
+	// Timeouts of the underlying connections; zero means no timeout
+	public synchronized Duration getConnectTimeout() { return connectTimeout; }
+	public synchronized void setConnectTimeout(Duration timeout) {
+		connectTimeout = checkTimeout(timeout);
+		timeoutsChanged();
+	}
+
+	public synchronized Duration getSocketTimeout() { return socketTimeout; }
+	public synchronized void setSocketTimeout(Duration timeout) {
+		socketTimeout = checkTimeout(timeout);
+		timeoutsChanged();
+	}
+
+	// Time to wait for a pooled connection when all of them are in use
+	public synchronized Duration getConnectionRequestTimeout() { return connectionRequestTimeout; }
+	public synchronized void setConnectionRequestTimeout(Duration timeout) {
+		connectionRequestTimeout = checkTimeout(timeout);
+		timeoutsChanged();
+	}
+
+	// Deadline for startSession, which waits for the caller to start the app
+	public Duration getStartSessionTimeout() { return startSessionTimeout; }
+	public void setStartSessionTimeout(Duration timeout) {
+		startSessionTimeout = checkTimeout(timeout);
+	}
+
+	// Deadline for every other request that is not given its own timeout, null for none
+	public Duration getRequestTimeout() { return requestTimeout; }
+	public void setRequestTimeout(Duration timeout) {
+		requestTimeout = timeout == null ? null : checkTimeout(timeout);
+	}
+
+	// Nothing is measured while the metrics are ChoiceViewMetrics.NONE, the default
+	public ChoiceViewMetrics getMetrics() { return metrics; }
+	public void setMetrics(ChoiceViewMetrics metrics) {
+		if(metrics == null) throw new IllegalArgumentException("No metrics specified, use ChoiceViewMetrics.NONE.");
+		this.metrics = metrics;
+		connectionManager.setMetrics(metrics);
+	}
+
+	// The transport the requests are sent with; null restores the built-in HttpClient 4
+	// transport. A transport given to the client is closed with the client.
+	public Transport getTransport() { return transport; }
+	public void setTransport(Transport transport) {
+		if(closed) throw new IllegalStateException("Client has been closed.");
+		this.transport = transport != null ? transport : defaultTransport;
+	}
+
+	// Sends the requests of a SessionPipeline back to back on one connection. Turned off
+	// for a Switch that closes the connection after the first response. Pipelining only
+	// applies to the built-in transport.
+	public boolean isPipelining() { return pipelining; }
+	public void setPipelining(boolean pipelining) { this.pipelining = pipelining; }
+
+	public RetryPolicy getRetryPolicy() { return retryPolicy; }
+	public void setRetryPolicy(RetryPolicy policy) {
+		if(policy == null) throw new IllegalArgumentException("No retry policy specified, use RetryPolicy.NONE.");
+		retryPolicy = policy;
+	}
+
+	// Consecutive failures that open the circuit breaker of a host, zero to never open it
+	public synchronized int getCircuitBreakerThreshold() { return breakerThreshold; }
+	public synchronized void setCircuitBreakerThreshold(int threshold) {
+		if(threshold < 0) throw new IllegalArgumentException("Invalid circuit breaker threshold.");
+		breakerThreshold = threshold;
+		breakersChanged();
+	}
+
+	// Time an open circuit breaker rejects requests before it lets a trial request through
+	public synchronized Duration getCircuitBreakerOpenDuration() { return breakerOpenDuration; }
+	public synchronized void setCircuitBreakerOpenDuration(Duration duration) {
+		breakerOpenDuration = checkTimeout(duration);
+		breakersChanged();
+	}
+
+	public void addCircuitBreakerListener(CircuitBreakerListener listener) {
+		if(listener == null) throw new IllegalArgumentException("No listener specified.");
+		breakerListeners.add(listener);
+	}
+	public void removeCircuitBreakerListener(CircuitBreakerListener listener) {
+		breakerListeners.remove(listener);
+	}
+
+	// The breakers of the hosts this client has sent requests to
+	public Collection<CircuitBreaker> getCircuitBreakers() {
+		return Collections.unmodifiableCollection(breakers.values());
+	}
+
+	private void breakersChanged() {
+		for(CircuitBreaker breaker : breakers.values()) {
+			breaker.configure(breakerThreshold, breakerOpenDuration);
+		}
+	}
+
+	private static String hostKey(URI uri) {
+		int port = uri.getPort();
+		if(port < 0) {
+			port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+		}
+		return uri.getHost() + ":" + port;
+	}
+
+	CircuitBreaker getCircuitBreaker(HttpUriRequest request) {
+		String host = hostKey(request.getURI());
+		CircuitBreaker breaker = breakers.get(host);
+		if(breaker == null) {
+			synchronized(this) {
+				breaker = breakers.get(host);
+				if(breaker == null) {
+					breaker = new CircuitBreaker(host, breakerThreshold, breakerOpenDuration, breakerListeners);
+					breakers.put(host, breaker);
+				}
+			}
+		}
+		return breaker;
+	}
+
+	public static boolean isVirtualThreadSupported() { return VirtualThreads.isSupported(); }
+
+	public boolean isClosed() { return closed; }
+
+	public void close() {
+		DefaultHttpAsyncClient async;
+		ExecutorService executor;
+		ScheduledExecutorService timer;
+		ScheduledExecutorService checker;
+		Transport other;
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			other = transport != defaultTransport ? transport : null;
+			async = asyncClient;
+			executor = virtualThreadExecutor;
+			timer = deadlineTimer;
+			checker = healthChecker;
+		}
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+		if(checker != null) {
+			checker.shutdownNow();
+		}
+		if(timer != null) {
+			timer.shutdownNow();
+		}
+		if(other != null) {
+			other.close();
+		}
+		connectionManager.shutdown();
+		if(async != null) {
+			try {
+				async.shutdown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	URI getSessionsUri() { return chooseEndpoint(null).getSessionsUri(); }
+
+	public List<SwitchEndpoint> getEndpoints() { return endpoints; }
+
+	// Null if the uri is not on one of the endpoints of this client
+	SwitchEndpoint getEndpoint(URI uri) { return endpointsByKey.get(hostKey(uri)); }
+
+	public LoadBalancingPolicy getLoadBalancingPolicy() { return loadBalancingPolicy; }
+	public void setLoadBalancingPolicy(LoadBalancingPolicy policy) {
+		if(policy == null) throw new IllegalArgumentException("No load balancing policy specified.");
+		loadBalancingPolicy = policy;
+	}
+
+	// With more than one endpoint, each is checked at this interval once sessions are
+	// being started; zero stops the checks. Only takes effect before the first check.
+	public synchronized Duration getHealthCheckInterval() { return healthCheckInterval; }
+	public synchronized void setHealthCheckInterval(Duration interval) {
+		healthCheckInterval = checkTimeout(interval);
+	}
+
+	// Marks each endpoint healthy if it answers a GET of its sessions resource within
+	// the connect timeout, with any status but 502, 503 or 504
+	public void checkHealth() {
+		for(SwitchEndpoint endpoint : endpoints) {
+			HttpGet request = new HttpGet(endpoint.getSessionsUri());
+			deadline(request, getConnectTimeout());
+			boolean healthy;
+			try {
+				healthy = !RetryPolicy.isUnavailable(transportFor(request).execute(request,
+						response -> response.getStatusLine().getStatusCode()));
+			} catch(IOException e) {
+				healthy = false;
+			} catch(RuntimeException e) {
+				request.abort();
+				healthy = false;
+			}
+			endpoint.setHealthy(healthy);
+		}
+	}
+
+	private synchronized void startHealthChecks() {
+		if(healthChecker != null || closed || healthCheckInterval.isZero()) {
+			return;
+		}
+		healthChecker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "choiceview-health");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = healthCheckInterval.toNanos();
+		healthChecker.scheduleWithFixedDelay(this::checkHealth, interval, interval, TimeUnit.NANOSECONDS);
+	}
+
+	// Skips unhealthy endpoints and those whose circuit breaker rejects requests,
+	// unless that leaves none
+	private SwitchEndpoint chooseEndpoint(SwitchEndpoint excluded) {
+		if(endpoints.size() == 1) {
+			return endpoints.get(0);
+		}
+		startHealthChecks();
+		List<SwitchEndpoint> available = new ArrayList<SwitchEndpoint>(endpoints.size());
+		for(SwitchEndpoint endpoint : endpoints) {
+			CircuitBreaker breaker = breakers.get(endpoint.getKey());
+			if(endpoint != excluded && endpoint.isHealthy() && (breaker == null || !breaker.isRejecting())) {
+				available.add(endpoint);
+			}
+		}
+		if(available.isEmpty()) {
+			available = new ArrayList<SwitchEndpoint>(endpoints);
+			available.remove(excluded);
+		}
+		return available.isEmpty() ? excluded : loadBalancingPolicy.choose(available);
+	}
+
+	// A session that could not be started on one Switch is retried on another
+	private void failover(Operation operation, HttpUriRequest request) {
+		if(operation == Operation.START_SESSION && endpoints.size() > 1 && request instanceof HttpRequestBase) {
+			SwitchEndpoint endpoint = chooseEndpoint(endpointsByKey.get(hostKey(request.getURI())));
+			((HttpRequestBase) request).setURI(endpoint.getSessionsUri());
+		}
+	}
+	
+	ObjectMapper getMapper() { return mapper; }
+
+	<T> T execute(Operation operation, HttpUriRequest request, ResponseHandler<? extends T> handler)
+			throws IOException {
+		return execute(operation, request, handler, null);
+	}
+
+	// Failed attempts are retried as the retry policy allows. The request is aborted if it
+	// has not completed when the timeout expires; a null timeout uses the request timeout
+	// of the client. The timeout covers all attempts and the waits between them.
+	<T> T execute(Operation operation, final HttpUriRequest request, ResponseHandler<? extends T> handler,
+			Duration timeout) throws IOException {
+		return execute(operation, request, handler, timeout, 1);
+	}
+
+	// Continues the attempts of a request whose first attempt was made elsewhere
+	private <T> T execute(Operation operation, final HttpUriRequest request, ResponseHandler<? extends T> handler,
+			Duration timeout, int firstAttempt) throws IOException {
+		final Duration limit = deadline(request, timeout);
+		final long start = System.nanoTime();
+		final AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> timer = limit == null ? null : schedule(() -> {
+			expired.set(true);
+			request.abort();
+		}, limit);
+		RetryPolicy retry = retryPolicy;
+		try {
+			for(int attempt = firstAttempt; ; attempt++) {
+				if(attempt > 1) {
+					failover(operation, request);
+				}
+				CircuitBreaker breaker = getCircuitBreaker(request);
+				breaker.acquire();
+				Attempt<T> current = new Attempt<T>(handler, breaker, endpointsByKey.get(breaker.getHost()),
+						retry, request.getMethod(), attempt);
+				MeteredResponseHandler<? extends T> metered = meter(operation, request, current);
+				IOException error;
+				try {
+					return transportFor(request).execute(request, metered != null ? metered : current);
+				} catch(RetryableStatusException e) {
+					error = e;
+				} catch(IOException e) {
+					if(expired.get()) {
+						current.released();
+						throw failed(metered, expiredException(limit, e));
+					}
+					error = failed(metered, asTimeout(e));
+					if(current.responded) {
+						throw error;
+					}
+					current.noResponse(e);
+					if(attempt >= retry.getMaxAttempts() || !retry.isRetriable(request.getMethod(), e)) {
+						throw error;
+					}
+				} catch(RuntimeException e)	{
+					request.abort();
+					current.released();
+					if(expired.get()) {
+						throw failed(metered, expiredException(limit, e));
+					}
+					throw failed(metered, e);
+				}
+				Duration backoff = retry.getBackoff(attempt);
+				if(limit != null && Duration.ofNanos(System.nanoTime() - start).plus(backoff).compareTo(limit) >= 0) {
+					return giveUp(error, handler);
+				}
+				try {
+					Thread.sleep(backoff.toMillis(), backoff.getNano() % 1000000);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return giveUp(error, handler);
+				}
+			}
+		} finally {
+			if(timer != null) {
+				timer.cancel(false);
+			}
+		}
+	}
+
+	<T> CompletableFuture<T> executeAsync(Operation operation, HttpUriRequest request,
+			ResponseHandler<? extends T> handler) {
+		return executeAsync(operation, request, handler, null);
+	}
+
+	<T> CompletableFuture<T> executeAsync(Operation operation, final HttpUriRequest request,
+			ResponseHandler<? extends T> handler, Duration timeout) {
+		ExecutorService executor = virtualThreadExecutor;
+		if(executor != null) {
+			return executeOn(executor, operation, request, handler, timeout);
+		}
+		final Duration limit = deadline(request, timeout);
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final AtomicReference<Future<HttpResponse>> pending = new AtomicReference<Future<HttpResponse>>();
+		final AtomicBoolean expired = new AtomicBoolean();
+		final ScheduledFuture<?> timer = limit == null ? null : schedule(() -> {
+			expired.set(true);
+			result.completeExceptionally(expiredException(limit, null));
+		}, limit);
+		result.whenComplete((value, e) -> {
+			if(timer != null) {
+				timer.cancel(false);
+			}
+			Future<HttpResponse> f = pending.get();
+			if(f != null && (result.isCancelled() || expired.get())) {
+				f.cancel(true);
+			}
+		});
+		sendAsync(operation, request, handler, retryPolicy, 1, result, pending);
+		return result;
+	}
+
+	private <T> void sendAsync(final Operation operation, final HttpUriRequest request,
+			final ResponseHandler<? extends T> handler, final RetryPolicy retry,
+			final int attempt, final CompletableFuture<T> result, final AtomicReference<Future<HttpResponse>> pending) {
+		if(result.isDone()) {
+			return;
+		}
+		if(attempt > 1) {
+			failover(operation, request);
+		}
+		CircuitBreaker breaker = getCircuitBreaker(request);
+		try {
+			breaker.acquire();
+		} catch(CircuitBreakerOpenException e) {
+			result.completeExceptionally(e);
+			return;
+		}
+		final Attempt<T> current = new Attempt<T>(handler, breaker, endpointsByKey.get(breaker.getHost()),
+				retry, request.getMethod(), attempt);
+		final MeteredResponseHandler<? extends T> metered = meter(operation, request, current);
+		final Consumer<Duration> retryLater = backoff -> {
+			try {
+				schedule(() -> sendAsync(operation, request, handler, retry, attempt + 1, result, pending), backoff);
+			} catch(RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		};
+		try {
+			pending.set(transportFor(request).execute(request, new FutureCallback<HttpResponse>() {
+				public void completed(HttpResponse response) {
+					try {
+						result.complete((metered != null ? metered : current).handleResponse(response));
+					} catch(RetryableStatusException e) {
+						Duration backoff = retry.getBackoff(attempt);
+						if(!isPastDeadline(request, backoff)) {
+							retryLater.accept(backoff);
+							return;
+						}
+						try {
+							result.complete(giveUp(e, handler));
+						} catch(Exception error) {
+							result.completeExceptionally(error);
+						}
+					} catch(Exception e) {
+						result.completeExceptionally(e);
+					}
+				}
+				public void failed(Exception e) {
+					ChoiceViewClient.failed(metered, e);
+					if(result.isDone()) {
+						current.released();
+						return;
+					}
+					IOException error = e instanceof IOException ? (IOException) e : new IOException(e);
+					current.noResponse(error);
+					if(attempt < retry.getMaxAttempts() && retry.isRetriable(request.getMethod(), error)) {
+						retryLater.accept(retry.getBackoff(attempt));
+					} else {
+						result.completeExceptionally(asTimeout(error));
+					}
+				}
+				public void cancelled() {
+					current.released();
+					ChoiceViewClient.failed(metered, new CancellationException());
+					result.cancel(false);
+				}
+			}));
+		} catch(IOException e) {
+			current.released();
+			result.completeExceptionally(e);
+		} catch(RuntimeException e) {
+			current.released();
+			result.completeExceptionally(e);
+		}
+		if(result.isDone()) {
+			Future<HttpResponse> f = pending.get();
+			if(f != null && !f.isDone()) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	// The pooling connection manager waits on a ReentrantLock rather than a monitor,
+	// so virtual threads waiting for a connection do not pin their carrier thread.
+	private <T> CompletableFuture<T> executeOn(ExecutorService executor, final Operation operation,
+			final HttpUriRequest request, final ResponseHandler<? extends T> handler, final Duration timeout) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Future<?> task;
+		try {
+			task = executor.submit(() -> {
+				try {
+					result.complete(execute(operation, request, handler, timeout));
+				} catch(Exception e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		result.whenComplete((value, e) -> {
+			if(result.isCancelled()) {
+				request.abort();
+				task.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	// A 502, 503 or 504 response that will be retried. The body is buffered, so the
+	// response can still be handled if the deadline leaves no time for the retry.
+	private static final class RetryableStatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		final transient HttpResponse response;
+		RetryableStatusException(HttpResponse response) throws IOException {
+			super("Switch unavailable (" + response.getStatusLine().getStatusCode() + ")");
+			if(response.getEntity() != null) {
+				response.setEntity(new BufferedHttpEntity(response.getEntity()));
+			}
+			this.response = response;
+		}
+	}
+
+	// A response the retries ran out of time for goes to the handler as if it were the last attempt
+	private static <T> T giveUp(IOException error, ResponseHandler<? extends T> handler) throws IOException {
+		if(error instanceof RetryableStatusException) {
+			return handler.handleResponse(((RetryableStatusException) error).response);
+		}
+		throw error;
+	}
+
+	private static boolean isPastDeadline(HttpUriRequest request, Duration backoff) {
+		Object deadline = request.getParams().getParameter(DeadlineParameter);
+		return deadline instanceof Long && System.nanoTime() + backoff.toNanos() - (Long) deadline >= 0;
+	}
+
+	// Reports the outcome of one attempt to the circuit breaker of the host, and to
+	// the endpoint if the host is one of the configured Switches
+	private static final class Attempt<T> implements ResponseHandler<T> {
+		private final ResponseHandler<? extends T> handler;
+		private final CircuitBreaker breaker;
+		private final SwitchEndpoint endpoint;
+		private final boolean retryAllowed;
+		private final String method;
+		private final RetryPolicy retry;
+		private final long start = System.nanoTime();
+		private final AtomicBoolean finished = new AtomicBoolean();
+		volatile boolean responded;
+
+		Attempt(ResponseHandler<? extends T> handler, CircuitBreaker breaker, SwitchEndpoint endpoint,
+				RetryPolicy retry, String method, int attempt) {
+			this.handler = handler;
+			this.breaker = breaker;
+			this.endpoint = endpoint;
+			this.retry = retry;
+			this.method = method;
+			retryAllowed = attempt < retry.getMaxAttempts();
+			if(endpoint != null) {
+				endpoint.requestStarted();
+			}
+		}
+
+		public T handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+			responded = true;
+			finish(true);
+			int statusCode = response.getStatusLine().getStatusCode();
+			if(RetryPolicy.isUnavailable(statusCode)) {
+				breaker.failed();
+				if(retryAllowed && retry.isRetriable(method, statusCode)) {
+					throw new RetryableStatusException(response);
+				}
+			} else {
+				breaker.succeeded();
+			}
+			return handler.handleResponse(response);
+		}
+
+		// Waiting for a pooled connection says nothing about the health of the Switch
+		void noResponse(IOException error) {
+			if(error instanceof ConnectionPoolTimeoutException) {
+				breaker.released();
+			} else {
+				breaker.failed();
+			}
+			if(endpoint != null && RetryPolicy.isConnectFailure(error)) {
+				endpoint.setHealthy(false);
+			}
+			finish(false);
+		}
+
+		// The attempt ended without telling anything about the host, e.g. it was cancelled
+		void released() {
+			breaker.released();
+			finish(false);
+		}
+
+		private void finish(boolean completed) {
+			if(endpoint == null || !finished.compareAndSet(false, true)) {
+				return;
+			}
+			if(completed) {
+				endpoint.requestCompleted(System.nanoTime() - start);
+			} else {
+				endpoint.requestFailed();
+			}
+		}
+	}
+
+	// Sends requests to one host back to back on one pooled connection (HTTP/1.1
+	// pipelining), and completes the results in the order of the requests. Each response
+	// is reported to the circuit breaker and the endpoint as in execute. Requests the
+	// Switch did not answer because it closed the connection, and those answered with a
+	// status the retry policy allows to retry, are then sent one at a time. If the
+	// connection fails after the requests were written, the unanswered ones fail with the
+	// error instead, because the Switch may have acted on them.
+	void executePipelined(List<Operation> operations, List<HttpUriRequest> requests,
+			List<CompletableFuture<Boolean>> results, Duration timeout) {
+		boolean[] retried = new boolean[requests.size()];
+		if(canPipeline(requests)) {
+			pipeline(operations, requests, results, retried, timeout);
+		}
+		for(int i = 0; i < requests.size(); i++) {
+			if(results.get(i).isDone()) {
+				continue;
+			}
+			try {
+				if(retried[i]) {
+					backOff(retryPolicy.getBackoff(1));
+				}
+				results.get(i).complete(execute(operations.get(i), requests.get(i), defaultHandler, timeout,
+						retried[i] ? 2 : 1));
+			} catch(IOException | RuntimeException e) {
+				results.get(i).completeExceptionally(e);
+			}
+		}
+	}
+
+	private static void backOff(Duration backoff) throws InterruptedIOException {
+		try {
+			Thread.sleep(backoff.toMillis(), backoff.getNano() % 1000000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry.");
+		}
+	}
+
+	private boolean canPipeline(List<HttpUriRequest> requests) {
+		if(!pipelining || requests.size() < 2 || virtualThreadExecutor != null || transport != defaultTransport) {
+			return false;
+		}
+		String host = hostKey(requests.get(0).getURI());
+		if(sequentialHosts.contains(host)) {
+			return false;
+		}
+		for(HttpUriRequest request : requests) {
+			if(!host.equals(hostKey(request.getURI()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Completes the results of the requests that are done. The rest have not been seen by
+	// the Switch, or are marked in retried.
+	private void pipeline(List<Operation> operations, List<HttpUriRequest> requests,
+			List<CompletableFuture<Boolean>> results, boolean[] retried, Duration timeout) {
+		URI uri = requests.get(0).getURI();
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		HttpHost target = new HttpHost(uri.getHost(), uri.getPort() < 0 ? (secure ? 443 : 80) : uri.getPort(),
+				uri.getScheme());
+		HttpRoute route = new HttpRoute(target, null, secure);
+		CircuitBreaker breaker = getCircuitBreaker(requests.get(0));
+		try {
+			breaker.acquire();
+		} catch(CircuitBreakerOpenException e) {
+			failAll(results, 0, e);
+			return;
+		}
+		final ManagedClientConnection connection;
+		try {
+			connection = connectionManager.requestConnection(route, null)
+					.getConnection(connectionRequestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch(ConnectionPoolTimeoutException e) {
+			breaker.released();
+			return;
+		} catch(InterruptedException e) {
+			breaker.released();
+			Thread.currentThread().interrupt();
+			failAll(results, 0, new InterruptedIOException("Interrupted while waiting for a connection."));
+			return;
+		}
+
+		Duration limit = timeout != null ? timeout : requestTimeout;
+		final AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> timer = limit == null || limit.isZero() ? null : schedule(() -> {
+			expired.set(true);
+			try {
+				connection.shutdown();
+			} catch(IOException e) {
+			}
+		}, limit);
+		SwitchEndpoint endpoint = endpointsByKey.get(breaker.getHost());
+		RetryPolicy retry = retryPolicy;
+		HttpProcessor processor = pipelineProcessor();
+		HttpContext context = pipelineContext(target, connection);
+		// One attempt per request written; the first also covers opening the connection
+		List<Attempt<Boolean>> attempts = new ArrayList<Attempt<Boolean>>();
+		List<MeteredResponseHandler<Boolean>> metered = new ArrayList<MeteredResponseHandler<Boolean>>();
+		boolean written = false;
+		boolean reusable = false;
+		int sent = 0;
+		int answered = 0;
+		HttpResponse last = null;
+		attempts.add(new Attempt<Boolean>(defaultHandler, breaker, endpoint, retry, requests.get(0).getMethod(), 1));
+		metered.add(meter(operations.get(0), requests.get(0), attempts.get(0)));
+		try {
+			if(connection.isOpen() && connection.isStale()) {
+				connection.close();
+			}
+			if(!connection.isOpen()) {
+				connection.open(route, context, client.getParams());
+			}
+			connection.setSocketTimeout(toMillis(limit != null && !limit.isZero() ? limit : getSocketTimeout()));
+			try {
+				for(int i = 0; i < requests.size(); i++) {
+					if(i > 0) {
+						attempts.add(new Attempt<Boolean>(defaultHandler, breaker, endpoint, retry,
+								requests.get(i).getMethod(), 1));
+						metered.add(meter(operations.get(i), requests.get(i), attempts.get(i)));
+					}
+					HttpRequest request = wireRequest(requests.get(i), processor, context);
+					written = true;
+					connection.sendRequestHeader(request);
+					if(request instanceof HttpEntityEnclosingRequest) {
+						connection.sendRequestEntity((HttpEntityEnclosingRequest) request);
+					}
+					sent++;
+				}
+				connection.flush();
+			} catch(IOException e) {
+				// The Switch may close the connection after the first response while the
+				// rest are still being written; its responses tell what was done
+				if(sent == 0 || expired.get()) {
+					throw e;
+				}
+			}
+			boolean open = true;
+			while(open && answered < sent) {
+				HttpResponse response;
+				do {
+					response = connection.receiveResponseHeader();
+				} while(response.getStatusLine().getStatusCode() < 200);
+				int statusCode = response.getStatusLine().getStatusCode();
+				if(statusCode != HttpStatus.SC_NO_CONTENT && statusCode != HttpStatus.SC_NOT_MODIFIED) {
+					connection.receiveResponseEntity(response);
+				}
+				context.setAttribute(ExecutionContext.HTTP_RESPONSE, response);
+				processor.process(response, context);
+				int i = answered++;
+				MeteredResponseHandler<Boolean> m = metered.get(i);
+				try {
+					results.get(i).complete(m != null ? m.handleResponse(response) : attempts.get(i).handleResponse(response));
+				} catch(RetryableStatusException e) {
+					retried[i] = true;
+				}
+				EntityUtils.consume(response.getEntity());
+				open = reuseStrategy.keepAlive(response, context);
+				last = response;
+			}
+			// Not seen by the Switch, so they are sent again
+			for(int i = answered; i < attempts.size(); i++) {
+				attempts.get(i).released();
+			}
+			if(open && answered == requests.size()) {
+				reusable = true;
+			} else if(!open && answered == 1) {
+				// Only one request per connection; later pipelines are sent one at a time
+				sequentialHosts.add(breaker.getHost());
+			}
+		} catch(IOException | HttpException | RuntimeException e) {
+			Exception error = e instanceof IOException ? asTimeout((IOException) e) :
+				e instanceof HttpException ? new ClientProtocolException(e) : e;
+			if(expired.get()) {
+				error = expiredException(limit, e);
+			}
+			// A connection that fails tells about the host once, not once per request
+			for(int i = answered; i < attempts.size(); i++) {
+				failed(metered.get(i), error);
+				if(i == answered && !expired.get() && !(e instanceof RuntimeException)) {
+					attempts.get(i).noResponse(e instanceof IOException ? (IOException) e : (IOException) error);
+				} else {
+					attempts.get(i).released();
+				}
+			}
+			if(written || expired.get()) {
+				failAll(results, answered, error);
+			}
+		} finally {
+			if(timer != null) {
+				timer.cancel(false);
+			}
+			if(reusable) {
+				connection.markReusable();
+			} else {
+				try {
+					connection.shutdown();
+				} catch(IOException e) {
+				}
+			}
+			connectionManager.releaseConnection(connection, reusable && last != null ?
+					client.getConnectionKeepAliveStrategy().getKeepAliveDuration(last, context) : 0,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// The interceptors of the client add the default, content, host, cookie and
+	// authorization headers, as they do for requests sent one at a time
+	private HttpProcessor pipelineProcessor() {
+		synchronized(client) {
+			HttpRequestInterceptor[] requestInterceptors = new HttpRequestInterceptor[client.getRequestInterceptorCount()];
+			for(int i = 0; i < requestInterceptors.length; i++) {
+				requestInterceptors[i] = client.getRequestInterceptor(i);
+			}
+			HttpResponseInterceptor[] responseInterceptors = new HttpResponseInterceptor[client.getResponseInterceptorCount()];
+			for(int i = 0; i < responseInterceptors.length; i++) {
+				responseInterceptors[i] = client.getResponseInterceptor(i);
+			}
+			return new ImmutableHttpProcessor(requestInterceptors, responseInterceptors);
+		}
+	}
+
+	// What the request director of the client puts in the context of a request
+	private HttpContext pipelineContext(HttpHost target, ManagedClientConnection connection) {
+		HttpContext context = new BasicHttpContext();
+		context.setAttribute(ClientContext.SCHEME_REGISTRY, connectionManager.getSchemeRegistry());
+		context.setAttribute(ClientContext.AUTHSCHEME_REGISTRY, client.getAuthSchemes());
+		context.setAttribute(ClientContext.COOKIESPEC_REGISTRY, client.getCookieSpecs());
+		context.setAttribute(ClientContext.COOKIE_STORE, client.getCookieStore());
+		context.setAttribute(ClientContext.CREDS_PROVIDER, client.getCredentialsProvider());
+		if(authCache != null) {
+			context.setAttribute(ClientContext.AUTH_CACHE, authCache);
+		}
+		context.setAttribute(ClientContext.TARGET_AUTH_STATE, new AuthState());
+		context.setAttribute(ClientContext.PROXY_AUTH_STATE, new AuthState());
+		context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+		context.setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+		return context;
+	}
+
+	// The request as written on the connection, with the path only in the request line
+	private HttpRequest wireRequest(HttpUriRequest request, HttpProcessor processor, HttpContext context)
+			throws IOException {
+		RequestWrapper wire;
+		try {
+			wire = request instanceof HttpEntityEnclosingRequest ?
+					new EntityEnclosingRequestWrapper((HttpEntityEnclosingRequest) request) : new RequestWrapper(request);
+			wire.setURI(URIUtils.rewriteURI(request.getURI(), null, true));
+		} catch(ProtocolException | URISyntaxException e) {
+			throw new ClientProtocolException("Invalid request: " + request.getURI(), e);
+		}
+		wire.setParams(new ClientParamsStack(null, client.getParams(), request.getParams(), pipelineParams));
+		context.setAttribute(ExecutionContext.HTTP_REQUEST, wire);
+		try {
+			processor.process(wire, context);
+		} catch(HttpException e) {
+			throw new ClientProtocolException(e);
+		}
+		return wire;
+	}
+
+	private static void failAll(List<CompletableFuture<Boolean>> results, int from, Throwable error) {
+		for(int i = from; i < results.size(); i++) {
+			results.get(i).completeExceptionally(error);
+		}
+	}
+
+	// Other transports do not know the credentials, so they get the authorization header
+	private Transport transportFor(HttpUriRequest request) {
+		Transport t = transport;
+		if(t != defaultTransport && authorization != null && !request.containsHeader(HttpHeaders.AUTHORIZATION)) {
+			request.addHeader(HttpHeaders.AUTHORIZATION, authorization);
+		}
+		return t;
+	}
+
+	// HTTP/1.1 over the pooled DefaultHttpClient, and the asynchronous client for the
+	// asynchronous methods. Both are shut down by the client itself.
+	private final class HttpClientTransport implements Transport {
+		public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+			return client.execute(request, handler, getApiContext());
+		}
+
+		public Future<HttpResponse> execute(HttpUriRequest request, FutureCallback<HttpResponse> callback)
+				throws IOException {
+			return getAsyncClient().execute(request, getApiContext(), callback);
+		}
+
+		public void close() {}
+	}
+
+	private synchronized DefaultHttpAsyncClient getAsyncClient() throws IOException {
+		if(closed) throw new IllegalStateException("Client has been closed.");
+		if(asyncClient == null) {
+			IOReactorConfig config = new IOReactorConfig();
+			if(ioThreadCount > 0) {
+				config.setIoThreadCount(ioThreadCount);
+			}
+			PoolingClientAsyncConnectionManager cm = new PoolingClientAsyncConnectionManager(
+					new DefaultConnectingIOReactor(config));
+			cm.setMaxTotal(connectionManager.getMaxTotal());
+			cm.setDefaultMaxPerRoute(connectionManager.getDefaultMaxPerRoute());
+			DefaultHttpAsyncClient async = new DefaultHttpAsyncClient(cm);
+			async.setCredentialsProvider(client.getCredentialsProvider());
+			applyTimeouts(async.getParams());
+			async.start();
+			asyncClient = async;
+		}
+		return asyncClient;
+	}
+
+	// Returns null while metrics are disabled, so the request path is unchanged
+	private <T> MeteredResponseHandler<T> meter(Operation operation, HttpUriRequest request,
+			ResponseHandler<T> handler) {
+		ChoiceViewMetrics m = metrics;
+		return m == ChoiceViewMetrics.NONE ? null : new MeteredResponseHandler<T>(m, operation, request, handler);
+	}
+
+	private static <E extends Exception> E failed(MeteredResponseHandler<?> metered, E error) {
+		if(metered != null) {
+			metered.failed(error);
+		}
+		return error;
+	}
+
+	private synchronized void timeoutsChanged() {
+		applyTimeouts(client.getParams());
+		if(asyncClient != null) {
+			applyTimeouts(asyncClient.getParams());
+		}
+	}
+
+	private synchronized void applyTimeouts(HttpParams params) {
+		HttpConnectionParams.setConnectionTimeout(params, toMillis(connectTimeout));
+		HttpConnectionParams.setSoTimeout(params, toMillis(socketTimeout));
+		params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectionRequestTimeout.toMillis());
+	}
+
+	// Returns the deadline of the request, if any. The socket timeout of the request
+	// is set to the same value, so a long wait such as startSession is not cut short.
+	private Duration deadline(HttpUriRequest request, Duration timeout) {
+		Duration limit = timeout != null ? timeout : requestTimeout;
+		if(limit == null || limit.isZero()) {
+			request.getParams().removeParameter(DeadlineParameter);
+			return null;
+		}
+		HttpConnectionParams.setSoTimeout(request.getParams(), toMillis(limit));
+		// Lets a transport that cannot abort a request in progress time it out instead
+		request.getParams().setLongParameter(DeadlineParameter, System.nanoTime() + limit.toNanos());
+		return limit;
+	}
+
+	synchronized ScheduledFuture<?> schedule(Runnable action, Duration delay) {
+		if(closed) throw new IllegalStateException("Client has been closed.");
+		if(deadlineTimer == null) {
+			deadlineTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "choiceview-deadlines");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			deadlineTimer.setRemoveOnCancelPolicy(true);
+		}
+		return deadlineTimer.schedule(action, delay.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	// Connect, pool and read timeouts of HttpClient are reported as ChoiceViewTimeoutException
+	static IOException asTimeout(IOException e) {
+		if(e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+			return new ChoiceViewTimeoutException(e.getMessage(), e);
+		}
+		return e;
+	}
+
+	static ChoiceViewTimeoutException expiredException(Duration timeout, Throwable cause) {
+		return new ChoiceViewTimeoutException("Request did not complete within " + timeout.toMillis() + " ms.", cause);
+	}
+
+	private static int toMillis(Duration timeout) {
+		long millis = timeout.toMillis();
+		return millis > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) millis;
+	}
+
+	private static Duration checkTimeout(Duration timeout) {
+		if(timeout == null || timeout.isNegative()) throw new IllegalArgumentException("Invalid timeout.");
+		return timeout;
+	}
+
+	private HttpContext getApiContext() {
+        HttpContext context = null;
+        if(authCache != null) {
+        	context = new BasicHttpContext();
+        	context.setAttribute(ClientContext.AUTH_CACHE, authCache);
+        }
+        return context;
+	}
+
+	static void printErrorResponse(HttpResponse response) {
+		System.err.println(String.format("HTTP request failed: %s (%d)",
+				response.getStatusLine().getReasonPhrase(),
+				response.getStatusLine().getStatusCode()));
+	}
+}
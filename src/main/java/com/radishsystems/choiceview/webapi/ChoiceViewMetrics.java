@@ -0,0 +1,33 @@
+package com.radishsystems.choiceview.webapi;
+
+/**
+ * Receives measurements of every API call made by a ChoiceViewClient.
+ * Implementations are called on the request threads, including the I/O
+ * threads of the asynchronous methods, so they must be thread-safe and fast.
+ * The client skips all measuring while its metrics are {@link #NONE}.
+ */
+public interface ChoiceViewMetrics {
+
+	ChoiceViewMetrics NONE = new ChoiceViewMetrics() {
+		public void requestCompleted(Operation operation, int statusCode, long latencyNanos,
+				long bytesSent, long bytesReceived) {}
+		public void requestFailed(Operation operation, Throwable error, long latencyNanos) {}
+		public void connectionLeased(long waitNanos) {}
+		public void sessionActivated() {}
+		public void sessionDeactivated() {}
+	};
+
+	// The Switch answered the request; bytes are counted for the message bodies only
+	void requestCompleted(Operation operation, int statusCode, long latencyNanos,
+			long bytesSent, long bytesReceived);
+
+	// No response was received, e.g. on a connection error or timeout
+	void requestFailed(Operation operation, Throwable error, long latencyNanos);
+
+	// Time a blocking request waited for a pooled connection
+	void connectionLeased(long waitNanos);
+
+	// A session was started, and was ended, transferred or found disconnected
+	void sessionActivated();
+	void sessionDeactivated();
+}
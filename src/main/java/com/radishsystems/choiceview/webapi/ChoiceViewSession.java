@@ -1,39 +1,33 @@
 package com.radishsystems.choiceview.webapi;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.ParseException;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.AuthCache;
+import org.apache.http.HttpHeaders;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.protocol.ClientContext;
-import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
 
 public class ChoiceViewSession {
 	
@@ -60,168 +54,193 @@ public class ChoiceViewSession {
 		public String callerId;
 		public String callId;
 		public String status;
+		// Parsed once from status
+		SessionStatus sessionStatus;
 		public String networkQuality;
 		public String networkType;
 		final public Map<String, String> properties;
 		final public List<Link> links;
+		LinkTable linkTable = LinkTable.EMPTY;
+		// Validators from the response, sent back on the next GET of the session
+		String etag;
+		String lastModified;
+		private final boolean frozen;
 		public Session() {
 			sessionId = 0;
 			callerId = "";
 			callId = "";
 			status = "disconnected";
+			sessionStatus = SessionStatus.DISCONNECTED;
 			networkQuality = "";
 			networkType = "";
 			properties = new HashMap<String, String>();
 			links = new ArrayList<Link>();
+			frozen = false;
+		}
+		private Session(Session other, SessionStatus sessionStatus, Map<String, String> properties) {
+			sessionId = other.sessionId;
+			callerId = other.callerId;
+			callId = other.callId;
+			this.sessionStatus = sessionStatus;
+			// Keep the text the Switch sent, unless the status was changed here
+			status = sessionStatus == other.sessionStatus && other.status != null ? other.status : statusText(sessionStatus);
+			networkQuality = other.networkQuality;
+			networkType = other.networkType;
+			this.properties = Collections.unmodifiableMap(new HashMap<String, String>(properties));
+			links = Collections.unmodifiableList(new ArrayList<Link>(other.links));
+			linkTable = other.linkTable;
+			etag = other.etag;
+			lastModified = other.lastModified;
+			frozen = true;
+		}
+		// A session that is being started or was transferred is not on the Switch, and has
+		// always been reported as disconnected
+		private static String statusText(SessionStatus sessionStatus) {
+			return sessionStatus == SessionStatus.CONNECTING || sessionStatus == SessionStatus.TRANSFERRED ?
+					SessionStatus.DISCONNECTED.toString() : sessionStatus.toString();
+		}
+		// Published sessions are never changed, every change is made to a copy
+		Session freeze() {
+			if(frozen) {
+				return this;
+			}
+			return new Session(this, sessionStatus != null ? sessionStatus : SessionStatus.parse(status), properties);
+		}
+		Session withStatus(SessionStatus sessionStatus) {
+			return new Session(this, sessionStatus, properties);
+		}
+		Session withProperties(Map<String, String> properties) {
+			return new Session(this, sessionStatus, properties);
+		}
+		Session withoutValidators() {
+			Session session = new Session(this, sessionStatus, properties);
+			session.etag = session.lastModified = null;
+			return session;
+		}
+		boolean isConnected() {
+			return sessionStatus == SessionStatus.CONNECTED;
+		}
+	}
+	static class ControlMessage {
+		final Map<String, String> fields;
+		// Identifies the message, so that clearing it cannot remove a newer one
+		final String etag;
+		ControlMessage(Map<String, String> fields, String etag) {
+			this.fields = fields;
+			this.etag = etag;
 		}
 	}
 	static class Payload {
 		final public Map<String, String> properties;
 		final public List<Link> links;
+		String etag;
+		String lastModified;
 		public Payload() {
 			properties = new HashMap<String, String>();
 			links = new ArrayList<Link>();
 		}
 	}
 	
-	private static boolean isSuccessful(HttpResponse response) {
-		int statusCode = response.getStatusLine().getStatusCode();
-		return (statusCode > 199 && statusCode < 300);
-	}
-	
-	ResponseHandler<Session> sessionHandler = new ResponseHandler<Session>() {
-		public Session handleResponse(HttpResponse response) 
-				throws ClientProtocolException, IOException {
-			if(isSuccessful(response)) {
-				HttpEntity entity = response.getEntity();
-				if (entity != null) {
-					try {
-					    return mapper.readValue(EntityUtils.toString(entity), Session.class);
-					}
-					finally {
-						entity.getContent().close();
-					}
-				}
-			} else {
-				printErrorResponse(response);
-			}
-			return null;
-		}
-	};
-	ResponseHandler<Map<String, String>> controlMessageHandler = new ResponseHandler<Map<String, String>>() {
-		@SuppressWarnings("unchecked")
-		public Map<String, String> handleResponse(HttpResponse response) 
-				throws ClientProtocolException, IOException {
-			if(isSuccessful(response)) {
-				HttpEntity entity = response.getEntity();
-				if (entity != null) {
-					try {
-						String content = EntityUtils.toString(entity);
-        				return (Map<String, String>) (isNullOrEmpty(content) ?
-        						null : mapper.readValue(content, new TypeReference<Map<String, String>>() {}));
-					}
-					finally {
-						entity.getContent().close();
-					}
-				}
-			} else {
-				printErrorResponse(response);
-			}
-			return null;
-		}
-	};
-	ResponseHandler<Payload> payloadHandler = new ResponseHandler<Payload>() {
-		public Payload handleResponse(HttpResponse response) 
-				throws ClientProtocolException, IOException {
-			if(isSuccessful(response)) {
-				HttpEntity entity = response.getEntity();
-				if (entity != null) {
-					try {
-					    return mapper.readValue(EntityUtils.toString(entity), Payload.class);
-					}
-					finally {
-						entity.getContent().close();
-					}
-				}
-			} else {
-				printErrorResponse(response);
-			}
-			return null;
-		}
-	};
-	ResponseHandler<Boolean> defaultHandler = new ResponseHandler<Boolean>() {
-		public Boolean handleResponse(HttpResponse response)
-		throws ClientProtocolException, IOException {
-			if(!isSuccessful(response)) {
-				printErrorResponse(response);
-				return false;
-			}
-			return true;
-		}
-	};
-	
+	final static String SelfRel = "self";
 	final static String StateNotificationRel = "/rels/statenotification";
 	final static String MessageNotificationRel = "/rels/messagenotification";
 	final static String SessionRel = "/rels/session";
 	final static String PayloadRel = "/rels/properties";
 	final static String ControlMessageRel = "/rels/controlmessage";
+	// Polling for an awaited control message backs off between these intervals, or
+	// uses the slow interval when the Switch notifies a NotificationReceiver
+	final static Duration MessagePollInterval = Duration.ofMillis(100);
+	final static Duration MaxMessagePollInterval = Duration.ofSeconds(2);
+	final static Duration NotifiedMessagePollInterval = Duration.ofSeconds(5);
+	// The same, for the session while a transfer waits for confirmation
+	final static Duration TransferPollInterval = Duration.ofMillis(100);
+	final static Duration MaxTransferPollInterval = Duration.ofSeconds(2);
+	final static Duration NotifiedTransferPollInterval = Duration.ofSeconds(5);
 	
-	private Session cvSession;
+	private final AtomicReference<Session> state = new AtomicReference<Session>(new Session().freeze());
+	private volatile Payload cvPayload;
+	private final List<SessionStateListener> stateListeners = new CopyOnWriteArrayList<SessionStateListener>();
+	private boolean active;
+	private CompletableFuture<Void> lastConsumer = CompletableFuture.completedFuture(null);
+	private final List<MessageWaiter> messageWaiters = new CopyOnWriteArrayList<MessageWaiter>();
+	private volatile boolean messageNotified;
+	private volatile boolean stateNotified;
+	// The transfer accepted by the Switch that waits for the session to leave this account
+	private volatile TransferWaiter pendingTransfer;
+	// Set while sendUrl calls are coalesced
+	private volatile UrlCoalescer urlCoalescer;
+	// A message that was consumed for a waiter that timed out before it arrived
+	private Map<String, String> unclaimedMessage;
 	
-	private URI sessionsUri;
-	private DefaultHttpClient client;
-	private ObjectMapper mapper;
-	private AuthCache authCache;
+	private final ChoiceViewClient client;
+	private final boolean ownsClient;
 	
-	private HttpContext getApiContext() {
-        HttpContext context = null;
-        if(authCache != null) {
-        	context = new BasicHttpContext();
-        	context.setAttribute(ClientContext.AUTH_CACHE, authCache);
-        }
-        return context;
+	public int getSessionId() { return state.get().sessionId; }
+	public String getCallerId() { return state.get().callerId; }
+	public String getCallId() { return state.get().callId; }
+	public String getStatus() { return state.get().status; }
+	public SessionStatus getSessionStatus() { return state.get().sessionStatus; }
+	public String getNetworkQuality() { return state.get().networkQuality; }
+	public String getNetworkType() { return state.get().networkType; }
+	public Map<String, String> getProperties() { return state.get().properties; }
+
+	// All values of the session as of one moment, for callers that read several of them
+	public SessionSnapshot getSnapshot() { return new SessionSnapshot(state.get()); }
+	
+	Session getSessionState() { return state.get(); }
+
+	// The Switch the session was started on, or null before it is started
+	public SwitchEndpoint getEndpoint() {
+		URI selfUri = getSessionUri();
+		return selfUri != null ? client.getEndpoint(selfUri) : null;
+	}
+
+	public void addStateListener(SessionStateListener listener) {
+		if(listener == null) throw new IllegalArgumentException("No listener specified.");
+		stateListeners.add(listener);
+	}
+	public void removeStateListener(SessionStateListener listener) { stateListeners.remove(listener); }
+
+	// A sendUrl call waits up to the window before it is sent, and is dropped with a
+	// CoalescedException if a newer sendUrl arrives meanwhile. Null or zero turns
+	// coalescing off and sends a url still held back at once.
+	public Duration getUrlCoalescingWindow() {
+		UrlCoalescer coalescer = urlCoalescer;
+		return coalescer != null ? coalescer.getWindow() : null;
+	}
+	public void setUrlCoalescingWindow(Duration window) {
+		setUrlCoalescingWindow(window, client::schedule);
+	}
+
+	void setUrlCoalescingWindow(Duration window, UrlCoalescer.Scheduler scheduler) {
+		if(window != null && window.isNegative()) throw new IllegalArgumentException("Invalid window.");
+		UrlCoalescer previous = urlCoalescer;
+		urlCoalescer = window == null || window.isZero() ? null : new UrlCoalescer(this, window, scheduler);
+		if(previous != null) {
+			previous.flush();
+		}
+	}
+
+	// Queues sendUrl, sendText and addProperty calls to send them together
+	public SessionPipeline pipeline() { return new SessionPipeline(this); }
+
+	// Makes the next updateSession get the whole session
+	void forgetValidators() {
+		updateState(current -> current.withoutValidators());
+	}
+	
+	ChoiceViewSession(ChoiceViewClient client) {
+		this(client, false);
 	}
 	
-	public int getSessionId() { return cvSession.sessionId; }
-	public String getCallerId() { return cvSession.callerId; }
-	public String getCallId() { return cvSession.callId; }
-	public String getStatus() { return cvSession.status; }
-	public String getNetworkQuality() { return cvSession.networkQuality; }
-	public String getNetworkType() { return cvSession.networkType; }
-	public Map<String, String> getProperties() { return Collections.unmodifiableMap(cvSession.properties); }
+	private ChoiceViewSession(ChoiceViewClient client, boolean ownsClient) {
+		this.client = client;
+		this.ownsClient = ownsClient;
+	}
 	
 	ChoiceViewSession(String serverAddress, int serverPort, boolean useHttps,
 			String username, String password) {
-		if(serverAddress == null) throw new IllegalArgumentException("No server address specified.");
-		URIBuilder builder = new URIBuilder();
-		builder.setScheme(useHttps ? "https" : "http").setHost(serverAddress).setPath("/ivr/api/sessions");
-		if(serverPort > 0) {
-			builder.setPort(serverPort);
-		} else {
-			serverPort = useHttps ? 443 : 80;
-		}
-		try {
-			sessionsUri = builder.build();
-		} catch (URISyntaxException e) {
-			throw new IllegalArgumentException(e.getMessage());
-		}
-		
-		PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
-		client = new DefaultHttpClient(cm);
-				
-		if(username != null && password != null) {
-			// Add basic authentication credentials
-			client.getCredentialsProvider().setCredentials(
-                    new AuthScope(serverAddress, serverPort),
-                    new UsernamePasswordCredentials(username, password));
-			
-			authCache = new BasicAuthCache();
-            authCache.put(new HttpHost(serverAddress, serverPort, useHttps ? "https" : "http"),
-            		      new BasicScheme());
-		}
-		
-		mapper = new ObjectMapper();
-		cvSession = new Session();
+		this(new ChoiceViewClient(serverAddress, serverPort, useHttps, username, password), true);
 	}
 
 	// If username and password is specified, must use https
@@ -244,6 +263,15 @@ public class ChoiceViewSession {
 	public ChoiceViewSession(String serverAddress) {
 		this(serverAddress, false);
 	}
+	
+	public ChoiceViewClient getClient() { return client; }
+	
+	// Releases the connection pool if this session created its own client
+	public void close() {
+		if(ownsClient) {
+			client.close();
+		}
+	}
 
 	public boolean startSession(String callerId, String callId) throws IOException {
 		return startSession(callerId, callId, "", "", "");
@@ -258,9 +286,490 @@ public class ChoiceViewSession {
 	
 	public boolean startSession(String callerId, String callId,
 			URI stateChangeUri, URI newMessageUri, String notificationType) throws IOException {
-		if(cvSession != null && cvSession.status.equalsIgnoreCase("connected")) {
+		return startSession(callerId, callId, stateChangeUri, newMessageUri, notificationType, null);
+	}
+	
+	// The timeout overrides the start session timeout of the client
+	public boolean startSession(String callerId, String callId, URI stateChangeUri, URI newMessageUri,
+			String notificationType, Duration timeout) throws IOException {
+		HttpUriRequest request = startSessionRequest(callerId, callId, stateChangeUri, newMessageUri, notificationType);
+		if(request == null || !connecting()) {
+			return false;
+		}
+		Session started = null;
+		try {
+			started = client.execute(Operation.START_SESSION, request, client.sessionHandler,
+					timeout != null ? timeout : client.getStartSessionTimeout());
+		} finally {
+			sessionStarted(started);
+		}
+		return started != null;
+	}
+	
+	// The methods with a timeout throw ChoiceViewTimeoutException if the Switch has not
+	// answered in time. A null timeout uses the request timeout of the client.
+	
+	public boolean endSession() throws IOException {
+		return endSession(null);
+	}
+	
+	public boolean endSession(Duration timeout) throws IOException {
+		HttpUriRequest request = endSessionRequest();
+		return request != null && sessionEnded(client.execute(Operation.END_SESSION, request, client.defaultHandler, timeout),
+				SessionStatus.DISCONNECTED);
+	}
+	
+	public boolean updateSession() throws IOException {
+		return updateSession(null);
+	}
+	
+	// Returns false and keeps the session as it was if the Switch answers with an error
+	public boolean updateSession(Duration timeout) throws IOException {
+		HttpUriRequest request = updateSessionRequest();
+		if(request == null) {
+			return false;
+		}
+		try {
+			return sessionUpdated(client.execute(Operation.UPDATE_SESSION, request,
+					ChoiceViewClient.unlessNotModified(state.get(), client.updateHandler), timeout));
+		} catch(ClientProtocolException e) {
+			return false;
+		}
+	}
+	
+	public boolean transferSession(String accountId) throws IOException {
+		return transferSession(accountId, null);
+	}
+	
+	public boolean transferSession(String accountId, Duration timeout) throws IOException {
+		HttpUriRequest request = transferSessionRequest(accountId);
+		return request != null && sessionEnded(client.execute(Operation.TRANSFER_SESSION, request, client.defaultHandler, timeout),
+				SessionStatus.TRANSFERRED);
+	}
+	
+	public boolean sendUrl(String url) throws IOException {
+		return sendUrl(url, null);
+	}
+	
+	public boolean sendUrl(String url, Duration timeout) throws IOException {
+		UrlCoalescer coalescer = urlCoalescer;
+		if(coalescer != null) {
+			return await(coalescer.sendUrl(url, timeout), "the url to be sent");
+		}
+		HttpUriRequest request = sendUrlRequest(url);
+		return request != null && client.execute(Operation.SEND_URL, request, client.defaultHandler, timeout);
+	}
+	
+	public boolean sendText(String msg) throws IOException {
+		return sendText(msg, null);
+	}
+	
+	public boolean sendText(String msg, Duration timeout) throws IOException {
+		HttpUriRequest request = sendTextRequest(msg);
+		return request != null && client.execute(Operation.SEND_TEXT, request, client.defaultHandler, timeout);
+	}
+	
+	public Map<String, String> getControlMessage() throws IOException {
+		return getControlMessage(null);
+	}
+	
+	// Gets the message and clears it, unless a newer message replaced it in between; the
+	// newer message is then returned by the next call. The timeout covers both requests and
+	// the wait for an earlier call on this session to finish.
+	public Map<String, String> getControlMessage(Duration timeout) throws IOException {
+		HttpUriRequest request = getControlMessageRequest();
+		if(request == null) {
+			return null;
+		}
+		Map<String, String> unclaimed = takeUnclaimedMessage();
+		if(unclaimed != null) {
+			return unclaimed;
+		}
+		Duration limit = timeout != null ? timeout : client.getRequestTimeout();
+		if(limit != null && limit.isZero()) {
+			limit = null;
+		}
+		long start = System.nanoTime();
+		CompletableFuture<Void> consumed = new CompletableFuture<Void>();
+		CompletableFuture<Void> previous = nextConsumer(consumed);
+		try {
+			awaitConsumers(previous, limit, start);
+		} catch(IOException e) {
+			// The next call must still wait for the earlier one
+			previous.whenComplete((v, error) -> consumed.complete(null));
+			throw e;
+		}
+		try {
+			ControlMessage msg = client.execute(Operation.GET_CONTROL_MESSAGE, request, client.controlMessageHandler,
+					limit == null ? timeout : remaining(limit, start));
+			if(msg == null) {
+				return null;
+			}
+			HttpUriRequest clear = consumeControlMessageRequest(msg);
+			if(clear != null) {
+				client.execute(Operation.CLEAR_CONTROL_MESSAGE, clear, client.consumeHandler,
+						limit == null ? timeout : remaining(limit, start));
+			}
+			return msg.fields;
+		} finally {
+			consumed.complete(null);
+		}
+	}
+	
+	// Waits for the caller to submit a form, and returns the message cleared from the
+	// Switch, or null if none arrived within the timeout or the session is disconnected
+	public Map<String, String> awaitControlMessage(Duration timeout) throws IOException {
+		return await(awaitControlMessageAsync(timeout), "the control message");
+	}
+
+	private static <T> T await(CompletableFuture<T> result, String waitingFor) throws IOException {
+		try {
+			return result.get();
+		} catch(InterruptedException e) {
+			result.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + waitingFor + ".");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	public boolean clearControlMessage() throws IOException {
+		return clearControlMessage(null);
+	}
+	
+	public boolean clearControlMessage(Duration timeout) throws IOException {
+		HttpUriRequest request = clearControlMessageRequest();
+		return request != null && client.execute(Operation.CLEAR_CONTROL_MESSAGE, request, client.defaultHandler, timeout);
+	}
+	
+	public Map<String, String> updateProperties() throws IOException {
+		return updateProperties(null);
+	}
+	
+	public Map<String, String> updateProperties(Duration timeout) throws IOException {
+		HttpUriRequest request = updatePropertiesRequest();
+		return request != null ? propertiesUpdated(client.execute(Operation.UPDATE_PROPERTIES, request,
+				ChoiceViewClient.unlessNotModified(cvPayload, client.payloadHandler), timeout)) : null;
+	}
+	
+	public boolean addProperties(Map<String, String> properties) throws IOException {
+		if(properties == null || properties.size() == 0) {
 			return false;
 		}
+		return allAdded(addPropertiesBatch(properties));
+	}
+	
+	public boolean addProperty(String name, String value) throws IOException {
+		return addProperty(new Property(name, value));
+	}
+	
+	// Sends every entry in order, a repeated name included, as a SessionPipeline
+	public boolean addProperties(Property[] properties) throws IOException {
+		if(properties.length == 0) {
+			return true;
+		}
+		SessionPipeline pipeline = pipeline();
+		for(Property p : properties) {
+			pipeline.addProperty(p.name, p.value);
+		}
+		return !pipeline.execute().contains(Boolean.FALSE);
+	}
+	
+	// Adds the properties and returns the result for each property name. The Switch adds
+	// one property per request, so the requests are sent back to back as a SessionPipeline.
+	public Map<String, Boolean> addPropertiesBatch(Map<String, String> properties) throws IOException {
+		Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+		Map<String, String> valid = validProperties(properties, results);
+		if(valid.isEmpty()) {
+			return results;
+		}
+		SessionPipeline pipeline = pipeline();
+		Map<String, CompletableFuture<Boolean>> added = new LinkedHashMap<String, CompletableFuture<Boolean>>();
+		for(Map.Entry<String, String> pair : valid.entrySet()) {
+			added.put(pair.getKey(), pipeline.addProperty(pair.getKey(), pair.getValue()));
+		}
+		pipeline.execute();
+		for(Map.Entry<String, CompletableFuture<Boolean>> pair : added.entrySet()) {
+			results.put(pair.getKey(), pair.getValue().join());
+		}
+		return results;
+	}
+
+	public boolean addProperty(Property p) throws IOException {
+		HttpUriRequest request = addPropertyRequest(p);
+		return request != null && client.execute(Operation.ADD_PROPERTIES, request, client.defaultHandler);
+	}
+	
+	// The asynchronous methods return immediately; the returned future completes on
+	// one of the client's I/O threads, so dependent actions should not block.
+	
+	public CompletableFuture<Boolean> startSessionAsync(String callerId, String callId) {
+		return startSessionAsync(callerId, callId, null, null, null);
+	}
+	
+	public CompletableFuture<Boolean> startSessionAsync(String callerId, String callId,
+			URI stateChangeUri, URI newMessageUri, String notificationType) {
+		HttpUriRequest request;
+		try {
+			request = startSessionRequest(callerId, callId, stateChangeUri, newMessageUri, notificationType);
+		} catch(IOException e) {
+			return failed(e);
+		}
+		if(request == null || !connecting()) {
+			return CompletableFuture.completedFuture(false);
+		}
+		CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		client.executeAsync(Operation.START_SESSION, request, client.sessionHandler, client.getStartSessionTimeout())
+				.whenComplete((started, e) -> {
+					sessionStarted(started);
+					if(e != null) {
+						result.completeExceptionally(e);
+					} else {
+						result.complete(started != null);
+					}
+				});
+		return result;
+	}
+	
+	public CompletableFuture<Boolean> endSessionAsync() {
+		return endSessionAsync(null);
+	}
+	
+	public CompletableFuture<Boolean> endSessionAsync(Duration timeout) {
+		HttpUriRequest request = endSessionRequest();
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return client.executeAsync(Operation.END_SESSION, request, client.defaultHandler, timeout)
+				.thenApply(success -> sessionEnded(success, SessionStatus.DISCONNECTED));
+	}
+	
+	public CompletableFuture<Boolean> updateSessionAsync() {
+		return updateAsync().handle((updated, e) -> {
+			if(e == null) {
+				return updated;
+			}
+			if(e instanceof CompletionException && e.getCause() instanceof ClientProtocolException ||
+			   e instanceof ClientProtocolException) {
+				return false;
+			}
+			throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+		});
+	}
+
+	// Fails with the error response that updateSessionAsync turns into false
+	private CompletableFuture<Boolean> updateAsync() {
+		HttpUriRequest request = updateSessionRequest();
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return client.executeAsync(Operation.UPDATE_SESSION, request, ChoiceViewClient.unlessNotModified(state.get(), client.updateHandler))
+				.thenApply(this::sessionUpdated);
+	}
+	
+	public CompletableFuture<Boolean> transferSessionAsync(String accountId) {
+		return transferSessionAsync(accountId, null);
+	}
+	
+	public CompletableFuture<Boolean> transferSessionAsync(String accountId, Duration timeout) {
+		HttpUriRequest request = transferSessionRequest(accountId);
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return client.executeAsync(Operation.TRANSFER_SESSION, request, client.defaultHandler, timeout)
+				.thenApply(success -> sessionEnded(success, SessionStatus.TRANSFERRED));
+	}
+	
+	// Transfers the session and completes when the Switch confirms that the session has
+	// left this account, through a state change notification or a poll of the session;
+	// completes with false if the Switch refuses the transfer. If there is no confirmation
+	// within the timeout, the future completes with a ChoiceViewTimeoutException.
+	// The session then keeps the status it had, usually connected, although the Switch
+	// may have accepted the transfer; the outcome is unknown until a later update or
+	// notification. Cancelling the future stops waiting, but a transfer already
+	// accepted still happens.
+	public CompletableFuture<Boolean> transferSessionConfirmedAsync(String accountId, final Duration timeout) {
+		if(timeout == null || timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("Invalid timeout.");
+		HttpUriRequest request = transferSessionRequest(accountId);
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		final TransferWaiter waiter = new TransferWaiter();
+		final ScheduledFuture<?> timer;
+		try {
+			timer = client.schedule(() -> waiter.result.completeExceptionally(new ChoiceViewTimeoutException(
+					"Transfer was not confirmed within " + timeout.toMillis() + " ms.", waiter.lastError)), timeout);
+		} catch(RuntimeException e) {
+			return failed(e);
+		}
+		final CompletableFuture<Boolean> transfer = client.executeAsync(Operation.TRANSFER_SESSION, request,
+				client.defaultHandler, timeout);
+		waiter.result.whenComplete((confirmed, e) -> {
+			timer.cancel(false);
+			transfer.cancel(false);
+			synchronized(this) {
+				if(pendingTransfer == waiter) {
+					pendingTransfer = null;
+				}
+			}
+			waiter.stop();
+		});
+		transfer.whenComplete((accepted, e) -> {
+			if(e != null) {
+				waiter.result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+			} else if(!accepted) {
+				waiter.result.complete(false);
+			} else {
+				waiter.accepted();
+			}
+		});
+		return waiter.result;
+	}
+	
+	public CompletableFuture<Boolean> sendUrlAsync(String url) {
+		UrlCoalescer coalescer = urlCoalescer;
+		if(coalescer != null) {
+			return coalescer.sendUrl(url, null);
+		}
+		return sendUrlNowAsync(url, null);
+	}
+
+	CompletableFuture<Boolean> sendUrlNowAsync(String url, Duration timeout) {
+		HttpUriRequest request;
+		try {
+			request = sendUrlRequest(url);
+		} catch(IOException e) {
+			return failed(e);
+		}
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return client.executeAsync(Operation.SEND_URL, request, client.defaultHandler, timeout);
+	}
+	
+	public CompletableFuture<Boolean> sendTextAsync(String msg) {
+		HttpUriRequest request = sendTextRequest(msg);
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return client.executeAsync(Operation.SEND_TEXT, request, client.defaultHandler);
+	}
+	
+	public CompletableFuture<Map<String, String>> getControlMessageAsync() {
+		final HttpUriRequest request = getControlMessageRequest();
+		if(request == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		Map<String, String> unclaimed = takeUnclaimedMessage();
+		if(unclaimed != null) {
+			return CompletableFuture.completedFuture(unclaimed);
+		}
+		final CompletableFuture<Void> consumed = new CompletableFuture<Void>();
+		CompletableFuture<Map<String, String>> result = nextConsumer(consumed).handle((v, e) -> null)
+				.thenCompose(v -> client.executeAsync(Operation.GET_CONTROL_MESSAGE, request, client.controlMessageHandler))
+				.thenCompose(msg -> {
+					HttpUriRequest clear = msg != null ? consumeControlMessageRequest(msg) : null;
+					if(clear != null) {
+						return client.executeAsync(Operation.CLEAR_CONTROL_MESSAGE, clear, client.consumeHandler)
+								.thenApply(cleared -> msg.fields);
+					}
+					return CompletableFuture.completedFuture(msg != null ? msg.fields : null);
+				});
+		result.whenComplete((msg, e) -> consumed.complete(null));
+		return result;
+	}
+	
+	// Polls with backoff until a message arrives, and at once when a NotificationReceiver
+	// that started the session is told of a new message. Cancelling the future stops the wait.
+	public CompletableFuture<Map<String, String>> awaitControlMessageAsync(Duration timeout) {
+		if(timeout == null || timeout.isNegative()) throw new IllegalArgumentException("Invalid timeout.");
+		final MessageWaiter waiter = new MessageWaiter();
+		messageWaiters.add(waiter);
+		final ScheduledFuture<?> timer;
+		try {
+			timer = client.schedule(() -> waiter.result.complete(null), timeout);
+		} catch(RuntimeException e) {
+			messageWaiters.remove(waiter);
+			waiter.result.completeExceptionally(e);
+			return waiter.result;
+		}
+		waiter.result.whenComplete((msg, e) -> {
+			timer.cancel(false);
+			messageWaiters.remove(waiter);
+			waiter.stop();
+		});
+		waiter.poll();
+		return waiter.result;
+	}
+
+	public CompletableFuture<Boolean> clearControlMessageAsync() {
+		HttpUriRequest request = clearControlMessageRequest();
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return client.executeAsync(Operation.CLEAR_CONTROL_MESSAGE, request, client.defaultHandler);
+	}
+	
+	public CompletableFuture<Map<String, String>> updatePropertiesAsync() {
+		HttpUriRequest request = updatePropertiesRequest();
+		if(request == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return client.executeAsync(Operation.UPDATE_PROPERTIES, request, ChoiceViewClient.unlessNotModified(cvPayload, client.payloadHandler))
+				.thenApply(this::propertiesUpdated);
+	}
+	
+	public CompletableFuture<Boolean> addPropertiesAsync(Map<String, String> properties) {
+		if(properties == null || properties.size() == 0) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return addPropertiesBatchAsync(properties).thenApply(ChoiceViewSession::allAdded);
+	}
+	
+	// The requests are sent concurrently
+	public CompletableFuture<Map<String, Boolean>> addPropertiesBatchAsync(Map<String, String> properties) {
+		final Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+		final Map<String, CompletableFuture<Boolean>> added = new LinkedHashMap<String, CompletableFuture<Boolean>>();
+		for(Map.Entry<String, String> pair : validProperties(properties, results).entrySet()) {
+			added.put(pair.getKey(), addPropertyAsync(pair.getKey(), pair.getValue()));
+		}
+		return CompletableFuture.allOf(added.values().toArray(new CompletableFuture<?>[added.size()])).thenApply(v -> {
+			for(Map.Entry<String, CompletableFuture<Boolean>> pair : added.entrySet()) {
+				results.put(pair.getKey(), pair.getValue().join());
+			}
+			return results;
+		});
+	}
+	
+	public CompletableFuture<Boolean> addPropertyAsync(String name, String value) {
+		return addPropertyAsync(new Property(name, value));
+	}
+	
+	public CompletableFuture<Boolean> addPropertyAsync(Property p) {
+		HttpUriRequest request;
+		try {
+			request = addPropertyRequest(p);
+		} catch(IOException e) {
+			return failed(e);
+		}
+		if(request == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return client.executeAsync(Operation.ADD_PROPERTIES, request, client.defaultHandler);
+	}
+	
+	private HttpUriRequest startSessionRequest(String callerId, String callId,
+			URI stateChangeUri, URI newMessageUri, String notificationType) throws IOException {
+		if(state.get().sessionStatus.isActive()) {
+			return null;
+		}
 		
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("callerId", callerId);
@@ -288,101 +797,167 @@ public class ChoiceViewSession {
 			}
 		}
 		
-		HttpPost request = new HttpPost(sessionsUri);
-		request.setEntity(new StringEntity(mapper.writeValueAsString(params),
+		HttpPost request = new HttpPost(client.getSessionsUri());
+		request.setEntity(new StringEntity(client.getMapper().writeValueAsString(params),
 				ContentType.create("application/json", "utf-8")));
 		request.addHeader("ACCEPT", "application/json");
-		try {
-			Session newSession = client.execute(request, sessionHandler, getApiContext());
-			if(newSession != null) {
-				cvSession = newSession;
+		return request;
+	}
+	
+	// Only one startSession at a time; returns false if the session is already active
+	private boolean connecting() {
+		while(true) {
+			Session current = state.get();
+			if(!current.sessionStatus.canTransitionTo(SessionStatus.CONNECTING) ||
+			   current.sessionStatus == SessionStatus.CONNECTING) {
+				return false;
+			}
+			Session updated = current.withStatus(SessionStatus.CONNECTING);
+			if(state.compareAndSet(current, updated)) {
+				stateChanged(current, updated);
 				return true;
 			}
-		} catch(RuntimeException e)	{
-			request.abort();
-			throw e;
 		}
-		return false;
+	}
+
+	// A session that could not be started goes back to disconnected
+	private boolean sessionStarted(final Session newSession) {
+		updateState(current -> newSession != null ? newSession.freeze() : current.withStatus(SessionStatus.DISCONNECTED));
+		trackActive();
+		return newSession != null;
 	}
 	
-	public boolean endSession() throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected")) {
-			return false;
+	private HttpUriRequest endSessionRequest() {
+		if(!isConnected()) {
+			return null;
 		}
 		
 		URI selfUri = getSessionUri();
-		if(selfUri != null) {
-			HttpDelete request = new HttpDelete(selfUri);
+		return selfUri != null ? new HttpDelete(selfUri) : null;
+	}
+	
+	private boolean sessionEnded(Boolean success, final SessionStatus ended) {
+		if(success) {
+			// connection is gone
+			updateState(current -> transition(current, ended));
+			trackActive();
+			return true;
+		}
+		return false;
+	}
+	
+	private static Session transition(Session current, SessionStatus next) {
+		return current.sessionStatus.canTransitionTo(next) && current.sessionStatus != next ?
+				current.withStatus(next) : current;
+	}
+	
+	// Replaces the snapshot with a changed copy; retried if another thread replaced it first
+	private Session updateState(UnaryOperator<Session> change) {
+		while(true) {
+			Session current = state.get();
+			Session updated = change.apply(current);
+			if(updated == current) {
+				return current;
+			}
+			if(state.compareAndSet(current, updated)) {
+				stateChanged(current, updated);
+				return updated;
+			}
+		}
+	}
+	
+	private void stateChanged(Session previous, Session current) {
+		if(previous.sessionStatus == current.sessionStatus) {
+			return;
+		}
+		TransferWaiter transfer = pendingTransfer;
+		if(transfer != null && !current.sessionStatus.isActive()) {
+			transfer.result.complete(true);
+		}
+		for(SessionStateListener listener : stateListeners) {
 			try {
-				if(client.execute(request, defaultHandler, getApiContext())) {
-					cvSession.status = "disconnected";
-					return true;
-				}
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
+				listener.stateChanged(this, previous.sessionStatus, current.sessionStatus);
+			} catch(RuntimeException e) {
+				System.err.println("Session state listener failed: " + e);
 			}
-		}		
-		return false;
+		}
 	}
 	
-	public boolean updateSession() throws IOException {
-		if(cvSession == null) {
-			return false;
+	// Reports sessions that became active or inactive to the metrics of the client
+	private synchronized void trackActive() {
+		boolean nowActive = state.get().sessionStatus.isActive();
+		if(nowActive != active) {
+			active = nowActive;
+			if(nowActive) {
+				client.getMetrics().sessionActivated();
+			} else {
+				client.getMetrics().sessionDeactivated();
+			}
 		}
-		
-		URI selfUri = getSessionUri();
+	}
+	
+	private HttpUriRequest updateSessionRequest() {
+		Session session = state.get();
+		URI selfUri = session.linkTable.getSelf();
 		if(selfUri != null) {
 			HttpGet request = new HttpGet(selfUri);
 			request.addHeader("ACCEPT", "application/json");
-			try {
-				Session newSession = client.execute(request, sessionHandler, getApiContext());
-				if(newSession != null) {
-					cvSession = newSession;
-				} else {
-					cvSession.status = "disconnected";
-				}
-				return true;
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
-			}
+			ChoiceViewClient.addValidators(request, session.etag, session.lastModified);
+			return request;
 		}
-		return false;
+		return null;
 	}
 	
-	public boolean transferSession(String accountId) throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected")) {
-			return false;
-		}
-		
-		URI selfUri = getSessionUri();
-		if(selfUri != null && accountId != null && accountId.length() > 0) {
-			URI xferUri;
-			try {
-				xferUri = new URI(selfUri.toString() + "/transfer/" + accountId);
-			} catch (URISyntaxException e1) {
-				return false;
+	// A null session is one the Switch answered with 404; failed updates never get here,
+	// so a session only ends through endSession, a 404 or a status the Switch reported.
+	// Updates that arrive while a new session is being started, or that report a change of
+	// status that is not allowed, are ignored. A session ended this way thus stays
+	// disconnected, even if an update that was already under way returns it as connected.
+	private boolean sessionUpdated(final Session newSession) {
+		updateState(current -> {
+			if(current.sessionStatus == SessionStatus.CONNECTING) {
+				return current;
 			}
-			HttpPost request = new HttpPost(xferUri);
-			try {
-				if(client.execute(request, defaultHandler, getApiContext())) {
-					// connection is gone
-					cvSession.status = "disconnected";
-					return true;
-				}
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
+			// After an accepted transfer, a session the Switch reports gone has been handed off
+			SessionStatus gone = pendingTransfer != null ? SessionStatus.TRANSFERRED : SessionStatus.DISCONNECTED;
+			if(newSession == null) {
+				Session ended = transition(current, gone);
+				return ended != current ? ended.withoutValidators() : current;
+			}
+			// Not modified, and the current snapshot is at least as recent
+			if(newSession.frozen) {
+				return current;
+			}
+			Session updated = newSession.freeze();
+			if(updated.sessionStatus == SessionStatus.DISCONNECTED && gone == SessionStatus.TRANSFERRED) {
+				updated = updated.withStatus(gone);
 			}
+			if(current.sessionId == updated.sessionId &&
+			   !current.sessionStatus.canTransitionTo(updated.sessionStatus)) {
+				return current;
+			}
+			return updated;
+		});
+		trackActive();
+		return true;
+	}
+	
+	private HttpUriRequest transferSessionRequest(String accountId) {
+		if(!isConnected()) {
+			return null;
 		}
-		return false;
+		
+		if(accountId != null && accountId.length() > 0) {
+			URI xferUri = state.get().linkTable.getTransfer(accountId);
+			return xferUri != null ? new HttpPost(xferUri) : null;
+		}
+		return null;
 	}
 	
-	public boolean sendUrl(String url) throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected") ||
+	HttpUriRequest sendUrlRequest(String url) throws IOException {
+		if(!isConnected() ||
 		   url == null || url.length() == 0) {
-			return false;
+			return null;
 		}
 		
 		Map<String, Object> params = new HashMap<String, Object>();
@@ -391,22 +966,17 @@ public class ChoiceViewSession {
 		URI selfUri = getSessionUri();
 		if(selfUri != null) {
 			HttpPost request = new HttpPost(selfUri);
-			request.setEntity(new StringEntity(mapper.writeValueAsString(params),
+			request.setEntity(new StringEntity(client.getMapper().writeValueAsString(params),
 					ContentType.create("application/json", "utf-8")));
-			try {
-				return client.execute(request, defaultHandler, getApiContext());
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
-			}
+			return request;
 		}
-		return false;
+		return null;
 	}
 	
-	public boolean sendText(String msg) throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected") ||
+	HttpUriRequest sendTextRequest(String msg) {
+		if(!isConnected() ||
 		   msg == null || msg.length() == 0) {
-			return false;
+			return null;
 		}
 		
 		URI selfUri = getSessionUri();
@@ -414,163 +984,365 @@ public class ChoiceViewSession {
 			HttpPost request = new HttpPost(selfUri);
 			request.setEntity(new StringEntity(msg,
 					ContentType.create("text/plain", "utf-8")));
-			try {
-				return client.execute(request, defaultHandler, getApiContext());
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
-			}
+			return request;
 		}
-		return false;
+		return null;
 	}
 	
-	public Map<String, String> getControlMessage() throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected")) {
+	private HttpUriRequest getControlMessageRequest() {
+		if(!isConnected()) {
 			return null;
 		}
 		
 		URI apiUri = getControlMessageUri();
-		if(apiUri != null) {
-			HttpGet request = new HttpGet(apiUri);
-			try {
-				Map<String, String> msg = client.execute(request, controlMessageHandler, getApiContext());
-				if(msg != null && !msg.isEmpty()) { clearControlMessage(); }
-				return msg;
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
-			}
-		}
-		return null;
+		return apiUri != null ? new HttpGet(apiUri) : null;
 	}
 	
-	public boolean clearControlMessage() throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected")) {
-			return false;
+	// Called by a NotificationReceiver that delivers the new message notifications of the session
+	void setMessageNotified(boolean notified) {
+		messageNotified = notified;
+	}
+
+	// The same, for the state change notifications
+	void setStateNotified(boolean notified) {
+		stateNotified = notified;
+	}
+
+	void controlMessageNotified() {
+		for(MessageWaiter waiter : messageWaiters) {
+			waiter.wake();
 		}
-		
-		URI apiUri = getControlMessageUri();
-		if(apiUri != null) {
-			HttpDelete request = new HttpDelete(apiUri);
-			try {
-				return client.execute(request, defaultHandler, getApiContext());
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
-			}
+	}
+
+	// Called by a NotificationReceiver that does not update the session itself
+	void stateChangeNotified() {
+		TransferWaiter transfer = pendingTransfer;
+		if(transfer != null) {
+			transfer.wake();
 		}
-		return false;
 	}
-	
-	public Map<String, String> updateProperties() throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected")) {
-			return null;
+
+	boolean isConnected() {
+		return state.get().isConnected();
+	}
+
+	private synchronized Map<String, String> takeUnclaimedMessage() {
+		Map<String, String> msg = unclaimedMessage;
+		unclaimedMessage = null;
+		return msg;
+	}
+
+	// Keeps a message that arrived too late for its waiter. If the Switch has a newer
+	// one by now, that is returned next; the older message has been cleared anyway.
+	private synchronized void unclaimed(Map<String, String> msg) {
+		if(unclaimedMessage == null) {
+			unclaimedMessage = msg;
 		}
-		
-		URI apiUri = getPayloadUri();
-		if(apiUri != null) {
-			HttpGet request = new HttpGet(apiUri);
+	}
+
+	// Polls the Switch until the result is complete, backing off from the first interval to
+	// the maximum, or at the notified interval while a NotificationReceiver reports the
+	// changes; wake polls at once. Each poll calls pollLater unless it completed the result.
+	private abstract class BackoffPoller<T> {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		private final Duration maxInterval;
+		private final Duration notifiedInterval;
+		private Duration interval;
+		private ScheduledFuture<?> nextPoll;
+		private boolean polling;
+		private boolean woken;
+
+		BackoffPoller(Duration interval, Duration maxInterval, Duration notifiedInterval) {
+			this.interval = interval;
+			this.maxInterval = maxInterval;
+			this.notifiedInterval = notifiedInterval;
+		}
+
+		abstract void check();
+
+		abstract boolean isNotified();
+
+		void poll() {
+			synchronized(this) {
+				if(result.isDone()) {
+					return;
+				}
+				polling = true;
+				woken = false;
+			}
+			check();
+		}
+
+		void pollLater() {
+			Duration delay;
+			synchronized(this) {
+				polling = false;
+				if(result.isDone()) {
+					return;
+				}
+				if(woken) {
+					delay = Duration.ZERO;
+				} else if(isNotified()) {
+					delay = notifiedInterval;
+				} else {
+					delay = interval;
+					interval = interval.multipliedBy(2);
+					if(interval.compareTo(maxInterval) > 0) {
+						interval = maxInterval;
+					}
+				}
+			}
+			if(delay.isZero()) {
+				poll();
+				return;
+			}
 			try {
-				Payload payload = client.execute(request, payloadHandler, getApiContext());
-				if(payload != null && !payload.properties.equals(cvSession.properties)) {
-					cvSession.properties.putAll(payload.properties);
+				ScheduledFuture<?> next = client.schedule(this::poll, delay);
+				synchronized(this) {
+					nextPoll = next;
 				}
-				return payload.properties;
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
+			} catch(RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+
+		void wake() {
+			synchronized(this) {
+				if(polling) {
+					woken = true;
+					return;
+				}
+				if(nextPoll != null) {
+					nextPoll.cancel(false);
+					nextPoll = null;
+				}
+			}
+			poll();
+		}
+
+		synchronized void stop() {
+			if(nextPoll != null) {
+				nextPoll.cancel(false);
 			}
 		}
-		return null;
 	}
-	
-	public boolean addProperties(Map<String, String> properties) throws IOException {
-		if(properties == null || properties.size() == 0) {
-			return false;
+
+	private class MessageWaiter extends BackoffPoller<Map<String, String>> {
+		MessageWaiter() {
+			super(MessagePollInterval, MaxMessagePollInterval, NotifiedMessagePollInterval);
 		}
-		
-		for(Map.Entry<String, String> pair : properties.entrySet()) {
-			if(!addProperty(pair.getKey(), pair.getValue())) {
-				return false;
+
+		void check() {
+			getControlMessageAsync().whenComplete((msg, e) -> {
+				if(e != null) {
+					result.completeExceptionally(e);
+				} else if(msg != null && !msg.isEmpty()) {
+					if(!result.complete(msg)) {
+						unclaimed(msg);
+					}
+				} else if(!isConnected()) {
+					result.complete(null);
+				} else {
+					pollLater();
+				}
+			});
+		}
+
+		boolean isNotified() { return messageNotified; }
+	}
+
+	// Polls the session until the Switch reports that it is no longer active. Failed polls
+	// are retried until the timeout, which then reports the last failure as its cause.
+	private class TransferWaiter extends BackoffPoller<Boolean> {
+		volatile Throwable lastError;
+
+		TransferWaiter() {
+			super(TransferPollInterval, MaxTransferPollInterval, NotifiedTransferPollInterval);
+		}
+
+		void accepted() {
+			synchronized(ChoiceViewSession.this) {
+				if(result.isDone()) {
+					return;
+				}
+				pendingTransfer = this;
+			}
+			// Left before we started watching
+			if(!getSessionStatus().isActive()) {
+				result.complete(true);
+				return;
 			}
+			pollLater();
 		}
-		return true;
+
+		void check() {
+			updateAsync().whenComplete((updated, e) -> {
+				if(e != null) {
+					lastError = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				}
+				if(!getSessionStatus().isActive()) {
+					result.complete(true);
+				} else {
+					pollLater();
+				}
+			});
+		}
+
+		boolean isNotified() { return stateNotified; }
 	}
-	
-	public boolean addProperty(String name, String value) throws IOException {
-		return addProperty(new Property(name, value));
+
+	// Control messages are consumed one at a time, so that concurrent callers never get the
+	// same message. Returns the consume that has to finish before this one may start.
+	private synchronized CompletableFuture<Void> nextConsumer(CompletableFuture<Void> consumed) {
+		CompletableFuture<Void> previous = lastConsumer;
+		lastConsumer = consumed;
+		return previous;
 	}
-	
-	public boolean addProperties(Property[] properties) throws IOException {
-		for(Property p : properties) {
-			if(!addProperty(p)) {
-				return false;
+
+	// A null limit waits as long as the earlier calls take
+	private static void awaitConsumers(CompletableFuture<Void> previous, Duration limit, long start)
+			throws InterruptedIOException {
+		try {
+			if(limit == null) {
+				previous.get();
+			} else {
+				previous.get(remaining(limit, start).toNanos(), TimeUnit.NANOSECONDS);
 			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the control message.");
+		} catch(TimeoutException e) {
+			throw ChoiceViewClient.expiredException(limit, null);
+		} catch(ExecutionException e) {
 		}
-		return true;
 	}
 
-	public boolean addProperty(Property p) throws IOException {
-		if(cvSession == null || !cvSession.status.equalsIgnoreCase("connected")) {
-			return false;
+	// Without an ETag from the Switch the message is cleared unconditionally
+	private HttpUriRequest consumeControlMessageRequest(ControlMessage msg) {
+		if(msg.fields.isEmpty()) {
+			return null;
+		}
+		HttpUriRequest request = clearControlMessageRequest();
+		if(request != null && msg.etag != null) {
+			request.addHeader(HttpHeaders.IF_MATCH, msg.etag);
+		}
+		return request;
+	}
+
+	private HttpUriRequest clearControlMessageRequest() {
+		if(!isConnected()) {
+			return null;
 		}
 		
-		if(isNullOrEmpty(p.name) || cvSession.properties.containsKey(p.name)) {
-			return false;
+		URI apiUri = getControlMessageUri();
+		return apiUri != null ? new HttpDelete(apiUri) : null;
+	}
+	
+	private HttpUriRequest updatePropertiesRequest() {
+		if(!isConnected()) {
+			return null;
+		}
+		
+		URI apiUri = getPayloadUri();
+		if(apiUri == null) {
+			return null;
+		}
+		HttpGet request = new HttpGet(apiUri);
+		if(cvPayload != null) {
+			ChoiceViewClient.addValidators(request, cvPayload.etag, cvPayload.lastModified);
+		}
+		return request;
+	}
+	
+	private Map<String, String> propertiesUpdated(Payload payload) {
+		if(payload == null) {
+			return null;
+		}
+		cvPayload = payload;
+		updateState(current -> {
+			if(current.properties.entrySet().containsAll(payload.properties.entrySet())) {
+				return current;
+			}
+			Map<String, String> merged = new HashMap<String, String>(current.properties);
+			merged.putAll(payload.properties);
+			return current.withProperties(merged);
+		});
+		return payload.properties;
+	}
+	
+	HttpUriRequest addPropertyRequest(Property p) throws IOException {
+		if(!isConnected()) {
+			return null;
+		}
+		
+		if(isNullOrEmpty(p.name) || state.get().properties.containsKey(p.name)) {
+			return null;
 		}
 		if(isNullOrEmpty(p.value)) {
-			return false;
+			return null;
 		}
 		
 		URI apiUri = getPayloadUri();
 		if(apiUri != null) {
 			HttpPost request = new HttpPost(apiUri);
-			request.setEntity(new StringEntity(mapper.writeValueAsString(p),
+			request.setEntity(new StringEntity(client.getMapper().writeValueAsString(p),
 					ContentType.create("application/json", "utf-8")));
-			try {
-				return client.execute(request, defaultHandler, getApiContext());
-			} catch(RuntimeException e)	{
-				request.abort();
-				throw e;
-			}
+			return request;
 		}
-		return false;
+		return null;
 	}
 	
-	private URI getUri(String rel) {
-		URI selfUri = null;
-		for(Link l : cvSession.links) {
-			if(l.rel.equalsIgnoreCase(rel)) {
-				try {
-					selfUri = new URI(l.href);
-				} catch (URISyntaxException e) {
-					System.err.println("Cannot parse API uri " + l.href);
-				}
-				break;
+	// Properties that can never be added are reported as failed without a request
+	private Map<String, String> validProperties(Map<String, String> properties, Map<String, Boolean> results) {
+		Map<String, String> valid = new LinkedHashMap<String, String>();
+		if(properties == null) {
+			return valid;
+		}
+		Session session = state.get();
+		boolean connected = session.isConnected();
+		for(Map.Entry<String, String> pair : properties.entrySet()) {
+			if(!connected || isNullOrEmpty(pair.getKey()) || isNullOrEmpty(pair.getValue()) ||
+			   session.properties.containsKey(pair.getKey())) {
+				results.put(pair.getKey(), false);
+			} else {
+				valid.put(pair.getKey(), pair.getValue());
 			}
 		}
-		return selfUri;
+		return valid;
 	}
 	
-	private URI getSessionUri() {
-		return getUri("self");
+	private static boolean allAdded(Map<String, Boolean> results) {
+		return !results.isEmpty() && !results.containsValue(false);
+	}
+	
+	private static <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(e);
+		return future;
+	}
+	
+	URI getSessionUri() {
+		return state.get().linkTable.getSelf();
 	}
 	
 	private URI getControlMessageUri() {
-		return getUri(ControlMessageRel);
+		return state.get().linkTable.getControlMessage();
 	}
 	
 	private URI getPayloadUri() {
-		return getUri(PayloadRel);
+		return state.get().linkTable.getPayload();
 	}
 	
-	private static boolean isNullOrEmpty(String value) {
-		return (value == null || value.length() == 0);
+	// Time left of a timeout that started at the given System.nanoTime
+	private static Duration remaining(Duration timeout, long start) throws ChoiceViewTimeoutException {
+		Duration left = timeout.minusNanos(System.nanoTime() - start);
+		if(left.isNegative() || left.isZero()) {
+			throw ChoiceViewClient.expiredException(timeout, null);
+		}
+		return left;
 	}
 	
-	private static void printErrorResponse(HttpResponse response) {
-		System.err.println(String.format("HTTP request failed: %s (%d)",
-				response.getStatusLine().getReasonPhrase(),
-				response.getStatusLine().getStatusCode()));
+	static boolean isNullOrEmpty(String value) {
+		return (value == null || value.length() == 0);
 	}
 }
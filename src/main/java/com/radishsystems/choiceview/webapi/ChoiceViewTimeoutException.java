@@ -0,0 +1,22 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown, or used to complete a future exceptionally, when a request to the
+ * Switch runs out of time: its deadline expires, the connection or a pooled
+ * connection cannot be obtained in time, or the Switch stops responding.
+ */
+public class ChoiceViewTimeoutException extends InterruptedIOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ChoiceViewTimeoutException(String message) {
+		super(message);
+	}
+
+	public ChoiceViewTimeoutException(String message, Throwable cause) {
+		super(message);
+		initCause(cause);
+	}
+}
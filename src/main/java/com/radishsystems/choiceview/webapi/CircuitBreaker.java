@@ -0,0 +1,134 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Tracks the health of one Switch host. After a number of consecutive
+ * failures (no response, or a 502, 503 or 504 response) the breaker opens
+ * and requests to the host fail at once with a CircuitBreakerOpenException.
+ * When the open duration has passed, one trial request is let through; the
+ * breaker closes if it succeeds and opens again if it fails.
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String host;
+	private final List<CircuitBreakerListener> listeners;
+	private volatile int failureThreshold;
+	private volatile long openNanos;
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private boolean trialPending;
+
+	CircuitBreaker(String host, int failureThreshold, Duration openDuration, List<CircuitBreakerListener> listeners) {
+		this.host = host;
+		this.listeners = listeners;
+		configure(failureThreshold, openDuration);
+	}
+
+	public String getHost() { return host; }
+	public synchronized State getState() { return state; }
+	public synchronized int getFailureCount() { return failures; }
+
+	// True while acquire would throw
+	synchronized boolean isRejecting() {
+		if(failureThreshold == 0) {
+			return false;
+		}
+		return (state == State.OPEN && System.nanoTime() - openedAt < openNanos) ||
+			   (state == State.HALF_OPEN && trialPending);
+	}
+
+	// A threshold of zero disables the breaker
+	void configure(int failureThreshold, Duration openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openDuration.toNanos();
+	}
+
+	// Every successful acquire must be followed by succeeded, failed or released
+	void acquire() throws CircuitBreakerOpenException {
+		if(failureThreshold == 0) {
+			return;
+		}
+		State previous;
+		synchronized(this) {
+			previous = state;
+			switch(state) {
+			case CLOSED:
+				return;
+			case OPEN:
+				if(System.nanoTime() - openedAt < openNanos) {
+					throw new CircuitBreakerOpenException(host);
+				}
+				state = State.HALF_OPEN;
+				trialPending = true;
+				break;
+			case HALF_OPEN:
+				if(trialPending) {
+					throw new CircuitBreakerOpenException(host);
+				}
+				trialPending = true;
+				return;
+			}
+		}
+		notifyListeners(previous);
+	}
+
+	void succeeded() {
+		State previous;
+		synchronized(this) {
+			failures = 0;
+			trialPending = false;
+			previous = state;
+			if(state == State.CLOSED) {
+				return;
+			}
+			state = State.CLOSED;
+		}
+		notifyListeners(previous);
+	}
+
+	void failed() {
+		if(failureThreshold == 0) {
+			return;
+		}
+		State previous;
+		synchronized(this) {
+			previous = state;
+			failures++;
+			if(state == State.HALF_OPEN && trialPending) {
+				trialPending = false;
+			} else if(state != State.CLOSED || failures < failureThreshold) {
+				return;
+			}
+			state = State.OPEN;
+			openedAt = System.nanoTime();
+		}
+		notifyListeners(previous);
+	}
+
+	// The request ended without telling anything about the host, e.g. it was cancelled
+	synchronized void released() {
+		if(state == State.HALF_OPEN) {
+			trialPending = false;
+		}
+	}
+
+	private void notifyListeners(State previous) {
+		for(CircuitBreakerListener listener : listeners) {
+			try {
+				listener.stateChanged(this, previous);
+			} catch(RuntimeException e) {
+				System.err.println("Circuit breaker listener failed: " + e);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CircuitBreaker[" + host + ", " + getState() + "]";
+	}
+}
@@ -0,0 +1,6 @@
+package com.radishsystems.choiceview.webapi;
+
+public interface CircuitBreakerListener {
+	// Called on the request thread that caused the transition
+	void stateChanged(CircuitBreaker breaker, CircuitBreaker.State previous);
+}
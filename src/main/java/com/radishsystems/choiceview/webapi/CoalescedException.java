@@ -0,0 +1,22 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+
+/**
+ * Thrown, or used to complete a future exceptionally, when a sendUrl call
+ * was replaced by a newer one before it was sent, on a session with url
+ * coalescing turned on. The Switch never saw the url.
+ */
+public class CoalescedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String url;
+
+	public CoalescedException(String url) {
+		super("Url " + url + " was replaced by a newer one before it was sent.");
+		this.url = url;
+	}
+
+	public String getUrl() { return url; }
+}
@@ -0,0 +1,9 @@
+package com.radishsystems.choiceview.webapi;
+
+public enum ExecutionMode {
+	// Asynchronous methods run on the non-blocking HttpAsyncClient
+	NON_BLOCKING,
+	// Asynchronous methods run the blocking calls on virtual threads (Java 21 or later).
+	// The blocking methods are not affected; they run on the thread that calls them.
+	VIRTUAL_THREADS
+}
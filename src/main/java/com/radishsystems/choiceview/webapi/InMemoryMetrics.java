@@ -0,0 +1,174 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps counters and latency histograms in memory. Install it with
+ * {@link ChoiceViewClient#setMetrics(ChoiceViewMetrics)} and read the
+ * values from any thread, e.g. from a monitoring endpoint.
+ */
+public class InMemoryMetrics implements ChoiceViewMetrics {
+
+	/**
+	 * Lock-free histogram of durations in nanoseconds. Each power of two is
+	 * split into eight buckets, so percentiles are accurate to about 12%.
+	 */
+	public static class Histogram {
+		private static final int SubBuckets = 8;
+		private final AtomicLongArray buckets = new AtomicLongArray(64 * SubBuckets);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+
+		void record(long nanos) {
+			if(nanos < 0) {
+				nanos = 0;
+			}
+			buckets.incrementAndGet(index(nanos));
+			count.increment();
+			total.add(nanos);
+		}
+
+		public long getCount() { return count.sum(); }
+
+		public long getMean() {
+			long n = count.sum();
+			return n == 0 ? 0 : total.sum() / n;
+		}
+
+		// The value below which the given fraction of the durations fall, e.g. 0.99
+		public long getPercentile(double fraction) {
+			if(fraction < 0 || fraction > 1) throw new IllegalArgumentException("Invalid fraction.");
+			long n = 0;
+			for(int i = 0; i < buckets.length(); i++) {
+				n += buckets.get(i);
+			}
+			if(n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * n));
+			long seen = 0;
+			for(int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if(seen >= rank) {
+					return upperBound(i);
+				}
+			}
+			return upperBound(buckets.length() - 1);
+		}
+
+		public long getMax() {
+			for(int i = buckets.length() - 1; i >= 0; i--) {
+				if(buckets.get(i) > 0) {
+					return upperBound(i);
+				}
+			}
+			return 0;
+		}
+
+		static int index(long value) {
+			if(value < SubBuckets) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - 3)) & (SubBuckets - 1);
+			return (exponent - 2) * SubBuckets + sub;
+		}
+
+		static long upperBound(int index) {
+			if(index < SubBuckets) {
+				return index;
+			}
+			int exponent = index / SubBuckets + 2;
+			long lower = (long) (SubBuckets + index % SubBuckets) << (exponent - 3);
+			return lower + (1L << (exponent - 3)) - 1;
+		}
+	}
+
+	public static class OperationStats {
+		private final Histogram latency = new Histogram();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder bytesSent = new LongAdder();
+		private final LongAdder bytesReceived = new LongAdder();
+		private final ConcurrentMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<Integer, LongAdder>();
+
+		// Latency of every request, including failed ones
+		public Histogram getLatency() { return latency; }
+		public long getRequestCount() { return latency.getCount(); }
+		public long getFailureCount() { return failures.sum(); }
+		public long getBytesSent() { return bytesSent.sum(); }
+		public long getBytesReceived() { return bytesReceived.sum(); }
+
+		public Map<Integer, Long> getStatusCodes() {
+			Map<Integer, Long> codes = new TreeMap<Integer, Long>();
+			for(Map.Entry<Integer, LongAdder> entry : statusCodes.entrySet()) {
+				codes.put(entry.getKey(), entry.getValue().sum());
+			}
+			return codes;
+		}
+
+		public long getStatusCount(int statusCode) {
+			LongAdder n = statusCodes.get(statusCode);
+			return n == null ? 0 : n.sum();
+		}
+	}
+
+	private final Map<Operation, OperationStats> operations = new EnumMap<Operation, OperationStats>(Operation.class);
+	private final Histogram leaseWait = new Histogram();
+	private final AtomicInteger activeSessions = new AtomicInteger();
+	private final LongAdder startedSessions = new LongAdder();
+
+	public InMemoryMetrics() {
+		// The map is filled once and only read afterwards
+		for(Operation operation : Operation.values()) {
+			operations.put(operation, new OperationStats());
+		}
+	}
+
+	public void requestCompleted(Operation operation, int statusCode, long latencyNanos,
+			long bytesSent, long bytesReceived) {
+		OperationStats stats = operations.get(operation);
+		stats.latency.record(latencyNanos);
+		stats.bytesSent.add(bytesSent);
+		stats.bytesReceived.add(bytesReceived);
+		LongAdder n = stats.statusCodes.get(statusCode);
+		if(n == null) {
+			LongAdder added = new LongAdder();
+			n = stats.statusCodes.putIfAbsent(statusCode, added);
+			if(n == null) {
+				n = added;
+			}
+		}
+		n.increment();
+	}
+
+	public void requestFailed(Operation operation, Throwable error, long latencyNanos) {
+		OperationStats stats = operations.get(operation);
+		stats.latency.record(latencyNanos);
+		stats.failures.increment();
+	}
+
+	public void connectionLeased(long waitNanos) {
+		leaseWait.record(waitNanos);
+	}
+
+	public void sessionActivated() {
+		activeSessions.incrementAndGet();
+		startedSessions.increment();
+	}
+
+	public void sessionDeactivated() {
+		activeSessions.decrementAndGet();
+	}
+
+	public OperationStats getStats(Operation operation) { return operations.get(operation); }
+	public Histogram getLeaseWait() { return leaseWait; }
+	public int getActiveSessions() { return activeSessions.get(); }
+	public long getStartedSessions() { return startedSessions.sum(); }
+}
@@ -0,0 +1,82 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The API links of a session, parsed once when the session is read. Rel names are case-insensitive.
+final class LinkTable {
+
+	static final LinkTable EMPTY = new LinkTable(Collections.<String, URI>emptyMap());
+
+	private final Map<String, URI> uris;
+	private final URI self;
+	private final URI controlMessage;
+	private final URI payload;
+	private final String transferPrefix;
+	private final Map<String, URI> transferUris = new ConcurrentHashMap<String, URI>(4);
+
+	private LinkTable(Map<String, URI> uris) {
+		this.uris = uris;
+		self = uris.get(key(ChoiceViewSession.SelfRel));
+		controlMessage = uris.get(key(ChoiceViewSession.ControlMessageRel));
+		payload = uris.get(key(ChoiceViewSession.PayloadRel));
+		transferPrefix = self != null ? self.toString() + "/transfer/" : null;
+	}
+
+	static LinkTable resolve(List<ChoiceViewSession.Link> links) {
+		if(links.isEmpty()) {
+			return EMPTY;
+		}
+		Map<String, URI> uris = new HashMap<String, URI>(links.size() * 2);
+		for(ChoiceViewSession.Link l : links) {
+			if(l.rel == null || l.href == null) {
+				continue;
+			}
+			String rel = key(l.rel);
+			if(uris.containsKey(rel)) {
+				continue;
+			}
+			try {
+				uris.put(rel, new URI(l.href));
+			} catch (URISyntaxException e) {
+				System.err.println("Cannot parse API uri " + l.href);
+				uris.put(rel, null);
+			}
+		}
+		return new LinkTable(uris);
+	}
+
+	URI get(String rel) {
+		return uris.get(key(rel));
+	}
+
+	URI getSelf() { return self; }
+	URI getControlMessage() { return controlMessage; }
+	URI getPayload() { return payload; }
+
+	URI getTransfer(String accountId) {
+		if(transferPrefix == null) {
+			return null;
+		}
+		URI uri = transferUris.get(accountId);
+		if(uri == null) {
+			try {
+				uri = new URI(transferPrefix + accountId);
+			} catch (URISyntaxException e) {
+				return null;
+			}
+			transferUris.put(accountId, uri);
+		}
+		return uri;
+	}
+
+	private static String key(String rel) {
+		return rel.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,69 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the Switch that a ChoiceViewClient starts a new session on. Once
+ * started, a session stays on that Switch, since all further requests follow
+ * the links in the session resource.
+ */
+public interface LoadBalancingPolicy {
+
+	// The endpoints are healthy ones, unless none are, and the list is never empty.
+	// Called concurrently from every thread that starts a session.
+	SwitchEndpoint choose(List<SwitchEndpoint> endpoints);
+
+	static LoadBalancingPolicy roundRobin() {
+		final AtomicInteger next = new AtomicInteger();
+		return endpoints -> endpoints.get(Math.floorMod(next.getAndIncrement(), endpoints.size()));
+	}
+
+	// Ties are broken in turn, so that idle endpoints share the new sessions
+	static LoadBalancingPolicy leastOutstandingRequests() {
+		final AtomicInteger next = new AtomicInteger();
+		return endpoints -> {
+			int start = next.getAndIncrement();
+			SwitchEndpoint best = null;
+			for(int i = 0; i < endpoints.size(); i++) {
+				SwitchEndpoint endpoint = endpoints.get(Math.floorMod(start + i, endpoints.size()));
+				if(best == null || endpoint.getOutstandingRequests() < best.getOutstandingRequests()) {
+					best = endpoint;
+				}
+			}
+			return best;
+		};
+	}
+
+	// Chooses at random, weighted by the inverse of the average latency. An endpoint
+	// that has not answered yet is weighted as the fastest one, so that it gets measured.
+	static LoadBalancingPolicy latencyWeighted() {
+		return endpoints -> {
+			long fastest = Long.MAX_VALUE;
+			for(SwitchEndpoint endpoint : endpoints) {
+				long latency = endpoint.getAverageLatency().toNanos();
+				if(latency > 0 && latency < fastest) {
+					fastest = latency;
+				}
+			}
+			if(fastest == Long.MAX_VALUE) {
+				fastest = 1;
+			}
+			double[] weights = new double[endpoints.size()];
+			double total = 0;
+			for(int i = 0; i < weights.length; i++) {
+				long latency = endpoints.get(i).getAverageLatency().toNanos();
+				total += weights[i] = 1.0 / (latency > 0 ? latency : fastest);
+			}
+			double r = ThreadLocalRandom.current().nextDouble() * total;
+			for(int i = 0; i < weights.length - 1; i++) {
+				r -= weights[i];
+				if(r < 0) {
+					return endpoints.get(i);
+				}
+			}
+			return endpoints.get(weights.length - 1);
+		};
+	}
+}
@@ -0,0 +1,40 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+
+// Connection pool of the blocking client that reports how long each lease waited
+final class MeteredConnectionManager extends PoolingClientConnectionManager {
+
+	private volatile ChoiceViewMetrics metrics = ChoiceViewMetrics.NONE;
+
+	void setMetrics(ChoiceViewMetrics metrics) { this.metrics = metrics; }
+
+	@Override
+	public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+		final ClientConnectionRequest request = super.requestConnection(route, state);
+		final ChoiceViewMetrics m = metrics;
+		if(m == ChoiceViewMetrics.NONE) {
+			return request;
+		}
+		return new ClientConnectionRequest() {
+			public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+					throws InterruptedException, ConnectionPoolTimeoutException {
+				long start = System.nanoTime();
+				try {
+					return request.getConnection(timeout, unit);
+				} finally {
+					m.connectionLeased(System.nanoTime() - start);
+				}
+			}
+			public void abortRequest() {
+				request.abortRequest();
+			}
+		};
+	}
+}
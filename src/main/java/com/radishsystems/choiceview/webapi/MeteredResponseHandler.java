@@ -0,0 +1,116 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+
+// Times one request from the moment it is created and reports it exactly once,
+// either with the response status and body sizes or as failed.
+final class MeteredResponseHandler<T> implements ResponseHandler<T> {
+
+	private final ChoiceViewMetrics metrics;
+	private final Operation operation;
+	private final HttpUriRequest request;
+	private final ResponseHandler<T> handler;
+	private final long start = System.nanoTime();
+	private final AtomicBoolean reported = new AtomicBoolean();
+
+	MeteredResponseHandler(ChoiceViewMetrics metrics, Operation operation,
+			HttpUriRequest request, ResponseHandler<T> handler) {
+		this.metrics = metrics;
+		this.operation = operation;
+		this.request = request;
+		this.handler = handler;
+	}
+
+	public T handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+		CountingEntity counted = null;
+		if(response.getEntity() != null) {
+			counted = new CountingEntity(response.getEntity());
+			response.setEntity(counted);
+		}
+		try {
+			return handler.handleResponse(response);
+		} finally {
+			if(reported.compareAndSet(false, true)) {
+				metrics.requestCompleted(operation, response.getStatusLine().getStatusCode(),
+						System.nanoTime() - start, bytesSent(), counted != null ? counted.count : 0);
+			}
+		}
+	}
+
+	void failed(Throwable error) {
+		if(reported.compareAndSet(false, true)) {
+			metrics.requestFailed(operation, error, System.nanoTime() - start);
+		}
+	}
+
+	private long bytesSent() {
+		if(request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if(entity != null && entity.getContentLength() > 0) {
+				return entity.getContentLength();
+			}
+		}
+		return 0;
+	}
+
+	private static final class CountingEntity extends HttpEntityWrapper {
+		private long count;
+		private InputStream content;
+
+		CountingEntity(HttpEntity entity) {
+			super(entity);
+		}
+
+		// The handlers ask for the stream again to close it
+		@Override
+		public InputStream getContent() throws IOException {
+			if(content == null) {
+				content = new FilterInputStream(super.getContent()) {
+					@Override
+					public int read() throws IOException {
+						int b = super.read();
+						if(b >= 0) {
+							count++;
+						}
+						return b;
+					}
+					@Override
+					public int read(byte[] buffer, int offset, int length) throws IOException {
+						int n = super.read(buffer, offset, length);
+						if(n > 0) {
+							count += n;
+						}
+						return n;
+					}
+				};
+			}
+			return content;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			InputStream in = getContent();
+			try {
+				byte[] buffer = new byte[4096];
+				int n;
+				while((n = in.read(buffer)) != -1) {
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.Collections;
+import java.util.Map;
+
+// A webhook call from the Switch, matched to the session it belongs to
+public class Notification {
+
+	public enum Type { STATE_CHANGE, NEW_MESSAGE }
+
+	private final Type type;
+	private final ChoiceViewSession session;
+	private final Map<String, String> parameters;
+
+	Notification(Type type, ChoiceViewSession session, Map<String, String> parameters) {
+		this.type = type;
+		this.session = session;
+		this.parameters = Collections.unmodifiableMap(parameters);
+	}
+
+	public Type getType() { return type; }
+	public ChoiceViewSession getSession() { return session; }
+	// Query string and form parameters sent by the Switch
+	public Map<String, String> getParameters() { return parameters; }
+}
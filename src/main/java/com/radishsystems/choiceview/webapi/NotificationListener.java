@@ -0,0 +1,5 @@
+package com.radishsystems.choiceview.webapi;
+
+public interface NotificationListener {
+	void notificationReceived(Notification notification);
+}
@@ -0,0 +1,281 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP listener for the stateChangeUri and newMessageUri webhooks.
+ * Handles both the 'basic' GET and the 'CCXML' form POST notification types
+ * and passes each notification to the registered listeners.
+ */
+public class NotificationReceiver implements Closeable {
+
+	final static String StateChangePath = "/statechange";
+	final static String NewMessagePath = "/newmessage";
+	final static String CallIdParam = "callId";
+	final static String SessionIdParam = "sessionId";
+	final static int DefaultThreadCount = 2;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final URI externalUri;
+	private final SessionRegistry registry;
+	private final List<NotificationListener> listeners = new CopyOnWriteArrayList<NotificationListener>();
+	private volatile boolean refreshOnStateChange = true;
+
+	// The external uri is the address of this listener as seen from the Switch.
+	// Notifications are matched to the sessions in the registry, which can be
+	// shared with the rest of the application.
+	public NotificationReceiver(InetSocketAddress address, URI externalUri, int threadCount,
+			SessionRegistry registry) throws IOException {
+		if(address == null) throw new IllegalArgumentException("No listen address specified.");
+		if(threadCount < 1) throw new IllegalArgumentException("Invalid thread count.");
+		if(registry == null) throw new IllegalArgumentException("No session registry specified.");
+		this.registry = registry;
+		server = HttpServer.create(address, 0);
+		if(externalUri == null) {
+			externalUri = URI.create("http://" + InetAddress.getLocalHost().getHostName() + ":" +
+					server.getAddress().getPort() + "/choiceview");
+		}
+		if(!externalUri.isAbsolute() || externalUri.isOpaque()) {
+			throw new IllegalArgumentException("Invalid external uri!");
+		}
+		this.externalUri = externalUri;
+		executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "choiceview-notifications-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		String basePath = externalUri.getPath() == null ? "" : externalUri.getPath();
+		server.createContext(basePath + StateChangePath, new Handler(Notification.Type.STATE_CHANGE));
+		server.createContext(basePath + NewMessagePath, new Handler(Notification.Type.NEW_MESSAGE));
+	}
+
+	public NotificationReceiver(InetSocketAddress address, URI externalUri, int threadCount) throws IOException {
+		this(address, externalUri, threadCount, new SessionRegistry());
+	}
+
+	public NotificationReceiver(int port, URI externalUri) throws IOException {
+		this(new InetSocketAddress(port), externalUri, DefaultThreadCount);
+	}
+
+	public NotificationReceiver(int port) throws IOException {
+		this(port, null);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void close() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	public InetSocketAddress getAddress() { return server.getAddress(); }
+	public SessionRegistry getRegistry() { return registry; }
+
+	public URI getStateChangeUri(String callId) { return callbackUri(StateChangePath, callId); }
+	public URI getNewMessageUri(String callId) { return callbackUri(NewMessagePath, callId); }
+
+	// If set, a session is updated from the Switch before listeners hear about its state change
+	public boolean isRefreshOnStateChange() { return refreshOnStateChange; }
+	public void setRefreshOnStateChange(boolean refresh) { refreshOnStateChange = refresh; }
+
+	public void addListener(NotificationListener listener) { listeners.add(listener); }
+	public void removeListener(NotificationListener listener) { listeners.remove(listener); }
+
+	// Starts the session with both webhooks pointing at this receiver
+	public boolean startSession(ChoiceViewSession session, String callerId, String callId,
+			String notificationType) throws IOException {
+		if(ChoiceViewSession.isNullOrEmpty(callId)) {
+			throw new IllegalArgumentException("A call id is needed to match notifications to the session.");
+		}
+		registry.register(session, callId, true);
+		boolean started = false;
+		try {
+			started = session.startSession(callerId, callId, getStateChangeUri(callId),
+					getNewMessageUri(callId), notificationType);
+		} finally {
+			if(started) {
+				session.setMessageNotified(true);
+				session.setStateNotified(true);
+			} else {
+				registry.remove(session);
+			}
+		}
+		return started;
+	}
+
+	// Sessions are dropped by the registry when they are disconnected or transferred
+	public void register(ChoiceViewSession session) {
+		registry.register(session);
+	}
+
+	public void unregister(ChoiceViewSession session) {
+		registry.remove(session);
+		session.setMessageNotified(false);
+		session.setStateNotified(false);
+	}
+
+	public int getSessionCount() { return registry.size(); }
+
+	ChoiceViewSession findSession(Map<String, String> params) {
+		ChoiceViewSession session = null;
+		String callId = params.get(CallIdParam);
+		if(callId != null) {
+			session = registry.findByCallId(callId);
+		}
+		String sessionId = params.get(SessionIdParam);
+		if(session == null && sessionId != null) {
+			try {
+				session = registry.findBySessionId(Integer.parseInt(sessionId.trim()));
+			} catch(NumberFormatException e) {
+				return null;
+			}
+		}
+		return session;
+	}
+
+	private void dispatch(final Notification notification) {
+		if(notification.getType() == Notification.Type.STATE_CHANGE && refreshOnStateChange) {
+			notification.getSession().updateSessionAsync().whenComplete((updated, e) -> {
+				if(e != null) {
+					System.err.println("Cannot update session after state change: " + e.getMessage());
+				} else if(!notification.getSession().getSessionStatus().isActive()) {
+					unregister(notification.getSession());
+				}
+				executor.execute(() -> notifyListeners(notification));
+			});
+		} else {
+			if(notification.getType() == Notification.Type.NEW_MESSAGE) {
+				notification.getSession().controlMessageNotified();
+			} else {
+				notification.getSession().stateChangeNotified();
+			}
+			notifyListeners(notification);
+		}
+	}
+
+	private void notifyListeners(Notification notification) {
+		for(NotificationListener listener : listeners) {
+			try {
+				listener.notificationReceived(notification);
+			} catch(RuntimeException e) {
+				System.err.println("Notification listener failed: " + e);
+			}
+		}
+	}
+
+	private URI callbackUri(String path, String callId) {
+		String uri = externalUri.toString() + path;
+		if(!ChoiceViewSession.isNullOrEmpty(callId)) {
+			uri += "?" + CallIdParam + "=" + encode(callId);
+		}
+		return URI.create(uri);
+	}
+
+	private class Handler implements HttpHandler {
+		private final Notification.Type type;
+
+		Handler(Notification.Type type) {
+			this.type = type;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String method = exchange.getRequestMethod().toUpperCase();
+				if(!method.equals("GET") && !method.equals("POST")) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				Map<String, String> params = new HashMap<String, String>();
+				if(method.equals("POST")) {
+					// CCXML basichttp events are sent as a form
+					String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+					if(contentType != null && contentType.toLowerCase().startsWith("application/x-www-form-urlencoded")) {
+						parseParameters(readBody(exchange.getRequestBody()), params);
+					}
+				}
+				// Parameters in our own callback uri take precedence
+				parseParameters(exchange.getRequestURI().getRawQuery(), params);
+
+				ChoiceViewSession session = findSession(params);
+				if(session == null) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+				exchange.sendResponseHeaders(200, -1);
+				dispatch(new Notification(type, session, params));
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int count;
+		while((count = in.read(buffer)) != -1) {
+			body.write(buffer, 0, count);
+		}
+		return body.toString("UTF-8");
+	}
+
+	static void parseParameters(String encoded, Map<String, String> params) {
+		if(encoded == null || encoded.length() == 0) {
+			return;
+		}
+		for(String pair : encoded.split("&")) {
+			int separator = pair.indexOf('=');
+			String name = separator < 0 ? pair : pair.substring(0, separator);
+			String value = separator < 0 ? "" : pair.substring(separator + 1);
+			if(name.length() > 0) {
+				params.put(decode(name), decode(value));
+			}
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} catch (IllegalArgumentException e) {
+			return value;
+		}
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.radishsystems.choiceview.webapi;
+
+// The API calls reported to ChoiceViewMetrics
+public enum Operation {
+	START_SESSION,
+	END_SESSION,
+	UPDATE_SESSION,
+	TRANSFER_SESSION,
+	SEND_URL,
+	SEND_TEXT,
+	GET_CONTROL_MESSAGE,
+	CLEAR_CONTROL_MESSAGE,
+	UPDATE_PROPERTIES,
+	ADD_PROPERTIES
+}
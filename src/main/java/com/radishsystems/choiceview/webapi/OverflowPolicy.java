@@ -0,0 +1,13 @@
+package com.radishsystems.choiceview.webapi;
+
+/**
+ * What a SessionSender does with a new call when the queue of its session is full.
+ */
+public enum OverflowPolicy {
+	// The caller waits until the queue has room
+	BLOCK,
+	// The oldest queued call is dropped to make room; its future fails with a SendQueueFullException
+	DROP_OLDEST,
+	// The new call is refused with a SendQueueFullException
+	FAIL
+}
@@ -0,0 +1,89 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * Decides which failed requests are sent again and how long to wait before
+ * each retry. GET and DELETE requests are retried after an I/O error or a
+ * 502, 503 or 504 response. Other requests, such as the POSTs of sendUrl and
+ * addProperty, are only retried if the connection to the Switch could not be
+ * made, because the Switch cannot have seen them.
+ */
+public class RetryPolicy {
+
+	// Every request is sent once
+	public static final RetryPolicy NONE = new RetryPolicy(1, Duration.ZERO, Duration.ZERO, 0);
+	public static final RetryPolicy DEFAULT = new RetryPolicy(3, Duration.ofMillis(100), Duration.ofSeconds(2), 0.5);
+
+	private final int maxAttempts;
+	private final Duration initialBackoff;
+	private final Duration maxBackoff;
+	private final double jitter;
+
+	// The backoff doubles after every attempt up to maxBackoff, and is then
+	// shortened randomly by up to the jitter fraction.
+	public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double jitter) {
+		if(maxAttempts < 1) throw new IllegalArgumentException("At least one attempt is needed.");
+		if(initialBackoff == null || initialBackoff.isNegative()) throw new IllegalArgumentException("Invalid initial backoff.");
+		if(maxBackoff == null || maxBackoff.compareTo(initialBackoff) < 0) throw new IllegalArgumentException("Invalid maximum backoff.");
+		if(jitter < 0 || jitter > 1) throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.jitter = jitter;
+	}
+
+	public int getMaxAttempts() { return maxAttempts; }
+	public Duration getInitialBackoff() { return initialBackoff; }
+	public Duration getMaxBackoff() { return maxBackoff; }
+	public double getJitter() { return jitter; }
+
+	// Wait before the next attempt, after the given number of failed attempts
+	public Duration getBackoff(int failedAttempts) {
+		long nanos = initialBackoff.toNanos();
+		for(int i = 1; i < failedAttempts && nanos < maxBackoff.toNanos(); i++) {
+			nanos *= 2;
+		}
+		nanos = Math.min(nanos, maxBackoff.toNanos());
+		if(jitter > 0) {
+			nanos -= (long) (nanos * jitter * ThreadLocalRandom.current().nextDouble());
+		}
+		return Duration.ofNanos(nanos);
+	}
+
+	public boolean isRetriable(String method, int statusCode) {
+		return isIdempotent(method) && isUnavailable(statusCode);
+	}
+
+	public boolean isRetriable(String method, IOException error) {
+		if(isConnectFailure(error)) {
+			return true;
+		}
+		// Timeouts already used up the time the caller allowed for the request
+		return isIdempotent(method) && !(error instanceof InterruptedIOException) &&
+			   !(error instanceof CircuitBreakerOpenException);
+	}
+
+	static boolean isIdempotent(String method) {
+		return "GET".equalsIgnoreCase(method) || "DELETE".equalsIgnoreCase(method) ||
+			   "HEAD".equalsIgnoreCase(method) || "PUT".equalsIgnoreCase(method);
+	}
+
+	// Responses that mean the Switch, or a proxy in front of it, could not handle the request
+	static boolean isUnavailable(int statusCode) {
+		return statusCode == 502 || statusCode == 503 || statusCode == 504;
+	}
+
+	// The request never reached the Switch
+	static boolean isConnectFailure(IOException error) {
+		return error instanceof ConnectException ||
+			   (error instanceof ConnectTimeoutException && !(error instanceof ConnectionPoolTimeoutException));
+	}
+}
@@ -0,0 +1,21 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a SessionSender when the queue of a session is full, or used to
+ * complete the future of a call that was dropped to make room for a newer one.
+ */
+public class SendQueueFullException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int sessionId;
+
+	public SendQueueFullException(int sessionId, String message) {
+		super(message);
+		this.sessionId = sessionId;
+	}
+
+	public int getSessionId() { return sessionId; }
+}
@@ -0,0 +1,194 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Ends or transfers many sessions at once, for example to drain an IVR node
+ * before a deploy. The requests are sent asynchronously over the connection
+ * pools of the sessions' clients, at most maxConcurrent at a time, and the
+ * whole batch can be limited by a deadline. The result tells what happened
+ * to each session.
+ */
+public class SessionBatch {
+
+	final static int DefaultMaxConcurrent = 16;
+
+	private final List<ChoiceViewSession> sessions;
+	private volatile int maxConcurrent = DefaultMaxConcurrent;
+	private volatile Duration deadline;
+
+	public SessionBatch(Collection<ChoiceViewSession> sessions) {
+		if(sessions == null) throw new IllegalArgumentException("No sessions specified.");
+		this.sessions = new ArrayList<ChoiceViewSession>(new LinkedHashSet<ChoiceViewSession>(sessions));
+	}
+
+	public List<ChoiceViewSession> getSessions() { return sessions; }
+
+	public int getMaxConcurrent() { return maxConcurrent; }
+	public void setMaxConcurrent(int maxConcurrent) {
+		if(maxConcurrent < 1) throw new IllegalArgumentException("At least one request must be allowed.");
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	// Requests still in progress when the deadline passes are aborted, and sessions
+	// not yet sent are skipped. Without a deadline, each request has the request
+	// timeout of its client.
+	public Duration getDeadline() { return deadline; }
+	public void setDeadline(Duration deadline) {
+		if(deadline != null && (deadline.isNegative() || deadline.isZero())) {
+			throw new IllegalArgumentException("Deadline must be positive.");
+		}
+		this.deadline = deadline;
+	}
+
+	public BatchResult endSessions() throws IOException {
+		return await(endSessionsAsync());
+	}
+
+	public BatchResult transferSessions(String accountId) throws IOException {
+		return await(transferSessionsAsync(accountId));
+	}
+
+	// The future is never completed exceptionally; cancelling it cancels the requests in progress
+	public CompletableFuture<BatchResult> endSessionsAsync() {
+		return new Run((session, timeout) -> session.endSessionAsync(timeout)).start();
+	}
+
+	public CompletableFuture<BatchResult> transferSessionsAsync(final String accountId) {
+		if(ChoiceViewSession.isNullOrEmpty(accountId)) throw new IllegalArgumentException("No account id specified.");
+		return new Run((session, timeout) -> session.transferSessionAsync(accountId, timeout)).start();
+	}
+
+	private static BatchResult await(CompletableFuture<BatchResult> result) throws IOException {
+		try {
+			return result.get();
+		} catch(InterruptedException e) {
+			result.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the sessions.");
+		} catch(ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// One execution of the batch. Each completed request sends the next one, so no
+	// thread waits while the requests are in progress.
+	private class Run {
+		private final BiFunction<ChoiceViewSession, Duration, CompletableFuture<Boolean>> operation;
+		private final Iterator<ChoiceViewSession> next = sessions.iterator();
+		private final Map<ChoiceViewSession, BatchResult.Outcome> outcomes =
+				new ConcurrentHashMap<ChoiceViewSession, BatchResult.Outcome>();
+		private final Map<ChoiceViewSession, Throwable> errors = new ConcurrentHashMap<ChoiceViewSession, Throwable>();
+		private final Map<CompletableFuture<Boolean>, Boolean> inProgress =
+				new ConcurrentHashMap<CompletableFuture<Boolean>, Boolean>();
+		private final AtomicInteger remaining = new AtomicInteger(sessions.size());
+		private final CompletableFuture<BatchResult> result = new CompletableFuture<BatchResult>();
+		private final Duration limit = deadline;
+		private final long start = System.nanoTime();
+
+		Run(BiFunction<ChoiceViewSession, Duration, CompletableFuture<Boolean>> operation) {
+			this.operation = operation;
+		}
+
+		CompletableFuture<BatchResult> start() {
+			result.whenComplete((done, e) -> {
+				if(result.isCancelled()) {
+					for(CompletableFuture<Boolean> request : inProgress.keySet()) {
+						request.cancel(false);
+					}
+				}
+			});
+			if(sessions.isEmpty()) {
+				result.complete(new BatchResult(new LinkedHashMap<ChoiceViewSession, BatchResult.Outcome>(), errors));
+			}
+			for(int i = Math.min(maxConcurrent, sessions.size()); i > 0; i--) {
+				sendNext();
+			}
+			return result;
+		}
+
+		private void sendNext() {
+			while(true) {
+				ChoiceViewSession session;
+				synchronized(next) {
+					if(!next.hasNext()) {
+						return;
+					}
+					session = next.next();
+				}
+				Duration timeout = null;
+				if(limit != null) {
+					timeout = limit.minusNanos(System.nanoTime() - start);
+					if(timeout.isNegative() || timeout.isZero()) {
+						finished(session, BatchResult.Outcome.SKIPPED, null);
+						continue;
+					}
+				}
+				if(result.isDone()) {
+					finished(session, BatchResult.Outcome.SKIPPED, null);
+					continue;
+				}
+				CompletableFuture<Boolean> request;
+				try {
+					request = operation.apply(session, timeout);
+				} catch(RuntimeException e) {
+					finished(session, BatchResult.Outcome.FAILED, e);
+					continue;
+				}
+				// Sessions that are not connected complete at once, and are handled here
+				// rather than by a chain of callbacks
+				if(request.isDone()) {
+					finished(session, request);
+					continue;
+				}
+				inProgress.put(request, Boolean.TRUE);
+				request.whenComplete((sent, e) -> {
+					inProgress.remove(request);
+					finished(session, request);
+					sendNext();
+				});
+				return;
+			}
+		}
+
+		private void finished(ChoiceViewSession session, CompletableFuture<Boolean> request) {
+			try {
+				finished(session, request.join() ? BatchResult.Outcome.SUCCEEDED : BatchResult.Outcome.REJECTED, null);
+			} catch(CompletionException e) {
+				finished(session, BatchResult.Outcome.FAILED, e.getCause() != null ? e.getCause() : e);
+			} catch(RuntimeException e) {
+				finished(session, BatchResult.Outcome.FAILED, e);
+			}
+		}
+
+		private void finished(ChoiceViewSession session, BatchResult.Outcome outcome, Throwable error) {
+			outcomes.put(session, outcome);
+			if(error != null) {
+				errors.put(session, error);
+			}
+			if(remaining.decrementAndGet() == 0) {
+				Map<ChoiceViewSession, BatchResult.Outcome> ordered =
+						new LinkedHashMap<ChoiceViewSession, BatchResult.Outcome>();
+				for(ChoiceViewSession s : sessions) {
+					ordered.put(s, outcomes.get(s));
+				}
+				result.complete(new BatchResult(ordered, errors));
+			}
+		}
+	}
+}
@@ -0,0 +1,7 @@
+package com.radishsystems.choiceview.webapi;
+
+public interface SessionChangeListener {
+	// Called when the status, network quality or network type of a polled session changes
+	void sessionChanged(ChoiceViewSession session, String previousStatus,
+			String previousNetworkQuality, String previousNetworkType);
+}
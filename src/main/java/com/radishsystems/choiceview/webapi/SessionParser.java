@@ -0,0 +1,171 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+// Reads API responses straight from the response stream, field by field, without
+// buffering the body or going through the data binding layer. Unknown fields are skipped.
+final class SessionParser {
+
+	private final JsonFactory factory;
+
+	SessionParser(JsonFactory factory) {
+		this.factory = factory;
+	}
+
+	ChoiceViewSession.Session readSession(InputStream content) throws IOException {
+		JsonParser parser = factory.createJsonParser(content);
+		try {
+			return parser.nextToken() == null ? null : readSession(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	ChoiceViewSession.Payload readPayload(InputStream content) throws IOException {
+		JsonParser parser = factory.createJsonParser(content);
+		try {
+			return parser.nextToken() == null ? null : readPayload(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	// Returns null if the response body is empty
+	Map<String, String> readControlMessage(InputStream content) throws IOException {
+		JsonParser parser = factory.createJsonParser(content);
+		try {
+			if(parser.nextToken() == null) {
+				return null;
+			}
+			Map<String, String> message = new HashMap<String, String>();
+			readStringMap(parser, message);
+			return message;
+		} finally {
+			parser.close();
+		}
+	}
+
+	static ChoiceViewSession.Session readSession(JsonParser parser) throws IOException {
+		expect(parser, JsonToken.START_OBJECT);
+		ChoiceViewSession.Session session = new ChoiceViewSession.Session();
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if("sessionId".equals(field)) {
+				session.sessionId = readInt(parser, value);
+			} else if("callerId".equals(field)) {
+				session.callerId = readString(parser, value);
+			} else if("callId".equals(field)) {
+				session.callId = readString(parser, value);
+			} else if("status".equals(field)) {
+				session.status = readString(parser, value);
+				session.sessionStatus = SessionStatus.parse(session.status);
+			} else if("networkQuality".equals(field)) {
+				session.networkQuality = readString(parser, value);
+			} else if("networkType".equals(field)) {
+				session.networkType = readString(parser, value);
+			} else if("properties".equals(field)) {
+				readStringMap(parser, session.properties);
+			} else if("links".equals(field)) {
+				readLinks(parser, session.links);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		session.linkTable = LinkTable.resolve(session.links);
+		return session;
+	}
+
+	static ChoiceViewSession.Payload readPayload(JsonParser parser) throws IOException {
+		expect(parser, JsonToken.START_OBJECT);
+		ChoiceViewSession.Payload payload = new ChoiceViewSession.Payload();
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if("properties".equals(field)) {
+				readStringMap(parser, payload.properties);
+			} else if("links".equals(field)) {
+				readLinks(parser, payload.links);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return payload;
+	}
+
+	static void readStringMap(JsonParser parser, Map<String, String> map) throws IOException {
+		if(parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+			return;
+		}
+		expect(parser, JsonToken.START_OBJECT);
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			map.put(name, readString(parser, parser.nextToken()));
+		}
+	}
+
+	static void readLinks(JsonParser parser, List<ChoiceViewSession.Link> links) throws IOException {
+		if(parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+			return;
+		}
+		expect(parser, JsonToken.START_ARRAY);
+		while(parser.nextToken() == JsonToken.START_OBJECT) {
+			String rel = "", href = "";
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if("rel".equals(field)) {
+					rel = readString(parser, value);
+				} else if("href".equals(field)) {
+					href = readString(parser, value);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			links.add(new ChoiceViewSession.Link(rel, href));
+		}
+	}
+
+	private static String readString(JsonParser parser, JsonToken value) throws IOException {
+		if(value == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if(value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+			throw new JsonParseException("Expected a string value", parser.getCurrentLocation());
+		}
+		return parser.getText();
+	}
+
+	private static int readInt(JsonParser parser, JsonToken value) throws IOException {
+		if(value == JsonToken.VALUE_NUMBER_INT) {
+			return parser.getIntValue();
+		}
+		if(value == JsonToken.VALUE_STRING) {
+			try {
+				return Integer.parseInt(parser.getText().trim());
+			} catch(NumberFormatException e) {
+				throw new JsonParseException("Expected an integer value", parser.getCurrentLocation());
+			}
+		}
+		if(value == JsonToken.VALUE_NULL) {
+			return 0;
+		}
+		throw new JsonParseException("Expected an integer value", parser.getCurrentLocation());
+	}
+
+	private static void expect(JsonParser parser, JsonToken token) throws IOException {
+		if(parser.getCurrentToken() != token) {
+			throw new JsonParseException("Expected " + token + " but found " + parser.getCurrentToken(),
+					parser.getCurrentLocation());
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Queues the sendUrl, sendText and addProperty calls of one IVR step and sends
+ * them together when execute is called. The requests are written back to back
+ * on one kept-alive connection (HTTP/1.1 pipelining) and the responses are
+ * read in order, which saves a connection lease and a round trip per call. If
+ * the Switch does not keep the connection open, or pipelining is turned off on
+ * the client, the requests are sent one at a time in the same order.
+ * A pipeline is meant for one thread and can be executed once.
+ * <p>
+ * The calls are POSTs, which are not idempotent. If the connection fails after
+ * the requests were written, every call still unanswered fails with the error,
+ * but the Switch may already have acted on any of them: a failed call of an
+ * executed pipeline means its outcome is unknown, not that it did not happen.
+ * Such calls are not sent again. Check the session, or send the call again if
+ * repeating it is harmless, e.g. a sendUrl.
+ */
+public class SessionPipeline {
+
+	private final ChoiceViewSession session;
+	private final List<Operation> operations = new ArrayList<Operation>();
+	private final List<HttpUriRequest> requests = new ArrayList<HttpUriRequest>();
+	private final List<CompletableFuture<Boolean>> sent = new ArrayList<CompletableFuture<Boolean>>();
+	private final List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+	private boolean executed;
+
+	SessionPipeline(ChoiceViewSession session) {
+		this.session = session;
+	}
+
+	// Each method returns a future that completes when the pipeline has been executed.
+	// Calls that would send nothing, e.g. on a session that is not connected, complete
+	// with false at once, as the methods of the session return false. A future that
+	// completes exceptionally leaves open whether the Switch acted on the call.
+
+	public CompletableFuture<Boolean> sendUrl(String url) throws IOException {
+		return add(Operation.SEND_URL, session.sendUrlRequest(url));
+	}
+
+	public CompletableFuture<Boolean> sendText(String msg) {
+		return add(Operation.SEND_TEXT, session.sendTextRequest(msg));
+	}
+
+	public CompletableFuture<Boolean> addProperty(String name, String value) throws IOException {
+		return add(Operation.ADD_PROPERTIES, session.addPropertyRequest(new ChoiceViewSession.Property(name, value)));
+	}
+
+	public int size() { return results.size(); }
+
+	public List<Boolean> execute() throws IOException {
+		return execute(null);
+	}
+
+	// Returns the result of every call in the order they were queued, or throws the
+	// first error; the futures tell the outcome of each call. After a connection
+	// error, the failed call and the unanswered ones after it may have been applied
+	// anyway. The timeout applies to the pipeline as a whole, a null timeout uses the
+	// request timeout of the client.
+	public List<Boolean> execute(Duration timeout) throws IOException {
+		if(executed) throw new IllegalStateException("Pipeline has already been executed.");
+		executed = true;
+		if(!requests.isEmpty()) {
+			session.getClient().executePipelined(operations, requests, sent, timeout);
+		}
+		List<Boolean> values = new ArrayList<Boolean>(results.size());
+		for(CompletableFuture<Boolean> result : results) {
+			try {
+				values.add(result.join());
+			} catch(CompletionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		return values;
+	}
+
+	private CompletableFuture<Boolean> add(Operation operation, HttpUriRequest request) {
+		if(executed) throw new IllegalStateException("Pipeline has already been executed.");
+		CompletableFuture<Boolean> result;
+		if(request == null) {
+			result = CompletableFuture.completedFuture(false);
+		} else {
+			result = new CompletableFuture<Boolean>();
+			operations.add(operation);
+			requests.add(request);
+			sent.add(result);
+		}
+		results.add(result);
+		return result;
+	}
+}
@@ -0,0 +1,240 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls the state of many sessions from a small scheduled thread pool, for
+ * applications that cannot receive the stateChangeUri webhook. Connected
+ * sessions are polled often, suspended sessions less often, and a session is
+ * dropped once it is disconnected. Listeners only hear about actual changes.
+ */
+public class SessionPoller implements Closeable {
+
+	final static long DefaultConnectedInterval = 2000;
+	final static long DefaultSuspendedInterval = 10000;
+	final static double DefaultJitter = 0.2;
+	final static int DefaultThreadCount = 1;
+
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final Map<ChoiceViewSession, Poll> polls = new ConcurrentHashMap<ChoiceViewSession, Poll>();
+	private final List<SessionChangeListener> listeners = new CopyOnWriteArrayList<SessionChangeListener>();
+	private volatile long connectedInterval = DefaultConnectedInterval;
+	private volatile long suspendedInterval = DefaultSuspendedInterval;
+	private volatile double jitter = DefaultJitter;
+	private volatile boolean closed;
+
+	// The updates themselves are asynchronous, the threads only schedule them and run the listeners
+	public SessionPoller(int threadCount) {
+		if(threadCount < 1) throw new IllegalArgumentException("Invalid thread count.");
+		scheduler = new ScheduledThreadPoolExecutor(threadCount, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "choiceview-poller-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	public SessionPoller() {
+		this(DefaultThreadCount);
+	}
+
+	public long getConnectedInterval(TimeUnit unit) { return unit.convert(connectedInterval, TimeUnit.MILLISECONDS); }
+	public void setConnectedInterval(long interval, TimeUnit unit) {
+		connectedInterval = checkInterval(unit.toMillis(interval));
+	}
+
+	// Used for every status other than connected or disconnected
+	public long getSuspendedInterval(TimeUnit unit) { return unit.convert(suspendedInterval, TimeUnit.MILLISECONDS); }
+	public void setSuspendedInterval(long interval, TimeUnit unit) {
+		suspendedInterval = checkInterval(unit.toMillis(interval));
+	}
+
+	// Each delay is varied randomly by up to this fraction, so sessions do not poll in lockstep
+	public double getJitter() { return jitter; }
+	public void setJitter(double jitter) {
+		if(jitter < 0 || jitter >= 1) throw new IllegalArgumentException("Jitter must be at least 0 and less than 1.");
+		this.jitter = jitter;
+	}
+
+	public void addListener(SessionChangeListener listener) { listeners.add(listener); }
+	public void removeListener(SessionChangeListener listener) { listeners.remove(listener); }
+
+	// Returns false if the session is disconnected or already polled
+	public boolean add(ChoiceViewSession session) {
+		if(closed) throw new IllegalStateException("Poller is closed.");
+		if(!session.getSessionStatus().isActive()) {
+			return false;
+		}
+		Poll poll = new Poll(session);
+		if(polls.putIfAbsent(session, poll) != null) {
+			return false;
+		}
+		// Stop at once when the session is ended or transferred, not at the next poll
+		session.addStateListener(poll);
+		if(!session.getSessionStatus().isActive()) {
+			remove(session);
+			return false;
+		}
+		// Spread the first polls of sessions added together over a whole interval
+		poll.schedule((long) (ThreadLocalRandom.current().nextDouble() * interval(session.getSessionStatus())));
+		return true;
+	}
+
+	public boolean remove(ChoiceViewSession session) {
+		Poll poll = polls.remove(session);
+		if(poll == null) {
+			return false;
+		}
+		poll.cancel();
+		session.removeStateListener(poll);
+		return true;
+	}
+
+	public boolean contains(ChoiceViewSession session) { return polls.containsKey(session); }
+	public int getSessionCount() { return polls.size(); }
+
+	public boolean isClosed() { return closed; }
+
+	public void close() {
+		closed = true;
+		for(Poll poll : polls.values()) {
+			poll.cancel();
+			poll.session.removeStateListener(poll);
+		}
+		polls.clear();
+		scheduler.shutdownNow();
+	}
+
+	long interval(SessionStatus status) {
+		return status == SessionStatus.CONNECTED ? connectedInterval : suspendedInterval;
+	}
+
+	long withJitter(long delay) {
+		double j = jitter;
+		if(j == 0) {
+			return delay;
+		}
+		return Math.max(0, (long) (delay * (1 + j * (2 * ThreadLocalRandom.current().nextDouble() - 1))));
+	}
+
+	private static boolean changed(String previous, String current) {
+		return previous == null ? current != null : !previous.equals(current);
+	}
+
+	private static long checkInterval(long millis) {
+		if(millis <= 0) throw new IllegalArgumentException("Poll interval must be positive.");
+		return millis;
+	}
+
+	// Only one update of a session is in flight at a time; the next one is scheduled when it completes
+	private class Poll implements Runnable, SessionStateListener {
+		private final ChoiceViewSession session;
+		private String status;
+		private String networkQuality;
+		private String networkType;
+		private volatile Future<?> pending;
+		private volatile boolean updating;
+
+		Poll(ChoiceViewSession session) {
+			this.session = session;
+			status = session.getStatus();
+			networkQuality = session.getNetworkQuality();
+			networkType = session.getNetworkType();
+		}
+
+		void schedule(long delay) {
+			try {
+				pending = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+			} catch(RejectedExecutionException e) {
+				polls.remove(session, this);
+			}
+		}
+
+		void cancel() {
+			Future<?> f = pending;
+			if(f != null) {
+				f.cancel(false);
+			}
+		}
+
+		// Changes made by our own update are handled, and reported, when it completes
+		public void stateChanged(ChoiceViewSession session, SessionStatus previous, SessionStatus current) {
+			if(!current.isActive() && !updating && polls.get(session) == this) {
+				remove(session);
+			}
+		}
+
+		public void run() {
+			if(polls.get(session) != this) {
+				return;
+			}
+			updating = true;
+			CompletableFuture<Boolean> update = session.updateSessionAsync();
+			pending = update;
+			try {
+				update.whenCompleteAsync((updated, e) -> completed(updated, e), scheduler);
+			} catch(RejectedExecutionException e) {
+				update.cancel(false);
+			}
+		}
+
+		private void completed(Boolean updated, Throwable error) {
+			updating = false;
+			if(polls.get(session) != this) {
+				return;
+			}
+			if(error != null) {
+				// Keep polling a session the Switch could not be reached for, but not as often
+				System.err.println("Cannot poll session " + session.getSessionId() + ": " + error.getMessage());
+				schedule(withJitter(suspendedInterval));
+				return;
+			}
+			if(!updated) {
+				// The Switch was unavailable, or did not return the session
+				if(session.getSessionStatus().isActive()) {
+					schedule(withJitter(suspendedInterval));
+				} else if(polls.remove(session, this)) {
+					session.removeStateListener(this);
+				}
+				return;
+			}
+			String previousStatus = status, previousQuality = networkQuality, previousType = networkType;
+			status = session.getStatus();
+			networkQuality = session.getNetworkQuality();
+			networkType = session.getNetworkType();
+			SessionStatus current = session.getSessionStatus();
+			if(!current.isActive()) {
+				if(polls.remove(session, this)) {
+					session.removeStateListener(this);
+				}
+			} else {
+				schedule(withJitter(interval(current)));
+			}
+			if(changed(previousStatus, status) || changed(previousQuality, networkQuality) ||
+					changed(previousType, networkType)) {
+				for(SessionChangeListener listener : listeners) {
+					try {
+						listener.sessionChanged(session, previousStatus, previousQuality, previousType);
+					} catch(RuntimeException e) {
+						System.err.println("Session change listener failed: " + e);
+					}
+				}
+			}
+		}
+	}
+}
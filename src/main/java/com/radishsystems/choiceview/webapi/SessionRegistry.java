@@ -0,0 +1,203 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of many sessions and finds them by sessionId, callId or
+ * callerId without locking. The indexes follow the sessions as they are
+ * started, and a session is dropped from the registry as soon as it is
+ * disconnected or transferred.
+ */
+public class SessionRegistry {
+
+	private final Map<ChoiceViewSession, Entry> entries = new ConcurrentHashMap<ChoiceViewSession, Entry>();
+	private final Map<Integer, ChoiceViewSession> bySessionId = new ConcurrentHashMap<Integer, ChoiceViewSession>();
+	private final Map<String, ChoiceViewSession> byCallId = new ConcurrentHashMap<String, ChoiceViewSession>();
+	// Several sessions can come from the same caller
+	private final Map<String, Set<ChoiceViewSession>> byCallerId = new ConcurrentHashMap<String, Set<ChoiceViewSession>>();
+
+	// Returns false if the session is already registered, or has ended and would
+	// never be dropped. A session that has not been started yet can be registered.
+	public boolean register(ChoiceViewSession session) {
+		return register(session, null);
+	}
+
+	// The call id is used until the session has one of its own, so a session
+	// can be found while it is being started
+	public boolean register(ChoiceViewSession session, String callId) {
+		return register(session, callId, false);
+	}
+
+	// The NotificationReceiver registers an ended session it is about to start again
+	boolean register(ChoiceViewSession session, String callId, boolean starting) {
+		if(session == null) throw new IllegalArgumentException("No session specified.");
+		SessionSnapshot snapshot = session.getSnapshot();
+		if(!starting && !snapshot.getSessionStatus().isActive() && snapshot.getSessionId() != 0) {
+			return false;
+		}
+		Entry entry = new Entry(session, callId);
+		if(entries.putIfAbsent(session, entry) != null) {
+			return false;
+		}
+		boolean wasActive = session.getSessionStatus().isActive();
+		session.addStateListener(entry);
+		// Ended while it was being registered
+		if(wasActive && !session.getSessionStatus().isActive()) {
+			remove(session);
+			return true;
+		}
+		entry.index();
+		return true;
+	}
+
+	public boolean remove(ChoiceViewSession session) {
+		Entry entry = entries.remove(session);
+		if(entry == null) {
+			return false;
+		}
+		session.removeStateListener(entry);
+		entry.unindex();
+		return true;
+	}
+
+	public boolean contains(ChoiceViewSession session) { return entries.containsKey(session); }
+	public int size() { return entries.size(); }
+
+	public ChoiceViewSession findBySessionId(int sessionId) { return bySessionId.get(sessionId); }
+
+	public ChoiceViewSession findByCallId(String callId) {
+		return callId != null ? byCallId.get(callId) : null;
+	}
+
+	public Set<ChoiceViewSession> findByCallerId(String callerId) {
+		Set<ChoiceViewSession> sessions = callerId != null ? byCallerId.get(callerId) : null;
+		return sessions != null ? Collections.unmodifiableSet(sessions) : Collections.<ChoiceViewSession>emptySet();
+	}
+
+	// The sessions on one Switch of a client with several endpoints
+	public List<ChoiceViewSession> findByEndpoint(SwitchEndpoint endpoint) {
+		return find(session -> session.getEndpoint() == endpoint);
+	}
+
+	public List<ChoiceViewSession> find(Predicate<? super ChoiceViewSession> filter) {
+		List<ChoiceViewSession> found = new ArrayList<ChoiceViewSession>();
+		for(ChoiceViewSession session : entries.keySet()) {
+			if(filter.test(session)) {
+				found.add(session);
+			}
+		}
+		return found;
+	}
+
+	public List<ChoiceViewSession> getSessions() { return new ArrayList<ChoiceViewSession>(entries.keySet()); }
+
+	// Ends the matching sessions in parallel; use a SessionBatch to limit the
+	// number of requests at a time or to set a deadline
+	public CompletableFuture<BatchResult> endSessions(Predicate<? super ChoiceViewSession> filter) {
+		return new SessionBatch(find(filter)).endSessionsAsync();
+	}
+
+	public CompletableFuture<BatchResult> endSessions(SwitchEndpoint endpoint) {
+		return new SessionBatch(findByEndpoint(endpoint)).endSessionsAsync();
+	}
+
+	// The keys a session is indexed under, changed only while holding its lock
+	private class Entry implements SessionStateListener {
+		private final ChoiceViewSession session;
+		private final String presetCallId;
+		private int sessionId;
+		private String callId;
+		private String callerId;
+		private boolean removed;
+
+		Entry(ChoiceViewSession session, String presetCallId) {
+			this.session = session;
+			this.presetCallId = presetCallId;
+		}
+
+		public void stateChanged(ChoiceViewSession session, SessionStatus previous, SessionStatus current) {
+			if(!current.isActive()) {
+				if(entries.remove(session, this)) {
+					session.removeStateListener(this);
+					unindex();
+				}
+			} else {
+				index();
+			}
+		}
+
+		synchronized void index() {
+			if(removed) {
+				return;
+			}
+			SessionSnapshot snapshot = session.getSnapshot();
+			int newSessionId = snapshot.getSessionId();
+			if(newSessionId != sessionId) {
+				if(sessionId != 0) {
+					bySessionId.remove(sessionId, session);
+				}
+				if(newSessionId != 0) {
+					bySessionId.put(newSessionId, session);
+				}
+				sessionId = newSessionId;
+			}
+			String newCallId = ChoiceViewSession.isNullOrEmpty(snapshot.getCallId()) ? presetCallId : snapshot.getCallId();
+			if(!equal(newCallId, callId)) {
+				if(callId != null) {
+					byCallId.remove(callId, session);
+				}
+				if(!ChoiceViewSession.isNullOrEmpty(newCallId)) {
+					byCallId.put(newCallId, session);
+				}
+				callId = newCallId;
+			}
+			String newCallerId = snapshot.getCallerId();
+			if(!equal(newCallerId, callerId)) {
+				removeCaller();
+				if(!ChoiceViewSession.isNullOrEmpty(newCallerId)) {
+					byCallerId.compute(newCallerId, (id, sessions) -> {
+						if(sessions == null) {
+							sessions = ConcurrentHashMap.newKeySet();
+						}
+						sessions.add(session);
+						return sessions;
+					});
+				}
+				callerId = newCallerId;
+			}
+		}
+
+		synchronized void unindex() {
+			removed = true;
+			if(sessionId != 0) {
+				bySessionId.remove(sessionId, session);
+			}
+			if(callId != null) {
+				byCallId.remove(callId, session);
+			}
+			removeCaller();
+		}
+
+		private void removeCaller() {
+			if(callerId == null) {
+				return;
+			}
+			// Drops the set once it is empty, without losing a session added meanwhile
+			byCallerId.computeIfPresent(callerId, (id, sessions) -> {
+				sessions.remove(session);
+				return sessions.isEmpty() ? null : sessions;
+			});
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,283 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the sendUrl, sendText and addProperty calls of many sessions in the
+ * background. Each session has a bounded queue whose calls are sent strictly
+ * in the order they were made, and a small pool of worker threads drains all
+ * the queues. When a queue is full the overflow policy decides whether the
+ * caller waits, the oldest call is dropped, or the new call is refused.
+ */
+public class SessionSender implements Closeable {
+
+	final static int DefaultThreadCount = 2;
+	final static int DefaultCapacity = 32;
+	// Calls a worker takes from one queue before moving on, so a busy session
+	// cannot hold a worker while other sessions wait
+	final static int MaxBatch = 8;
+
+	private final ExecutorService workers;
+	private final Map<ChoiceViewSession, SendQueue> queues = new ConcurrentHashMap<ChoiceViewSession, SendQueue>();
+	private final InMemoryMetrics.Histogram queueWait = new InMemoryMetrics.Histogram();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final LongAdder dropped = new LongAdder();
+	private volatile int capacity = DefaultCapacity;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private volatile boolean closed;
+
+	// The workers make blocking calls, so a queue being drained holds one of them
+	public SessionSender(int threadCount) {
+		if(threadCount < 1) throw new IllegalArgumentException("Invalid thread count.");
+		workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "choiceview-sender-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public SessionSender() {
+		this(DefaultThreadCount);
+	}
+
+	// The number of calls each session can have queued
+	public int getCapacity() { return capacity; }
+	public void setCapacity(int capacity) {
+		if(capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1.");
+		this.capacity = capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if(overflowPolicy == null) throw new IllegalArgumentException("No overflow policy specified.");
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	// Each method returns a future that completes with the result the session's
+	// method would have returned. With the BLOCK policy the methods wait while the
+	// queue is full, and throw an InterruptedIOException if the thread is interrupted;
+	// with the FAIL policy they throw a SendQueueFullException.
+
+	public CompletableFuture<Boolean> sendUrl(ChoiceViewSession session, final String url) throws IOException {
+		return enqueue(session, pipeline -> pipeline.sendUrl(url));
+	}
+
+	public CompletableFuture<Boolean> sendText(ChoiceViewSession session, final String msg) throws IOException {
+		return enqueue(session, pipeline -> pipeline.sendText(msg));
+	}
+
+	public CompletableFuture<Boolean> addProperty(ChoiceViewSession session, final String name, final String value)
+			throws IOException {
+		return enqueue(session, pipeline -> pipeline.addProperty(name, value));
+	}
+
+	public int getQueueDepth(ChoiceViewSession session) {
+		SendQueue queue = queues.get(session);
+		return queue != null ? queue.size() : 0;
+	}
+
+	// Calls waiting in all queues, and the sessions that have calls waiting or being sent
+	public int getQueuedCount() { return queued.get(); }
+	public int getSessionCount() { return queues.size(); }
+
+	// Time from making a call until a worker took it from the queue, in nanoseconds
+	public InMemoryMetrics.Histogram getQueueWait() { return queueWait; }
+	public long getDroppedCount() { return dropped.sum(); }
+
+	public boolean isClosed() { return closed; }
+
+	// Calls that have not been sent are cancelled
+	public void close() {
+		closed = true;
+		workers.shutdownNow();
+		for(SendQueue queue : queues.values()) {
+			queue.cancel();
+		}
+		queues.clear();
+	}
+
+	private CompletableFuture<Boolean> enqueue(ChoiceViewSession session, Call call) throws IOException {
+		if(session == null) throw new IllegalArgumentException("No session specified.");
+		Send send = new Send(call);
+		while(true) {
+			if(closed) throw new IllegalStateException("Sender is closed.");
+			SendQueue queue = queues.computeIfAbsent(session, SendQueue::new);
+			if(queue.offer(send)) {
+				return send.result;
+			}
+			// The queue was emptied and retired meanwhile; the next one starts after it
+		}
+	}
+
+	private interface Call {
+		CompletableFuture<Boolean> addTo(SessionPipeline pipeline) throws IOException;
+	}
+
+	private static class Send {
+		final Call call;
+		final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		long queuedAt;
+
+		Send(Call call) {
+			this.call = call;
+		}
+	}
+
+	// At most one worker drains a queue at a time, which keeps the calls in order.
+	// A queue is retired once it is empty, so idle sessions take no memory.
+	private class SendQueue implements Runnable {
+		private final ChoiceViewSession session;
+		private final ArrayDeque<Send> sends = new ArrayDeque<Send>();
+		private boolean scheduled;
+		private boolean retired;
+
+		SendQueue(ChoiceViewSession session) {
+			this.session = session;
+		}
+
+		synchronized int size() { return sends.size(); }
+
+		// Returns false if the queue is retired
+		boolean offer(Send send) throws IOException {
+			List<Send> overflow = null;
+			boolean added = false, schedule = false;
+			synchronized(this) {
+				while(!retired && sends.size() >= capacity) {
+					OverflowPolicy policy = overflowPolicy;
+					if(policy == OverflowPolicy.FAIL) {
+						throw new SendQueueFullException(session.getSessionId(),
+								"Send queue of session " + session.getSessionId() + " is full.");
+					} else if(policy == OverflowPolicy.DROP_OLDEST) {
+						if(overflow == null) {
+							overflow = new ArrayList<Send>();
+						}
+						overflow.add(sends.poll());
+						queued.decrementAndGet();
+					} else {
+						try {
+							wait();
+						} catch(InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException("Interrupted while waiting for the send queue.");
+						}
+					}
+				}
+				if(!retired) {
+					send.queuedAt = System.nanoTime();
+					sends.add(send);
+					queued.incrementAndGet();
+					added = true;
+					if(!scheduled) {
+						scheduled = schedule = true;
+					}
+				}
+			}
+			if(overflow != null) {
+				for(Send old : overflow) {
+					dropped.increment();
+					old.result.completeExceptionally(new SendQueueFullException(session.getSessionId(),
+							"Dropped from the full send queue of session " + session.getSessionId() + "."));
+				}
+			}
+			if(schedule) {
+				schedule();
+			}
+			return added;
+		}
+
+		private void schedule() {
+			try {
+				workers.execute(this);
+			} catch(RejectedExecutionException e) {
+				cancel();
+			}
+		}
+
+		synchronized void cancel() {
+			retired = true;
+			for(Send send : sends) {
+				send.result.cancel(false);
+			}
+			queued.addAndGet(-sends.size());
+			sends.clear();
+			queues.remove(session, this);
+			notifyAll();
+		}
+
+		public void run() {
+			List<Send> batch = new ArrayList<Send>();
+			synchronized(this) {
+				while(batch.size() < MaxBatch && !sends.isEmpty()) {
+					batch.add(sends.poll());
+				}
+				queued.addAndGet(-batch.size());
+				notifyAll();
+			}
+			long now = System.nanoTime();
+			for(Send send : batch) {
+				queueWait.record(now - send.queuedAt);
+			}
+			send(batch);
+			boolean more;
+			synchronized(this) {
+				more = !sends.isEmpty() && !retired;
+				if(!more) {
+					scheduled = false;
+					retired = true;
+					queues.remove(session, this);
+				}
+			}
+			// To the back of the line, behind the other sessions waiting for a worker
+			if(more) {
+				schedule();
+			}
+		}
+
+		// The calls of one batch go out together as a pipeline
+		private void send(List<Send> batch) {
+			SessionPipeline pipeline = session.pipeline();
+			for(final Send send : batch) {
+				// Cancelled by the caller
+				if(send.result.isDone()) {
+					continue;
+				}
+				try {
+					send.call.addTo(pipeline).whenComplete((sent, e) -> {
+						if(e != null) {
+							send.result.completeExceptionally(e);
+						} else {
+							send.result.complete(sent);
+						}
+					});
+				} catch(IOException | RuntimeException e) {
+					send.result.completeExceptionally(e);
+				}
+			}
+			try {
+				pipeline.execute();
+			} catch(IOException | RuntimeException e) {
+				// Each call has been completed with its own outcome, unless the pipeline failed early
+				for(Send send : batch) {
+					send.result.completeExceptionally(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.Map;
+
+/**
+ * The values of a ChoiceViewSession at one moment. Snapshots never change;
+ * the session publishes a new one whenever it is started, updated or ended,
+ * so all values read from one snapshot are consistent with each other.
+ */
+public final class SessionSnapshot {
+
+	private final ChoiceViewSession.Session session;
+
+	SessionSnapshot(ChoiceViewSession.Session session) {
+		this.session = session;
+	}
+
+	public int getSessionId() { return session.sessionId; }
+	public String getCallerId() { return session.callerId; }
+	public String getCallId() { return session.callId; }
+	public String getStatus() { return session.status; }
+	public SessionStatus getSessionStatus() { return session.sessionStatus; }
+	public String getNetworkQuality() { return session.networkQuality; }
+	public String getNetworkType() { return session.networkType; }
+	public Map<String, String> getProperties() { return session.properties; }
+
+	@Override
+	public String toString() {
+		return "SessionSnapshot[" + session.sessionId + ", " + session.status + "]";
+	}
+}
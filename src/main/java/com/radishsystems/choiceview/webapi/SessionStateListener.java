@@ -0,0 +1,6 @@
+package com.radishsystems.choiceview.webapi;
+
+public interface SessionStateListener {
+	// Called on the thread that changed the status, after the new status is visible
+	void stateChanged(ChoiceViewSession session, SessionStatus previous, SessionStatus current);
+}
@@ -0,0 +1,55 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.util.Locale;
+
+/**
+ * The status of a ChoiceViewSession. The Switch reports connected, suspended
+ * and disconnected; the client itself sets connecting while startSession is
+ * under way and transferred after transferSession. Changes that the table in
+ * {@link #canTransitionTo} does not allow, such as a late update that reports
+ * an ended session as connected, are ignored.
+ */
+public enum SessionStatus {
+	CONNECTING, CONNECTED, SUSPENDED, DISCONNECTED, TRANSFERRED;
+
+	private final String value = name().toLowerCase(Locale.ROOT);
+
+	// A status the client does not know means the session exists but cannot be used now
+	public static SessionStatus parse(String status) {
+		if(status == null || status.isEmpty()) {
+			return DISCONNECTED;
+		}
+		for(SessionStatus s : values()) {
+			if(s.value.equalsIgnoreCase(status)) {
+				return s;
+			}
+		}
+		return SUSPENDED;
+	}
+
+	// The Switch holds the session, or is about to
+	public boolean isActive() {
+		return this != DISCONNECTED && this != TRANSFERRED;
+	}
+
+	public boolean canTransitionTo(SessionStatus next) {
+		if(next == this) {
+			return true;
+		}
+		switch(this) {
+		case CONNECTING:
+			return next != TRANSFERRED;
+		case CONNECTED:
+		case SUSPENDED:
+			return next != CONNECTING;
+		default:
+			return next == CONNECTING;
+		}
+	}
+
+	// The status as the Switch writes it
+	@Override
+	public String toString() {
+		return value;
+	}
+}
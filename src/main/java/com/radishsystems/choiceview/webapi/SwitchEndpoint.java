@@ -0,0 +1,83 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.utils.URIBuilder;
+
+/**
+ * A Switch that a ChoiceViewClient can start sessions on. The client keeps
+ * count of the requests in progress on each endpoint and of their average
+ * latency, for use by the LoadBalancingPolicy, and marks the endpoint
+ * unhealthy while it cannot be reached.
+ */
+public class SwitchEndpoint {
+
+	// Weight of the newest sample in the average latency
+	private static final double LatencyWeight = 0.2;
+
+	private final String host;
+	private final int port;
+	private final boolean useHttps;
+	private final URI sessionsUri;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final AtomicLong latencyNanos = new AtomicLong();
+	private volatile boolean healthy = true;
+
+	public SwitchEndpoint(String host, int port, boolean useHttps) {
+		if(host == null) throw new IllegalArgumentException("No server address specified.");
+		if(port <= 0) {
+			port = useHttps ? 443 : 80;
+		}
+		this.host = host;
+		this.port = port;
+		this.useHttps = useHttps;
+		try {
+			sessionsUri = new URIBuilder().setScheme(useHttps ? "https" : "http")
+					.setHost(host).setPort(port).setPath("/ivr/api/sessions").build();
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	public SwitchEndpoint(String host, boolean useHttps) {
+		this(host, 0, useHttps);
+	}
+
+	public String getHost() { return host; }
+	public int getPort() { return port; }
+	public boolean isHttps() { return useHttps; }
+	public URI getSessionsUri() { return sessionsUri; }
+	public boolean isHealthy() { return healthy; }
+	public int getOutstandingRequests() { return outstanding.get(); }
+
+	// Zero until the first response from the endpoint
+	public Duration getAverageLatency() { return Duration.ofNanos(latencyNanos.get()); }
+
+	String getKey() { return host + ":" + port; }
+
+	void setHealthy(boolean healthy) { this.healthy = healthy; }
+
+	void requestStarted() {
+		outstanding.incrementAndGet();
+	}
+
+	void requestCompleted(long nanos) {
+		outstanding.decrementAndGet();
+		latencyNanos.updateAndGet(average -> average == 0 ? nanos :
+			(long) (average + LatencyWeight * (nanos - average)));
+		healthy = true;
+	}
+
+	void requestFailed() {
+		outstanding.decrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return (useHttps ? "https://" : "http://") + getKey();
+	}
+}
@@ -0,0 +1,71 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.time.Duration;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+
+/**
+ * Sends the requests of a ChoiceViewClient to the Switch. Retries, deadlines,
+ * circuit breaking and metrics stay in the client; a transport only moves one
+ * request and its response. The client uses HttpClient 4 over HTTP/1.1 unless
+ * it is given another transport with {@link ChoiceViewClient#setTransport}.
+ * Implementations must be thread-safe.
+ */
+public interface Transport extends Closeable {
+
+	// Sends the request and passes the response to the handler before returning. A
+	// transport should stop waiting when the request is aborted, which the client
+	// does when the deadline of the request expires.
+	<T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException;
+
+	// Sends the request without blocking and tells the callback the outcome.
+	// Cancelling the returned future cancels the request.
+	Future<HttpResponse> execute(HttpUriRequest request, FutureCallback<HttpResponse> callback) throws IOException;
+
+	// Called when the client is closed
+	void close();
+
+	// HTTP/2 uses the HttpClient of java.net.http, which needs Java 11 or later. The
+	// library still targets Java 8, so the transport is looked up reflectively.
+	static boolean isHttp2Supported() {
+		try {
+			Class.forName("java.net.http.HttpClient");
+			return true;
+		} catch(ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	// Multiplexes the requests of all sessions over one connection per Switch. Plain
+	// http endpoints are upgraded to h2c; https endpoints negotiate h2, and fall back
+	// to HTTP/1.1 if the Switch does not offer it. Throws IllegalStateException when
+	// the JVM is older than Java 11.
+	static Transport http2() {
+		return http2(ChoiceViewClient.DefaultConnectTimeout, null);
+	}
+
+	// A null SSL context uses the default one of the JVM
+	static Transport http2(Duration connectTimeout, SSLContext sslContext) {
+		if(connectTimeout == null || connectTimeout.isNegative()) throw new IllegalArgumentException("Invalid timeout.");
+		if(!isHttp2Supported()) {
+			throw new IllegalStateException("HTTP/2 requires Java 11 or later, this is Java " +
+					System.getProperty("java.version") + ".");
+		}
+		try {
+			Constructor<?> constructor = Class.forName("com.radishsystems.choiceview.webapi.Http2Transport")
+					.getConstructor(Duration.class, SSLContext.class);
+			return (Transport) constructor.newInstance(connectTimeout, sslContext);
+		} catch(Exception e) {
+			throw new IllegalStateException("Cannot create HTTP/2 transport.", e);
+		}
+	}
+}
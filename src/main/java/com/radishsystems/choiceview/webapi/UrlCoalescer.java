@@ -0,0 +1,99 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Holds back the sendUrl calls of one session for a short window. The first
+ * call opens the window, and when it closes only the latest url is sent; the
+ * calls it replaced complete with a CoalescedException. The window is not
+ * extended by later calls, so a url is never held back longer than the window.
+ */
+class UrlCoalescer {
+
+	// Runs an action after a delay; the client's deadline timer, or a manual clock in tests
+	interface Scheduler {
+		Future<?> schedule(Runnable action, Duration delay);
+	}
+
+	private final ChoiceViewSession session;
+	private final Duration window;
+	private final Scheduler scheduler;
+	private Pending pending;
+	// Identifies the open window, so a timer of a window that was flushed early does nothing
+	private long windowId;
+
+	UrlCoalescer(ChoiceViewSession session, Duration window, Scheduler scheduler) {
+		this.session = session;
+		this.window = window;
+		this.scheduler = scheduler;
+	}
+
+	Duration getWindow() { return window; }
+
+	CompletableFuture<Boolean> sendUrl(String url, Duration timeout) {
+		// Nothing to send, and no reason to drop the pending url
+		if(ChoiceViewSession.isNullOrEmpty(url) || !session.isConnected()) {
+			return CompletableFuture.completedFuture(false);
+		}
+		Pending next = new Pending(url, timeout);
+		Pending replaced;
+		final long id;
+		synchronized(this) {
+			replaced = pending;
+			pending = next;
+			id = replaced == null ? ++windowId : 0;
+		}
+		if(replaced != null) {
+			replaced.result.completeExceptionally(new CoalescedException(replaced.url));
+		} else {
+			try {
+				scheduler.schedule(() -> send(id), window);
+			} catch(RuntimeException e) {
+				// No timer, e.g. the client is closed; send at once and let the request fail
+				flush();
+			}
+		}
+		return next.result;
+	}
+
+	// Sends the pending url without waiting for the window to close
+	void flush() {
+		send(0);
+	}
+
+	private void send(long id) {
+		Pending p;
+		synchronized(this) {
+			if(id != 0 && id != windowId) {
+				return;
+			}
+			p = pending;
+			pending = null;
+			windowId++;
+		}
+		// Cancelled by the caller
+		if(p == null || p.result.isDone()) {
+			return;
+		}
+		session.sendUrlNowAsync(p.url, p.timeout).whenComplete((sent, e) -> {
+			if(e != null) {
+				p.result.completeExceptionally(e);
+			} else {
+				p.result.complete(sent);
+			}
+		});
+	}
+
+	private static class Pending {
+		final String url;
+		final Duration timeout;
+		final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+
+		Pending(String url, Duration timeout) {
+			this.url = url;
+			this.timeout = timeout;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Virtual threads need Java 21; the library still targets Java 8, so they are looked up reflectively.
+final class VirtualThreads {
+
+	private static final Method newExecutor = findExecutorFactory();
+
+	private VirtualThreads() {}
+
+	static boolean isSupported() {
+		return newExecutor != null;
+	}
+
+	static ExecutorService newExecutor() {
+		if(newExecutor == null) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		}
+		try {
+			return (ExecutorService) newExecutor.invoke(null);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Cannot create virtual thread executor.", e);
+		}
+	}
+
+	private static Method findExecutorFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.radishsystems.choiceview.webapi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends requests with the HttpClient of java.net.http, which multiplexes the
+ * requests of all sessions over one HTTP/2 connection per Switch instead of
+ * holding a connection for each request in progress. Needs Java 11 or later;
+ * create it with {@link Transport#http2()} so that code built for Java 8 can
+ * use it too.
+ * <p>
+ * Before Java 16, cancelling an exchange of java.net.http does not stop it, so
+ * an aborted or cancelled request only ends when its response arrives or its
+ * per-request timeout, taken from the time left before the deadline, expires.
+ */
+public class Http2Transport implements Transport {
+
+	static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+	// Connection headers, which HTTP/2 does not allow and java.net.http sets itself
+	private static final Set<String> ConnectionHeaders = new HashSet<String>(Arrays.asList(
+			"connection", "content-length", "expect", "host", "keep-alive", "proxy-connection",
+			"transfer-encoding", "upgrade"));
+
+	private final HttpClient http;
+	private final ExecutorService executor;
+	private volatile boolean closed;
+
+	// A zero connect timeout waits as long as the operating system does
+	public Http2Transport(Duration connectTimeout, SSLContext sslContext) {
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "choiceview-http2-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.executor(executor);
+		if(connectTimeout != null && !connectTimeout.isZero()) {
+			builder.connectTimeout(connectTimeout);
+		}
+		if(sslContext != null) {
+			builder.sslContext(sslContext);
+		}
+		http = builder.build();
+	}
+
+	public Http2Transport() {
+		this(ChoiceViewClient.DefaultConnectTimeout, null);
+	}
+
+	public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+		final CompletableFuture<Void> aborted = new CompletableFuture<Void>();
+		if(request instanceof AbortableHttpRequest) {
+			((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+				public void releaseConnection() {}
+				public void abortConnection() { aborted.complete(null); }
+			});
+		}
+		CompletableFuture<java.net.http.HttpResponse<byte[]>> exchange = send(request);
+		// Stops the exchange on Java 16 or later; earlier, the request timeout ends it
+		aborted.thenRun(() -> exchange.cancel(true));
+		java.net.http.HttpResponse<byte[]> response;
+		try {
+			response = exchange.get();
+		} catch(InterruptedException e) {
+			exchange.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the response.");
+		} catch(CancellationException e) {
+			throw new InterruptedIOException("Request was aborted.");
+		} catch(ExecutionException e) {
+			throw asIOException(e.getCause());
+		}
+		return handler.handleResponse(toResponse(response));
+	}
+
+	public Future<HttpResponse> execute(HttpUriRequest request, final FutureCallback<HttpResponse> callback)
+			throws IOException {
+		final CompletableFuture<java.net.http.HttpResponse<byte[]>> exchange = send(request);
+		final CompletableFuture<HttpResponse> result = new CompletableFuture<HttpResponse>();
+		result.whenComplete((response, e) -> {
+			if(result.isCancelled()) {
+				exchange.cancel(true);
+				callback.cancelled();
+			}
+		});
+		exchange.whenComplete((response, e) -> {
+			if(e != null) {
+				IOException error = asIOException(e);
+				if(result.completeExceptionally(error)) {
+					callback.failed(error);
+				}
+				return;
+			}
+			HttpResponse converted = toResponse(response);
+			if(result.complete(converted)) {
+				callback.completed(converted);
+			}
+		});
+		return result;
+	}
+
+	public boolean isClosed() { return closed; }
+
+	// Requests in progress fail
+	public void close() {
+		closed = true;
+		executor.shutdownNow();
+	}
+
+	private CompletableFuture<java.net.http.HttpResponse<byte[]>> send(HttpUriRequest request) throws IOException {
+		if(closed) throw new IllegalStateException("Transport is closed.");
+		return http.sendAsync(toRequest(request), BodyHandlers.ofByteArray());
+	}
+
+	private static HttpRequest toRequest(HttpUriRequest request) throws IOException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(request.getURI());
+		// The client sets the deadline of a request; retries get the time that is left
+		Object deadline = request.getParams().getParameter(ChoiceViewClient.DeadlineParameter);
+		if(deadline instanceof Long) {
+			long remaining = (Long) deadline - System.nanoTime();
+			if(remaining <= 0) {
+				throw new SocketTimeoutException("Deadline expired before the request was sent.");
+			}
+			builder.timeout(Duration.ofNanos(remaining));
+		} else {
+			int timeout = HttpConnectionParams.getSoTimeout(request.getParams());
+			if(timeout > 0) {
+				builder.timeout(Duration.ofMillis(timeout));
+			}
+		}
+		for(Header header : request.getAllHeaders()) {
+			if(!ConnectionHeaders.contains(header.getName().toLowerCase(Locale.ROOT))) {
+				builder.header(header.getName(), header.getValue());
+			}
+		}
+		BodyPublisher body = BodyPublishers.noBody();
+		if(request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if(entity != null) {
+				body = BodyPublishers.ofByteArray(EntityUtils.toByteArray(entity));
+				if(entity.getContentType() != null && !request.containsHeader("Content-Type")) {
+					builder.header("Content-Type", entity.getContentType().getValue());
+				}
+			}
+		}
+		return builder.method(request.getMethod(), body).build();
+	}
+
+	// The response handlers of the client read HttpClient 4 responses
+	private static HttpResponse toResponse(java.net.http.HttpResponse<byte[]> response) {
+		int statusCode = response.statusCode();
+		BasicHttpResponse converted = new BasicHttpResponse(new BasicStatusLine(
+				response.version() == HttpClient.Version.HTTP_2 ? HTTP_2 : HttpVersion.HTTP_1_1, statusCode,
+				EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.ENGLISH)));
+		for(Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+			// Pseudo headers such as :status
+			if(header.getKey().startsWith(":")) {
+				continue;
+			}
+			for(String value : header.getValue()) {
+				converted.addHeader(header.getKey(), value);
+			}
+		}
+		byte[] body = response.body();
+		if(body != null && body.length > 0) {
+			ByteArrayEntity entity = new ByteArrayEntity(body);
+			entity.setContentType(converted.getFirstHeader("Content-Type"));
+			entity.setContentEncoding(converted.getFirstHeader("Content-Encoding"));
+			converted.setEntity(entity);
+		}
+		return converted;
+	}
+
+	// Timeouts are reported as the HttpClient 4 transport reports them, so the
+	// client turns them into ChoiceViewTimeoutExceptions and retries alike
+	private static IOException asIOException(Throwable e) {
+		if(e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		IOException error;
+		if(e instanceof HttpConnectTimeoutException) {
+			error = new ConnectTimeoutException(e.getMessage());
+		} else if(e instanceof HttpTimeoutException) {
+			error = new SocketTimeoutException(e.getMessage());
+		} else if(e instanceof IOException) {
+			return (IOException) e;
+		} else if(e instanceof CancellationException) {
+			return new InterruptedIOException("Request was cancelled.");
+		} else {
+			return new IOException(e);
+		}
+		error.initCause(e);
+		return error;
+	}
+}
@@ -3,10 +3,23 @@ package com.radishsystems.choiceview.webapi;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -15,6 +28,7 @@ import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.MethodNotSupportedException;
 import org.apache.http.ProtocolException;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.localserver.LocalTestServer;
@@ -67,6 +81,36 @@ public class ChoiceViewSessionTest {
 			links = new ArrayList<Link>();
 		}
 	}
+	// Runs scheduled actions when the test moves the time forward
+	static class ManualScheduler implements UrlCoalescer.Scheduler {
+		private final List<Long> dueAt = new ArrayList<Long>();
+		private final List<FutureTask<?>> tasks = new ArrayList<FutureTask<?>>();
+		private long now;
+
+		public synchronized Future<?> schedule(Runnable action, Duration delay) {
+			FutureTask<?> task = new FutureTask<Object>(action, null);
+			dueAt.add(now + delay.toNanos());
+			tasks.add(task);
+			return task;
+		}
+
+		void advance(Duration time) {
+			List<FutureTask<?>> due = new ArrayList<FutureTask<?>>();
+			synchronized(this) {
+				now += time.toNanos();
+				for(int i = tasks.size() - 1; i >= 0; i--) {
+					if(dueAt.get(i) <= now) {
+						due.add(0, tasks.remove(i));
+						dueAt.remove(i);
+					}
+				}
+			}
+			for(FutureTask<?> task : due) {
+				task.run();
+			}
+		}
+	}
+
 	static class Payload {
 		final public Map<String, String> properties;
 		final public List<Link> links;
@@ -91,10 +135,73 @@ public class ChoiceViewSessionTest {
 	
 	private boolean activeSession = false;
 	private boolean controlMessageAvailable = false;
+	private final AtomicInteger propertyPosts = new AtomicInteger();
+	private int sessionVersion = 1;
+	private int payloadVersion = 1;
+	private int notModifiedResponses = 0;
+	private volatile long responseDelay = 0;
+	private final AtomicInteger unavailableResponses = new AtomicInteger();
+	private int controlMessageVersion = 1;
+	private volatile boolean replaceControlMessage = false;
+	private final AtomicInteger controlMessageGets = new AtomicInteger();
+	// The target account picks a transferred session up after this many ms, or never if negative
+	private volatile long handOffDelay = 0;
+	private volatile long handOffAt = 0;
+	private final AtomicInteger sessionGets = new AtomicInteger();
+	// Answers the next session GET with an empty 200, as a misbehaving proxy might
+	private volatile boolean emptySessionResponse = false;
+	private final List<String> postUris = Collections.synchronizedList(new ArrayList<String>());
+	private volatile boolean closeConnections = false;
+	private volatile String lastUrl;
+	
+	// Simulates a Switch that does not keep connections open
+	private void recordPost(HttpRequest request, HttpResponse response) {
+		postUris.add(request.getRequestLine().getUri());
+		if(closeConnections) {
+			response.setHeader("Connection", "close");
+		}
+	}
+	
+	// Simulates a slow Switch
+	private void delayResponse() {
+		if(responseDelay > 0) {
+			try {
+				Thread.sleep(responseDelay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	// Simulates an overloaded Switch behind a proxy
+	private boolean unavailable(HttpResponse response) {
+		if(unavailableResponses.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+			response.setStatusCode(503);
+			return true;
+		}
+		return false;
+	}
+	
+	// Answers a GET with the current ETag, or 304 if the client already has it
+	private boolean notModified(HttpRequest request, String etag, HttpResponse response) {
+		response.setHeader("ETag", etag);
+		response.setHeader("Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT");
+		if(request.containsHeader("If-None-Match") &&
+		   etag.equals(request.getFirstHeader("If-None-Match").getValue())) {
+			if(!request.containsHeader("If-Modified-Since")) {
+				throw new IllegalStateException("If-Modified-Since header missing");
+			}
+			notModifiedResponses++;
+			response.setStatusCode(304);
+			return true;
+		}
+		return false;
+	}
 	
 	private HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
 		public void handle(HttpRequest request, HttpResponse response,
 				HttpContext context) throws HttpException, IOException {
+			delayResponse();
 			String method = request.getRequestLine().getMethod().toUpperCase();
 			if(method.equals("PUT") || method.equals("GET")) {
 				throw new MethodNotSupportedException(method + " request not supported for sessions");
@@ -157,6 +264,10 @@ public class ChoiceViewSessionTest {
 	private HttpRequestHandler sessionHandler = new HttpRequestHandler() {
 		public void handle(HttpRequest request, HttpResponse response,
 				HttpContext context) throws HttpException, IOException {
+			delayResponse();
+			if(unavailable(response)) {
+				return;
+			}
 			String method = request.getRequestLine().getMethod().toUpperCase();
 			if(method.equals("PUT")) {
 				throw new MethodNotSupportedException("PUT request not supported for sessions");
@@ -171,10 +282,23 @@ public class ChoiceViewSessionTest {
 				}
 			}
 			if(method.equals("GET")) {
+				sessionGets.incrementAndGet();
+				if(handOffAt != 0 && System.nanoTime() - handOffAt >= 0) {
+					activeSession = false;
+					handOffAt = 0;
+				}
 				if(!activeSession) {
 					response.setStatusCode(404);
 					return;
 				}
+				if(notModified(request, "\"session-" + sessionVersion + "\"", response)) {
+					return;
+				}
+				if(emptySessionResponse) {
+					emptySessionResponse = false;
+					response.setStatusCode(200);
+					return;
+				}
 				String sessionUri = "http://" + testServer.getServiceAddress().getHostName() + ":" +
 						testServer.getServiceAddress().getPort() + "/" +
 						request.getRequestLine().getUri();
@@ -198,6 +322,7 @@ public class ChoiceViewSessionTest {
 				return;
 			}
 			if(method.equals("POST")) {
+				recordPost(request, response);
 				if(!activeSession) {
 					response.setStatusCode(404);
 					return;
@@ -220,6 +345,7 @@ public class ChoiceViewSessionTest {
 	        				if(params.keySet().size() != 1 || !params.containsKey("url")) {
 	    						throw new ProtocolException("No url in POST request!");
 	        				}
+	        				lastUrl = params.get("url");
 	                	}
 	                	response.setStatusCode(200);
 	                } else {
@@ -248,6 +374,9 @@ public class ChoiceViewSessionTest {
 					response.setStatusCode(404);
 					return;
 				}
+				if(notModified(request, "\"payload-" + payloadVersion + "\"", response)) {
+					return;
+				}
 				String payloadUri = "http://" + testServer.getServiceAddress().getHostName() + ":" +
 						testServer.getServiceAddress().getPort() + request.getRequestLine().getUri();
 				String sessionUri = payloadUri.replace("/properties", "");
@@ -267,6 +396,7 @@ public class ChoiceViewSessionTest {
 				return;
 			}
 			if(method.equals("POST")) {
+				recordPost(request, response);
 				if(!activeSession) {
 					response.setStatusCode(404);
 					return;
@@ -284,8 +414,9 @@ public class ChoiceViewSessionTest {
 	    					throw new ProtocolException("No content type specified in POST request!");
 	                	}
 	                	if(value.contains("application/json")) {
-	        				Map<String, String> params = mapper.readValue(content,
-	        						new TypeReference<Map<String, String>>() {});
+	                		propertyPosts.incrementAndGet();
+	        				Map<String, Object> params = mapper.readValue(content,
+	        						new TypeReference<Map<String, Object>>() {});
 	        				if(params != null && params.size() == 2 && params.containsKey("name")) {
 			                	response.setStatusCode(200);
 			                	return;
@@ -309,9 +440,14 @@ public class ChoiceViewSessionTest {
 			if(method.equals("PUT")) {
 				throw new MethodNotSupportedException("PUT request not supported for control message");
 			}
+			delayResponse();
+			String etag = "\"message-" + controlMessageVersion + "\"";
 			if(method.equals("DELETE")) {
 				if(activeSession) {
-					if(controlMessageAvailable) {
+					if(request.containsHeader("If-Match") &&
+					   !etag.equals(request.getFirstHeader("If-Match").getValue())) {
+						response.setStatusCode(412);
+					} else if(controlMessageAvailable) {
 						response.setStatusCode(200);
 						controlMessageAvailable = false;
 					} else {
@@ -322,13 +458,20 @@ public class ChoiceViewSessionTest {
 				}
 			}
 			if(method.equals("GET")) {
+				controlMessageGets.incrementAndGet();
 				if(!activeSession) {
 					response.setStatusCode(404);
 				} else {
 					response.setStatusCode(200);
 					if(controlMessageAvailable) {
+						response.setHeader("ETag", etag);
 						response.setEntity(new StringEntity(mapper.writeValueAsString(expectedControlMessage),
 								ContentType.create("application/json", "utf-8")));
+						// The caller submits another form before the message is cleared
+						if(replaceControlMessage) {
+							replaceControlMessage = false;
+							controlMessageVersion++;
+						}
 					}
 				}
 			}
@@ -353,7 +496,11 @@ public class ChoiceViewSessionTest {
 			}
 			if(method.equals("POST")) {
 				if(activeSession) {
-					activeSession = false;
+					if(handOffDelay == 0) {
+						activeSession = false;
+					} else if(handOffDelay > 0) {
+						handOffAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handOffDelay);
+					}
 					response.setStatusCode(200);
 				} else {
 					response.setStatusCode(404);
@@ -482,10 +629,74 @@ public class ChoiceViewSessionTest {
 		assertTrue(testSession.transferSession(expectedAccountId));
 		// After successful TransferSession, connection state is disconnected
 		assertTrue(testSession.getStatus().equals("disconnected"));
+		assertEquals(SessionStatus.TRANSFERRED, testSession.getSessionStatus());
 		// TransferSession fails if session has ended
 		assertFalse(testSession.transferSession(expectedAccountId));
 	}
 
+	@Test
+	public void testTransferSessionConfirmed() throws Exception {
+		final List<String> changes = new ArrayList<String>();
+		testSession.addStateListener((session, previous, current) -> changes.add(previous + " -> " + current));
+		assertFalse(testSession.transferSessionConfirmedAsync("test1", Duration.ofSeconds(5)).get());
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+
+		// Confirmed by the poll that finds the session gone from this account
+		handOffDelay = 300;
+		long start = System.nanoTime();
+		CompletableFuture<Boolean> transfer = testSession.transferSessionConfirmedAsync("test1", Duration.ofSeconds(5));
+		Thread.sleep(100);
+		assertFalse(transfer.isDone());
+		assertEquals(SessionStatus.CONNECTED, testSession.getSessionStatus());
+		assertTrue(transfer.get(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		assertEquals(SessionStatus.TRANSFERRED, testSession.getSessionStatus());
+		assertEquals(Arrays.asList("disconnected -> connecting", "connecting -> connected",
+				"connected -> transferred"), changes);
+	}
+
+	@Test
+	public void testTransferSessionNotConfirmed() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		handOffDelay = -1;
+		CompletableFuture<Boolean> transfer = testSession.transferSessionConfirmedAsync("test1", Duration.ofMillis(500));
+		try {
+			transfer.get(5, TimeUnit.SECONDS);
+			fail("Transfer should not be confirmed.");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof ChoiceViewTimeoutException);
+		}
+		assertEquals(SessionStatus.CONNECTED, testSession.getSessionStatus());
+
+		// Cancelling stops the polls
+		transfer = testSession.transferSessionConfirmedAsync("test1", Duration.ofSeconds(5));
+		Thread.sleep(100);
+		assertTrue(transfer.cancel(false));
+		int gets = sessionGets.get();
+		Thread.sleep(500);
+		assertTrue(sessionGets.get() <= gets + 1);
+	}
+
+	@Test
+	public void testTransferNotConfirmedByFailedPolls() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		testSession.getClient().setRetryPolicy(RetryPolicy.NONE);
+		handOffDelay = -1;
+		unavailableResponses.set(1000);
+		CompletableFuture<Boolean> transfer = testSession.transferSessionConfirmedAsync("test1", Duration.ofMillis(500));
+		try {
+			transfer.get(5, TimeUnit.SECONDS);
+			fail("Transfer should not be confirmed.");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof ChoiceViewTimeoutException);
+			assertTrue(e.getCause().getCause() instanceof HttpResponseException);
+			assertEquals(503, ((HttpResponseException) e.getCause().getCause()).getStatusCode());
+		}
+		// Polled more than once, and never taken as gone
+		assertTrue(unavailableResponses.get() < 999);
+		assertEquals(SessionStatus.CONNECTED, testSession.getSessionStatus());
+	}
+
 	@Test
 	public void testSendUrl() throws IOException {
 		// SendUrl fails if no session
@@ -567,6 +778,42 @@ public class ChoiceViewSessionTest {
 		assertNull(testSession.updateProperties());
 	}
 
+	@Test
+	public void testUpdateSessionNotModified() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		assertTrue(testSession.updateSession());
+		ChoiceViewSession.Session cached = testSession.getSessionState();
+		assertEquals("\"session-1\"", cached.etag);
+		
+		// Unchanged sessions are kept without parsing a body
+		assertTrue(testSession.updateSession());
+		assertTrue(testSession.updateSessionAsync().get(5, TimeUnit.SECONDS));
+		assertSame(cached, testSession.getSessionState());
+		assertEquals(2, notModifiedResponses);
+		assertEquals(expectedCallId, testSession.getCallId());
+		
+		sessionVersion++;
+		assertTrue(testSession.updateSession());
+		assertNotSame(cached, testSession.getSessionState());
+		assertEquals("\"session-2\"", testSession.getSessionState().etag);
+		assertEquals(2, notModifiedResponses);
+	}
+
+	@Test
+	public void testUpdatePropertiesNotModified() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		Map<String, String> cached = testSession.updateProperties();
+		assertNotNull(cached);
+		assertSame(cached, testSession.updateProperties());
+		assertSame(cached, testSession.updatePropertiesAsync().get(5, TimeUnit.SECONDS));
+		assertEquals(2, notModifiedResponses);
+		
+		payloadVersion++;
+		Map<String, String> updated = testSession.updateProperties();
+		assertNotSame(cached, updated);
+		assertEquals(cached, updated);
+	}
+
 	@Test
 	public void testAddProperties() throws IOException {
 		final Map<String, String> duplicateProperties = new HashMap<String, String>();
@@ -592,6 +839,54 @@ public class ChoiceViewSessionTest {
 		assertFalse(testSession.addProperties(goodProperties2));
 	}
 
+	@Test
+	public void testAddPropertiesBatch() throws IOException {
+		final Map<String, String> properties = new LinkedHashMap<String, String>();
+		properties.put("TestKey1", "DuplicateValue");
+		properties.put("TestKey3", "NewTestValue");
+		properties.put("TestKey4", "NewTestValue");
+		properties.put("TestKey5", "");
+
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		Map<String, Boolean> results = testSession.addPropertiesBatch(properties);
+		assertEquals(4, results.size());
+		assertFalse(results.get("TestKey1"));
+		assertTrue(results.get("TestKey3"));
+		assertTrue(results.get("TestKey4"));
+		assertFalse(results.get("TestKey5"));
+		// One request for each valid property
+		assertEquals(2, propertyPosts.get());
+	}
+
+	@Test
+	public void testAddPropertiesArrayKeepsRepeatedNames() throws IOException {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		assertTrue(testSession.addProperties(new ChoiceViewSession.Property[] {
+				new ChoiceViewSession.Property("TestKey3", "FirstValue"),
+				new ChoiceViewSession.Property("TestKey3", "SecondValue") }));
+		assertEquals(2, propertyPosts.get());
+		assertFalse(testSession.addProperties(new ChoiceViewSession.Property[] {
+				new ChoiceViewSession.Property("TestKey4", "NewTestValue"),
+				new ChoiceViewSession.Property("TestKey1", "DuplicateValue") }));
+		assertEquals(3, propertyPosts.get());
+	}
+
+	@Test
+	public void testAddPropertiesBatchAsync() throws Exception {
+		final Map<String, String> properties = new LinkedHashMap<String, String>();
+		properties.put("TestKey1", "DuplicateValue");
+		properties.put("TestKey3", "NewTestValue");
+		properties.put("TestKey4", "NewTestValue");
+
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		Map<String, Boolean> results = testSession.addPropertiesBatchAsync(properties).get(5, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList("TestKey1", "TestKey3", "TestKey4"), new ArrayList<String>(results.keySet()));
+		assertFalse(results.get("TestKey1"));
+		assertTrue(results.get("TestKey3"));
+		assertTrue(results.get("TestKey4"));
+		assertEquals(2, propertyPosts.get());
+	}
+
 	@Test
 	public void testAddProperty() throws IOException {
 		String badName = "TestKey1";
@@ -610,8 +905,599 @@ public class ChoiceViewSessionTest {
 		assertFalse(testSession.addProperty(goodName2, testValue));
 	}
 	
+	@Test
+	public void testSessionsShareClient() throws IOException {
+		ChoiceViewClient client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+		client.setMaxConnections(10);
+		client.setMaxConnectionsPerRoute(5);
+		assertEquals(10, client.getMaxConnections());
+		assertEquals(5, client.getMaxConnectionsPerRoute());
+		try {
+			ChoiceViewSession first = client.createSession();
+			ChoiceViewSession second = client.createSession();
+			assertSame(client, first.getClient());
+			assertSame(client, second.getClient());
+			
+			assertTrue(first.startSession(expectedCallerId, expectedCallId));
+			assertTrue(first.sendUrl("http://www.radishsystems.com/"));
+			assertTrue(first.endSession());
+			// Closing a session does not close a shared client
+			first.close();
+			assertFalse(client.isClosed());
+			
+			assertTrue(second.startSession(expectedCallerId, expectedCallId));
+			assertEquals(expectedSessionId, second.getSessionId());
+			assertTrue(second.endSession());
+		} finally {
+			client.close();
+		}
+		assertTrue(client.isClosed());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testClosedClientRejectsNewSessions() {
+		ChoiceViewClient client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+		client.close();
+		client.createSession();
+	}
+	
+	@Test
+	public void testAsyncSessionLifecycle() throws Exception {
+		// Async operations fail if no session
+		assertFalse(testSession.sendUrlAsync("http://www.radishsystems.com/").get());
+		assertNull(testSession.getControlMessageAsync().get());
+		
+		assertTrue(testSession.startSessionAsync(expectedCallerId, expectedCallId).get());
+		assertEquals(expectedSessionId, testSession.getSessionId());
+		assertEquals(expectedCallerId, testSession.getCallerId());
+		assertTrue(testSession.sendUrlAsync("http://www.radishsystems.com/").get());
+		assertTrue(testSession.sendTextAsync("How may I help you?").get());
+		assertEquals(expectedControlMessage, testSession.getControlMessageAsync().get());
+		assertNull(testSession.getControlMessageAsync().get());
+		assertEquals("UpdatedTestValue", testSession.updatePropertiesAsync().get().get("TestKey1"));
+		assertTrue(testSession.addPropertyAsync("TestKey3", "TestValue").get());
+		assertTrue(testSession.updateSessionAsync().get());
+		assertEquals(expectedCallId, testSession.getCallId());
+		assertTrue(testSession.endSessionAsync().get());
+		assertEquals("disconnected", testSession.getStatus());
+		assertFalse(testSession.sendTextAsync("How may I help you?").get());
+	}
+
+	@Test
+	public void testAsyncRequestsShareIoThreads() throws Exception {
+		testSession.getClient().setIoThreadCount(1);
+		assertTrue(testSession.startSessionAsync(expectedCallerId, expectedCallId).get());
+		List<CompletableFuture<Boolean>> pending = new ArrayList<CompletableFuture<Boolean>>();
+		for(int i = 0; i < 50; i++) {
+			pending.add(testSession.sendUrlAsync("http://www.radishsystems.com/" + i));
+		}
+		for(CompletableFuture<Boolean> result : pending) {
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+		}
+		assertTrue(testSession.transferSessionAsync("test1").get());
+		assertEquals(SessionStatus.TRANSFERRED, testSession.getSessionStatus());
+		assertEquals("disconnected", testSession.getStatus());
+	}
+	
+	@Test
+	public void testSendUrlTimeout() throws IOException {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		responseDelay = 2000;
+		long start = System.nanoTime();
+		try {
+			testSession.sendUrl("http://www.radishsystems.com/", Duration.ofMillis(200));
+			fail("sendUrl did not time out");
+		} catch(ChoiceViewTimeoutException e) {
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+		}
+		responseDelay = 0;
+		assertTrue(testSession.sendUrl("http://www.radishsystems.com/", Duration.ofSeconds(5)));
+	}
+
+	@Test(expected=ChoiceViewTimeoutException.class)
+	public void testSocketTimeout() throws IOException {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		testSession.getClient().setSocketTimeout(Duration.ofMillis(200));
+		responseDelay = 2000;
+		testSession.sendText("How may I help you?");
+	}
+
+	@Test
+	public void testStartSessionTimeout() throws IOException {
+		ChoiceViewClient client = testSession.getClient();
+		assertEquals(ChoiceViewClient.DefaultStartSessionTimeout, client.getStartSessionTimeout());
+		// startSession is not limited by the socket timeout used for other requests
+		client.setSocketTimeout(Duration.ofMillis(100));
+		responseDelay = 300;
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		assertTrue(testSession.endSession(Duration.ofSeconds(5)));
+		
+		client.setStartSessionTimeout(Duration.ofMillis(100));
+		try {
+			testSession.startSession(expectedCallerId, expectedCallId);
+			fail("startSession did not time out");
+		} catch(ChoiceViewTimeoutException e) {
+		}
+		assertEquals("disconnected", testSession.getStatus());
+	}
+
+	@Test
+	public void testAsyncRequestTimeout() throws Exception {
+		assertTrue(testSession.startSessionAsync(expectedCallerId, expectedCallId).get());
+		testSession.getClient().setRequestTimeout(Duration.ofMillis(200));
+		responseDelay = 2000;
+		try {
+			testSession.sendUrlAsync("http://www.radishsystems.com/").get(5, TimeUnit.SECONDS);
+			fail("sendUrlAsync did not time out");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof ChoiceViewTimeoutException);
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		testSession.getClient().setMetrics(metrics);
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		assertEquals(1, metrics.getActiveSessions());
+		assertTrue(testSession.sendUrl("http://www.radishsystems.com/"));
+		assertTrue(testSession.sendUrlAsync("http://www.radishsystems.com/").get());
+		assertTrue(testSession.updateSession());
+		assertEquals(expectedControlMessage, testSession.getControlMessage());
+		assertTrue(testSession.endSession());
+		assertEquals(0, metrics.getActiveSessions());
+		assertEquals(1, metrics.getStartedSessions());
+		
+		InMemoryMetrics.OperationStats start = metrics.getStats(Operation.START_SESSION);
+		assertEquals(1, start.getStatusCount(201));
+		assertTrue(start.getBytesSent() > 0);
+		assertTrue(start.getBytesReceived() > 0);
+		InMemoryMetrics.OperationStats sendUrl = metrics.getStats(Operation.SEND_URL);
+		assertEquals(2, sendUrl.getRequestCount());
+		assertEquals(2, sendUrl.getStatusCount(200));
+		assertTrue(sendUrl.getLatency().getPercentile(0.99) > 0);
+		assertTrue(metrics.getStats(Operation.UPDATE_SESSION).getBytesReceived() > 0);
+		assertEquals(1, metrics.getStats(Operation.GET_CONTROL_MESSAGE).getRequestCount());
+		assertEquals(1, metrics.getStats(Operation.CLEAR_CONTROL_MESSAGE).getRequestCount());
+		assertEquals(1, metrics.getStats(Operation.END_SESSION).getStatusCount(200));
+		assertTrue(metrics.getLeaseWait().getCount() >= 5);
+		
+		// Requests without a response are counted as failures
+		assertFalse(testSession.endSession());
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		responseDelay = 2000;
+		try {
+			testSession.sendText("How may I help you?", Duration.ofMillis(100));
+			fail("sendText did not time out");
+		} catch(ChoiceViewTimeoutException e) {
+		}
+		assertEquals(1, metrics.getStats(Operation.SEND_TEXT).getFailureCount());
+		assertTrue(metrics.getStats(Operation.SEND_TEXT).getStatusCodes().isEmpty());
+	}
+
+	@Test
+	public void testPipeline() throws Exception {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		testSession.getClient().setMetrics(metrics);
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		long leases = metrics.getLeaseWait().getCount();
+		postUris.clear();
+
+		SessionPipeline pipeline = testSession.pipeline();
+		CompletableFuture<Boolean> url = pipeline.sendUrl("http://www.radishsystems.com/");
+		pipeline.addProperty("TestKey3", "TestValue3");
+		pipeline.addProperty("", "TestValue4");
+		pipeline.addProperty("TestKey4", "TestValue4");
+		pipeline.sendText("How may I help you?");
+		assertFalse(url.isDone());
+		assertEquals(Arrays.asList(true, true, false, true, true), pipeline.execute());
+		assertTrue(url.get());
+
+		// Written back to back on one connection, in the order they were queued
+		assertEquals(leases + 1, metrics.getLeaseWait().getCount());
+		assertEquals(4, postUris.size());
+		assertTrue(postUris.get(0).endsWith("/" + expectedSessionId));
+		assertTrue(postUris.get(1).endsWith("/properties"));
+		assertTrue(postUris.get(2).endsWith("/properties"));
+		assertTrue(postUris.get(3).endsWith("/" + expectedSessionId));
+		assertEquals(2, metrics.getStats(Operation.ADD_PROPERTIES).getStatusCount(200));
+		assertEquals(1, metrics.getStats(Operation.SEND_TEXT).getRequestCount());
+		try {
+			pipeline.sendText("Again");
+			fail("Pipeline was executed twice");
+		} catch(IllegalStateException e) {
+		}
+
+		// Nothing is sent for a session that is not connected
+		assertTrue(testSession.endSession());
+		pipeline = testSession.pipeline();
+		pipeline.sendUrl("http://www.radishsystems.com/");
+		assertEquals(Arrays.asList(false), pipeline.execute());
+	}
+
+	@Test
+	public void testPipelineFallsBackToSequential() throws Exception {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		testSession.getClient().setMetrics(metrics);
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		closeConnections = true;
+		for(int run = 0; run < 2; run++) {
+			long leases = metrics.getLeaseWait().getCount();
+			postUris.clear();
+			SessionPipeline pipeline = testSession.pipeline();
+			pipeline.sendUrl("http://www.radishsystems.com/");
+			pipeline.sendText("How may I help you?");
+			pipeline.sendText("Goodbye");
+			assertEquals(Arrays.asList(true, true, true), pipeline.execute());
+			// The Switch saw each request once; those it did not answer were sent again
+			assertEquals(3, postUris.size());
+			assertEquals(leases + 3, metrics.getLeaseWait().getCount());
+		}
+		assertEquals(4, metrics.getStats(Operation.SEND_TEXT).getStatusCount(200));
+	}
+
+	@Test
+	public void testPipelineReportsEachResponse() throws Exception {
+		ChoiceViewClient client = testSession.getClient();
+		client.setCircuitBreakerThreshold(2);
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		final SwitchEndpoint endpoint = client.getEndpoints().get(0);
+
+		responseDelay = 300;
+		final SessionPipeline pipeline = testSession.pipeline();
+		pipeline.sendUrl("http://www.radishsystems.com/");
+		pipeline.sendText("How may I help you?");
+		pipeline.sendText("Goodbye");
+		CompletableFuture<List<Boolean>> results = CompletableFuture.supplyAsync(() -> {
+			try {
+				return pipeline.execute();
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		Thread.sleep(150);
+		assertEquals(3, endpoint.getOutstandingRequests());
+		assertEquals(Arrays.asList(true, true, true), results.get(5, TimeUnit.SECONDS));
+		assertEquals(0, endpoint.getOutstandingRequests());
+		responseDelay = 0;
+
+		// Each 503 counts against the circuit breaker
+		unavailableResponses.set(2);
+		SessionPipeline failing = testSession.pipeline();
+		failing.sendText("How may I help you?");
+		failing.sendText("Goodbye");
+		assertEquals(Arrays.asList(false, false), failing.execute());
+		assertEquals(CircuitBreaker.State.OPEN, client.getCircuitBreakers().iterator().next().getState());
+	}
+
+	@Test
+	public void testReplacedControlMessageNotCleared() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		replaceControlMessage = true;
+		assertEquals(expectedControlMessage, testSession.getControlMessage());
+		// The newer message survived the clear of the first one
+		assertEquals(expectedControlMessage, testSession.getControlMessage());
+		assertNull(testSession.getControlMessage());
+		replaceControlMessage = true;
+		controlMessageAvailable = true;
+		assertEquals(expectedControlMessage, testSession.getControlMessageAsync().get());
+		assertEquals(expectedControlMessage, testSession.getControlMessageAsync().get());
+		assertNull(testSession.getControlMessageAsync().get());
+	}
+
+	@Test
+	public void testConcurrentControlMessageConsumers() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		List<CompletableFuture<Map<String, String>>> results = new ArrayList<CompletableFuture<Map<String, String>>>();
+		for(int i = 0; i < 10; i++) {
+			results.add(testSession.getControlMessageAsync());
+			results.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return testSession.getControlMessage();
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}));
+		}
+		int received = 0;
+		for(CompletableFuture<Map<String, String>> result : results) {
+			Map<String, String> msg = result.get(10, TimeUnit.SECONDS);
+			if(msg != null) {
+				assertEquals(expectedControlMessage, msg);
+				received++;
+			}
+		}
+		assertEquals(1, received);
+		assertEquals(20, controlMessageGets.get());
+	}
+
+	@Test
+	public void testControlMessageTimeoutCoversWait() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		responseDelay = 1000;
+		CompletableFuture<Map<String, String>> first = testSession.getControlMessageAsync();
+		long start = System.nanoTime();
+		try {
+			testSession.getControlMessage(Duration.ofMillis(200));
+			fail("getControlMessage did not time out");
+		} catch(ChoiceViewTimeoutException e) {
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800));
+		}
+		responseDelay = 0;
+		assertEquals(expectedControlMessage, first.get(5, TimeUnit.SECONDS));
+		assertNull(testSession.getControlMessage(Duration.ofSeconds(5)));
+	}
+
+	@Test
+	public void testAwaitControlMessage() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		assertEquals(expectedControlMessage, testSession.getControlMessage());
+		CompletableFuture<Map<String, String>> result = testSession.awaitControlMessageAsync(Duration.ofSeconds(10));
+		Thread.sleep(500);
+		assertFalse(result.isDone());
+		controlMessageAvailable = true;
+		long start = System.nanoTime();
+		assertEquals(expectedControlMessage, result.get(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < ChoiceViewSession.MaxMessagePollInterval.toNanos() + TimeUnit.SECONDS.toNanos(1));
+		assertTrue(controlMessageGets.get() > 2);
+		assertNull(testSession.getControlMessage());
+
+		controlMessageAvailable = true;
+		assertEquals(expectedControlMessage, testSession.awaitControlMessage(Duration.ofSeconds(5)));
+	}
+
+	@Test
+	public void testAwaitControlMessageTimeout() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		assertEquals(expectedControlMessage, testSession.getControlMessage());
+		long start = System.nanoTime();
+		assertNull(testSession.awaitControlMessage(Duration.ofMillis(300)));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		int gets = controlMessageGets.get();
+		Thread.sleep(500);
+		assertEquals(gets, controlMessageGets.get());
+
+		// A disconnected session has no message to wait for
+		assertTrue(testSession.endSession());
+		assertNull(testSession.awaitControlMessage(Duration.ofSeconds(10)));
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicInteger reads = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 8; i++) {
+			final int role = i % 4;
+			threads.add(new Thread(() -> {
+				try {
+					while(running.get()) {
+						switch(role) {
+						case 0:
+							testSession.forgetValidators();
+							assertTrue(testSession.updateSession());
+							break;
+						case 1:
+							assertTrue(testSession.sendUrl("http://www.radishsystems.com/"));
+							break;
+						case 2:
+							assertNotNull(testSession.updateProperties());
+							break;
+						default:
+							SessionSnapshot snapshot = testSession.getSnapshot();
+							assertEquals(expectedSessionId, snapshot.getSessionId());
+							assertEquals("connected", snapshot.getStatus());
+							int count = 0;
+							for(Map.Entry<String, String> property : testSession.getProperties().entrySet()) {
+								assertNotNull(property.getValue());
+								count++;
+							}
+							assertTrue(count >= 2);
+							reads.incrementAndGet();
+						}
+					}
+				} catch(Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		Thread.sleep(1000);
+		running.set(false);
+		for(Thread thread : threads) {
+			thread.join(10000);
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertTrue(reads.get() > 0);
+		assertNotNull(testSession.updateProperties());
+		assertEquals("UpdatedTestValue", testSession.getProperties().get("TestKey1"));
+		try {
+			testSession.getProperties().put("TestKey3", "TestValue");
+			fail("Snapshot properties can be changed");
+		} catch(UnsupportedOperationException e) {
+		}
+		assertTrue(testSession.endSession());
+		assertEquals("disconnected", testSession.getSnapshot().getStatus());
+	}
+
+	@Test
+	public void testRetryUnavailable() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		unavailableResponses.set(2);
+		assertTrue(testSession.updateSession());
+		assertEquals(0, unavailableResponses.get());
+		unavailableResponses.set(2);
+		assertTrue(testSession.updateSessionAsync().get(5, TimeUnit.SECONDS));
+		assertEquals(0, unavailableResponses.get());
+		assertEquals("connected", testSession.getStatus());
+		// Three attempts are not enough, the session is then left as it was
+		unavailableResponses.set(3);
+		assertFalse(testSession.updateSession());
+		assertEquals(0, unavailableResponses.get());
+		assertEquals("connected", testSession.getStatus());
+		assertTrue(testSession.isConnected());
+		unavailableResponses.set(3);
+		assertFalse(testSession.updateSessionAsync().get(5, TimeUnit.SECONDS));
+		assertEquals(0, unavailableResponses.get());
+		assertTrue(testSession.isConnected());
+	}
+
+	@Test
+	public void testUnavailableUntilDeadline() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		ChoiceViewClient client = testSession.getClient();
+		client.setRetryPolicy(new RetryPolicy(5, Duration.ofMillis(300), Duration.ofMillis(300), 0));
+		client.setRequestTimeout(Duration.ofMillis(200));
+		// The deadline leaves no time for a retry, so the 503 is handled as the last attempt
+		unavailableResponses.set(1000);
+		assertFalse(testSession.updateSession());
+		assertEquals(999, unavailableResponses.get());
+		assertFalse(testSession.updateSessionAsync().get(5, TimeUnit.SECONDS));
+		assertEquals(998, unavailableResponses.get());
+		assertTrue(testSession.isConnected());
+	}
+
+	@Test
+	public void testUpdateWithoutSession() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		emptySessionResponse = true;
+		assertFalse(testSession.updateSession());
+		assertEquals(SessionStatus.CONNECTED, testSession.getSessionStatus());
+		emptySessionResponse = true;
+		assertFalse(testSession.updateSessionAsync().get(5, TimeUnit.SECONDS));
+		assertEquals(SessionStatus.CONNECTED, testSession.getSessionStatus());
+		// The Switch no longer knows the session
+		activeSession = false;
+		assertTrue(testSession.updateSession());
+		assertEquals("disconnected", testSession.getStatus());
+	}
+
+	@Test
+	public void testPostNotRetried() throws Exception {
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		unavailableResponses.set(1);
+		assertFalse(testSession.sendUrl("http://www.radishsystems.com/"));
+		unavailableResponses.set(1);
+		assertFalse(testSession.sendUrlAsync("http://www.radishsystems.com/").get(5, TimeUnit.SECONDS));
+		assertTrue(testSession.sendUrl("http://www.radishsystems.com/"));
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		ChoiceViewClient client = testSession.getClient();
+		client.setRetryPolicy(RetryPolicy.NONE);
+		client.setCircuitBreakerThreshold(2);
+		client.setCircuitBreakerOpenDuration(Duration.ofMillis(300));
+		final List<CircuitBreaker.State> transitions = new ArrayList<CircuitBreaker.State>();
+		client.addCircuitBreakerListener((breaker, previous) -> {
+			synchronized(transitions) {
+				transitions.add(previous);
+				transitions.add(breaker.getState());
+			}
+		});
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		unavailableResponses.set(2);
+		assertFalse(testSession.sendUrl("http://www.radishsystems.com/"));
+		assertFalse(testSession.sendUrl("http://www.radishsystems.com/"));
+		CircuitBreaker breaker = client.getCircuitBreakers().iterator().next();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		try {
+			testSession.updateSession();
+			fail("Request sent with an open circuit breaker");
+		} catch(CircuitBreakerOpenException e) {
+			assertEquals(breaker.getHost(), e.getHost());
+		}
+		try {
+			testSession.sendUrlAsync("http://www.radishsystems.com/").get(5, TimeUnit.SECONDS);
+			fail("Request sent with an open circuit breaker");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+		}
+		Thread.sleep(400);
+		assertTrue(testSession.sendUrl("http://www.radishsystems.com/"));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getFailureCount());
+		synchronized(transitions) {
+			assertEquals(Arrays.asList(
+					CircuitBreaker.State.CLOSED, CircuitBreaker.State.OPEN,
+					CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN,
+					CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED), transitions);
+		}
+	}
+
+	@Test
+	public void testCoalescedSendUrl() throws Exception {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		testSession.getClient().setMetrics(metrics);
+		ManualScheduler scheduler = new ManualScheduler();
+		testSession.setUrlCoalescingWindow(Duration.ofMillis(50), scheduler);
+		assertEquals(Duration.ofMillis(50), testSession.getUrlCoalescingWindow());
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+
+		CompletableFuture<Boolean> first = testSession.sendUrlAsync("http://www.radishsystems.com/1");
+		CompletableFuture<Boolean> second = testSession.sendUrlAsync("http://www.radishsystems.com/2");
+		assertFalse(testSession.sendUrlAsync("").get());
+		CompletableFuture<Boolean> third = testSession.sendUrlAsync("http://www.radishsystems.com/3");
+		try {
+			first.get();
+			fail("Url was not replaced");
+		} catch(ExecutionException e) {
+			assertEquals("http://www.radishsystems.com/1", ((CoalescedException) e.getCause()).getUrl());
+		}
+		assertTrue(second.isCompletedExceptionally());
+		assertFalse(third.isDone());
+
+		// Only the last url of the window is sent, when the window closes
+		scheduler.advance(Duration.ofMillis(49));
+		assertFalse(third.isDone());
+		scheduler.advance(Duration.ofMillis(1));
+		assertTrue(third.get(5, TimeUnit.SECONDS));
+		assertEquals("http://www.radishsystems.com/3", lastUrl);
+		assertEquals(1, metrics.getStats(Operation.SEND_URL).getRequestCount());
+
+		// A later url opens a new window
+		CompletableFuture<Boolean> fourth = testSession.sendUrlAsync("http://www.radishsystems.com/4");
+		scheduler.advance(Duration.ofMillis(50));
+		assertTrue(fourth.get(5, TimeUnit.SECONDS));
+		assertEquals("http://www.radishsystems.com/4", lastUrl);
+		assertEquals(2, metrics.getStats(Operation.SEND_URL).getRequestCount());
+	}
+
+	@Test
+	public void testCoalescingTurnedOff() throws Exception {
+		ManualScheduler scheduler = new ManualScheduler();
+		testSession.setUrlCoalescingWindow(Duration.ofMillis(50), scheduler);
+		assertTrue(testSession.startSession(expectedCallerId, expectedCallId));
+		CompletableFuture<Boolean> pending = testSession.sendUrlAsync("http://www.radishsystems.com/1");
+		assertFalse(pending.isDone());
+
+		// The url held back is sent at once, and later urls are not held back
+		testSession.setUrlCoalescingWindow(null);
+		assertNull(testSession.getUrlCoalescingWindow());
+		assertTrue(pending.get(5, TimeUnit.SECONDS));
+		assertEquals("http://www.radishsystems.com/1", lastUrl);
+		assertTrue(testSession.sendUrl("http://www.radishsystems.com/2"));
+		assertEquals("http://www.radishsystems.com/2", lastUrl);
+
+		// A window opens with its first url, not when coalescing is turned on
+		testSession.setUrlCoalescingWindow(Duration.ofMillis(50), scheduler);
+		scheduler.advance(Duration.ofMillis(30));
+		CompletableFuture<Boolean> next = testSession.sendUrlAsync("http://www.radishsystems.com/3");
+		scheduler.advance(Duration.ofMillis(30));
+		assertFalse(next.isDone());
+		scheduler.advance(Duration.ofMillis(20));
+		assertTrue(next.get(5, TimeUnit.SECONDS));
+	}
+
 	@After
 	public void tearDown() throws Exception {
+		testSession.close();
 		testServer.stop();
 	}
 }
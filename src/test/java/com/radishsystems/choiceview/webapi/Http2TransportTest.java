@@ -0,0 +1,288 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Runs sessions against a stub Switch that speaks h2c on one port and h2 over TLS on another
+public class Http2TransportTest {
+
+	private static File keyStore;
+
+	private Server server;
+	private ServerConnector h2c;
+	private ServerConnector h2;
+	private ChoiceViewClient client;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1000);
+	// The protocol, client port and authorization header of each request, in arrival order
+	private final List<String> protocols = Collections.synchronizedList(new ArrayList<String>());
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private volatile String authorization;
+	private volatile long responseDelay;
+
+	private class SwitchHandler extends AbstractHandler {
+		public void handle(String target, Request baseRequest, HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			baseRequest.setHandled(true);
+			protocols.add(request.getProtocol());
+			clientPorts.add(request.getRemotePort());
+			authorization = request.getHeader("Authorization");
+			if(responseDelay > 0) {
+				try {
+					Thread.sleep(responseDelay);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			String method = request.getMethod();
+			if(target.equals("/ivr/api/sessions") && method.equals("POST")) {
+				Map<String, String> params = mapper.readValue(request.getInputStream(),
+						new TypeReference<Map<String, String>>() {});
+				response.setStatus(201);
+				writeSession(request, response, nextSessionId.incrementAndGet(), params.get("callerId"),
+						params.get("callId"), "connected");
+			} else if(target.startsWith("/ivr/api/session/")) {
+				int sessionId = Integer.parseInt(target.substring(target.lastIndexOf('/') + 1));
+				if(method.equals("GET")) {
+					writeSession(request, response, sessionId, "7202950840", "12345", "connected");
+				} else {
+					// sendUrl, sendText and endSession
+					response.setStatus(200);
+				}
+			} else {
+				response.setStatus(404);
+			}
+		}
+
+		private void writeSession(HttpServletRequest request, HttpServletResponse response, int sessionId,
+				String callerId, String callId, String status) throws IOException {
+			Map<String, Object> session = new HashMap<String, Object>();
+			session.put("sessionId", sessionId);
+			session.put("callerId", callerId);
+			session.put("callId", callId);
+			session.put("status", status);
+			Map<String, String> self = new HashMap<String, String>();
+			self.put("rel", "self");
+			self.put("href", request.getScheme() + "://localhost:" + request.getLocalPort() +
+					"/ivr/api/session/" + sessionId);
+			session.put("links", Collections.singletonList(self));
+			response.setContentType("application/json");
+			mapper.writeValue(response.getOutputStream(), session);
+		}
+	}
+
+	@BeforeClass
+	public static void createKeyStore() throws Exception {
+		if(!Transport.isHttp2Supported()) {
+			return;
+		}
+		keyStore = File.createTempFile("switch", ".p12");
+		keyStore.delete();
+		Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" +
+				File.separator + "keytool", "-genkeypair", "-alias", "switch", "-keyalg", "RSA", "-keysize", "2048",
+				"-validity", "1", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+				"-storetype", "PKCS12", "-keystore", keyStore.getPath(), "-storepass", "changeit",
+				"-keypass", "changeit").inheritIO().start();
+		assertEquals(0, keytool.waitFor());
+	}
+
+	@AfterClass
+	public static void deleteKeyStore() {
+		if(keyStore != null) {
+			keyStore.delete();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue(Transport.isHttp2Supported());
+		server = new Server();
+		HttpConfiguration config = new HttpConfiguration();
+		h2c = new ServerConnector(server, new HttpConnectionFactory(config), new HTTP2CServerConnectionFactory(config));
+
+		HttpConfiguration tlsConfig = new HttpConfiguration(config);
+		tlsConfig.addCustomizer(new SecureRequestCustomizer());
+		SslContextFactory.Server ssl = new SslContextFactory.Server();
+		ssl.setKeyStorePath(keyStore.getPath());
+		ssl.setKeyStorePassword("changeit");
+		ssl.setKeyStoreType("PKCS12");
+		ssl.setCipherComparator(HTTP2Cipher.COMPARATOR);
+		ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+		alpn.setDefaultProtocol("http/1.1");
+		h2 = new ServerConnector(server, new SslConnectionFactory(ssl, alpn.getProtocol()), alpn,
+				new HTTP2ServerConnectionFactory(tlsConfig), new HttpConnectionFactory(tlsConfig));
+
+		server.addConnector(h2c);
+		server.addConnector(h2);
+		server.setHandler(new SwitchHandler());
+		server.start();
+		client = new ChoiceViewClient("localhost", h2c.getLocalPort(), false);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(client != null) {
+			client.close();
+		}
+		if(server != null) {
+			server.stop();
+		}
+	}
+
+	private static SSLContext trustSwitch() throws Exception {
+		KeyStore trusted = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keyStore);
+		try {
+			trusted.load(in, "changeit".toCharArray());
+		} finally {
+			in.close();
+		}
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(trusted);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trust.getTrustManagers(), null);
+		return context;
+	}
+
+	private void runSession(ChoiceViewClient client) throws IOException {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(session.startSession("7202950840", "12345"));
+		assertTrue(session.sendUrl("http://www.radishsystems.com/"));
+		assertTrue(session.sendText("How may I help you?"));
+		assertTrue(session.updateSession());
+		assertEquals("connected", session.getStatus());
+		assertTrue(session.endSession());
+	}
+
+	@Test
+	public void testSessionOverH2c() throws Exception {
+		client.setTransport(Transport.http2());
+		runSession(client);
+		// The first request may be sent as HTTP/1.1 with an upgrade to h2c
+		assertEquals("HTTP/2.0", protocols.get(protocols.size() - 1));
+		assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	public void testSessionOverH2() throws Exception {
+		client.close();
+		client = new ChoiceViewClient("localhost", h2.getLocalPort(), true);
+		client.setTransport(Transport.http2(Duration.ofSeconds(5), trustSwitch()));
+		runSession(client);
+		assertEquals(Collections.nCopies(5, "HTTP/2.0"), protocols);
+		assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	public void testSessionsShareOneConnection() throws Exception {
+		client.setTransport(Transport.http2());
+		// Settle on HTTP/2 before the sessions start together
+		runSession(client);
+		clientPorts.clear();
+		List<ChoiceViewSession> sessions = new ArrayList<ChoiceViewSession>();
+		List<CompletableFuture<Boolean>> started = new ArrayList<CompletableFuture<Boolean>>();
+		for(int i = 0; i < 100; i++) {
+			ChoiceViewSession session = client.createSession();
+			sessions.add(session);
+			started.add(session.startSessionAsync("7202950840", String.valueOf(i)));
+		}
+		for(CompletableFuture<Boolean> result : started) {
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+		}
+		List<CompletableFuture<Boolean>> sent = new ArrayList<CompletableFuture<Boolean>>();
+		for(ChoiceViewSession session : sessions) {
+			sent.add(session.sendUrlAsync("http://www.radishsystems.com/"));
+		}
+		for(CompletableFuture<Boolean> result : sent) {
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, clientPorts.size());
+	}
+
+	@Test
+	public void testHttpClientTransportIsTheFallback() throws Exception {
+		Transport http2 = Transport.http2();
+		client.setTransport(http2);
+		assertSame(http2, client.getTransport());
+		client.setTransport(null);
+		assertNotSame(http2, client.getTransport());
+		runSession(client);
+		assertEquals(Collections.nCopies(5, "HTTP/1.1"), protocols);
+		http2.close();
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		client.setTransport(Transport.http2());
+		ChoiceViewSession session = client.createSession();
+		assertTrue(session.startSession("7202950840", "12345"));
+		responseDelay = 2000;
+		client.setRequestTimeout(Duration.ofMillis(200));
+		long start = System.nanoTime();
+		try {
+			session.sendUrl("http://www.radishsystems.com/");
+			fail("Deadline did not expire");
+		} catch(ChoiceViewTimeoutException e) {
+		}
+		try {
+			session.sendUrlAsync("http://www.radishsystems.com/").get(5, TimeUnit.SECONDS);
+			fail("Deadline did not expire");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof ChoiceViewTimeoutException);
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+	}
+
+	@Test
+	public void testCredentials() throws Exception {
+		client.close();
+		client = new ChoiceViewClient("localhost", h2c.getLocalPort(), false, "user", "secret");
+		client.setTransport(Transport.http2());
+		assertTrue(client.createSession().startSession("7202950840", "12345"));
+		assertEquals("Basic dXNlcjpzZWNyZXQ=", authorization);
+	}
+}
@@ -0,0 +1,63 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class InMemoryMetricsTest {
+
+	@Test
+	public void testBucketBounds() {
+		for(long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE }) {
+			int index = InMemoryMetrics.Histogram.index(value);
+			assertTrue(value <= InMemoryMetrics.Histogram.upperBound(index));
+			if(index > 0) {
+				assertTrue(value > InMemoryMetrics.Histogram.upperBound(index - 1));
+			}
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		InMemoryMetrics.Histogram histogram = new InMemoryMetrics.Histogram();
+		assertEquals(0, histogram.getPercentile(0.99));
+		for(int i = 1; i <= 1000; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(500) + 500, histogram.getMean());
+		assertWithin(TimeUnit.MICROSECONDS.toNanos(500), histogram.getPercentile(0.5));
+		assertWithin(TimeUnit.MICROSECONDS.toNanos(990), histogram.getPercentile(0.99));
+		assertWithin(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMax());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual,
+				actual >= expected && actual <= expected * 1.13);
+	}
+
+	@Test
+	public void testOperationStats() {
+		InMemoryMetrics metrics = new InMemoryMetrics();
+		metrics.requestCompleted(Operation.SEND_URL, 200, 1000, 40, 0);
+		metrics.requestCompleted(Operation.SEND_URL, 404, 2000, 40, 10);
+		metrics.requestFailed(Operation.SEND_URL, new ChoiceViewTimeoutException("timeout"), 3000);
+		InMemoryMetrics.OperationStats stats = metrics.getStats(Operation.SEND_URL);
+		assertEquals(3, stats.getRequestCount());
+		assertEquals(1, stats.getFailureCount());
+		assertEquals(80, stats.getBytesSent());
+		assertEquals(10, stats.getBytesReceived());
+		assertEquals(1, stats.getStatusCount(200));
+		assertEquals(1, stats.getStatusCount(404));
+		assertEquals(2, stats.getStatusCodes().size());
+		assertEquals(0, metrics.getStats(Operation.SEND_TEXT).getRequestCount());
+
+		metrics.sessionActivated();
+		metrics.sessionActivated();
+		metrics.sessionDeactivated();
+		assertEquals(1, metrics.getActiveSessions());
+		assertEquals(2, metrics.getStartedSessions());
+	}
+}
@@ -0,0 +1,62 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.junit.Test;
+
+public class LinkTableTest {
+
+	final static String selfUri = "http://localhost/ivr/api/session/1001";
+
+	private static List<ChoiceViewSession.Link> links() {
+		List<ChoiceViewSession.Link> links = new ArrayList<ChoiceViewSession.Link>();
+		links.add(new ChoiceViewSession.Link("SELF", selfUri));
+		links.add(new ChoiceViewSession.Link(ChoiceViewSession.ControlMessageRel, selfUri + "/controlmessage"));
+		links.add(new ChoiceViewSession.Link(ChoiceViewSession.PayloadRel, selfUri + "/properties"));
+		links.add(new ChoiceViewSession.Link("self", "http://localhost/ignored"));
+		links.add(new ChoiceViewSession.Link("/rels/broken", "http://local host/"));
+		return links;
+	}
+
+	@Test
+	public void testResolvesDerivedUris() {
+		LinkTable table = LinkTable.resolve(links());
+		assertEquals(URI.create(selfUri), table.getSelf());
+		assertEquals(URI.create(selfUri + "/controlmessage"), table.getControlMessage());
+		assertEquals(URI.create(selfUri + "/properties"), table.getPayload());
+		assertEquals(URI.create(selfUri + "/properties"), table.get("/RELS/PROPERTIES"));
+		assertNull(table.get("/rels/broken"));
+		assertNull(table.get("/rels/missing"));
+	}
+
+	@Test
+	public void testTransferUrisAreCached() {
+		LinkTable table = LinkTable.resolve(links());
+		URI transfer = table.getTransfer("test1");
+		assertEquals(URI.create(selfUri + "/transfer/test1"), transfer);
+		assertSame(transfer, table.getTransfer("test1"));
+		assertNull(table.getTransfer("bad account"));
+	}
+
+	@Test
+	public void testEmptyTable() {
+		LinkTable table = LinkTable.resolve(new ArrayList<ChoiceViewSession.Link>());
+		assertSame(LinkTable.EMPTY, table);
+		assertNull(table.getSelf());
+		assertNull(table.getTransfer("test1"));
+	}
+
+	@Test
+	public void testParsedSessionHasLinkTable() throws Exception {
+		ChoiceViewSession.Session session = new SessionParser(new JsonFactory())
+				.readSession(new ByteArrayInputStream(SessionParserTest.sessionJson.getBytes("UTF-8")));
+		assertEquals(URI.create("http://localhost/ivr/api/session/1001/controlmessage"),
+				session.linkTable.getControlMessage());
+	}
+}
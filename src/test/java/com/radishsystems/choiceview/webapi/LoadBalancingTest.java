@@ -0,0 +1,224 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+
+public class LoadBalancingTest {
+
+	private static final AtomicInteger nextSessionId = new AtomicInteger(2000);
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	// A Switch that starts every session and counts the requests for them
+	static class StubSwitch {
+		final LocalTestServer server = new LocalTestServer(null, null);
+		final AtomicInteger started = new AtomicInteger();
+		final AtomicInteger updates = new AtomicInteger();
+		volatile boolean unavailable;
+
+		StubSwitch() throws Exception {
+			server.register("/ivr/api/sessions", new HttpRequestHandler() {
+				public void handle(HttpRequest request, HttpResponse response,
+						HttpContext context) throws HttpException, IOException {
+					if(unavailable) {
+						response.setStatusCode(503);
+					} else if(request.getRequestLine().getMethod().equals("POST")) {
+						started.incrementAndGet();
+						response.setStatusCode(201);
+						response.setEntity(session(nextSessionId.incrementAndGet()));
+					} else {
+						response.setStatusCode(405);
+					}
+				}
+			});
+			server.register("/ivr/api/session/*", new HttpRequestHandler() {
+				public void handle(HttpRequest request, HttpResponse response,
+						HttpContext context) throws HttpException, IOException {
+					String uri = request.getRequestLine().getUri();
+					updates.incrementAndGet();
+					response.setStatusCode(200);
+					response.setEntity(session(Integer.parseInt(uri.substring(uri.lastIndexOf('/') + 1))));
+				}
+			});
+			server.start();
+		}
+
+		SwitchEndpoint getEndpoint() {
+			return new SwitchEndpoint("localhost", server.getServiceAddress().getPort(), false);
+		}
+
+		StringEntity session(int sessionId) throws IOException {
+			String selfUri = "http://localhost:" + server.getServiceAddress().getPort() + "/ivr/api/session/" + sessionId;
+			Map<String, Object> session = new HashMap<String, Object>();
+			session.put("sessionId", sessionId);
+			session.put("callerId", "7202950840");
+			session.put("callId", "call" + sessionId);
+			session.put("status", "connected");
+			Map<String, String> self = new HashMap<String, String>();
+			self.put("rel", "self");
+			self.put("href", selfUri);
+			session.put("links", Arrays.asList(self));
+			return new StringEntity(mapper.writeValueAsString(session), ContentType.APPLICATION_JSON);
+		}
+	}
+
+	private final List<StubSwitch> switches = new ArrayList<StubSwitch>();
+	private ChoiceViewClient client;
+
+	private ChoiceViewClient createClient(int switchCount, SwitchEndpoint... others) throws Exception {
+		List<SwitchEndpoint> endpoints = new ArrayList<SwitchEndpoint>();
+		for(int i = 0; i < switchCount; i++) {
+			StubSwitch stub = new StubSwitch();
+			switches.add(stub);
+			endpoints.add(stub.getEndpoint());
+		}
+		endpoints.addAll(Arrays.asList(others));
+		client = new ChoiceViewClient(endpoints);
+		client.setHealthCheckInterval(Duration.ZERO);
+		return client;
+	}
+
+	private static int port(ChoiceViewSession session) {
+		return session.getSessionUri().getPort();
+	}
+
+	@Test
+	public void testRoundRobin() throws Exception {
+		createClient(3);
+		List<ChoiceViewSession> sessions = new ArrayList<ChoiceViewSession>();
+		for(int i = 0; i < 6; i++) {
+			ChoiceViewSession session = client.createSession();
+			assertTrue(session.startSession("7202950840", "call" + i));
+			sessions.add(session);
+		}
+		for(StubSwitch stub : switches) {
+			assertEquals(2, stub.started.get());
+		}
+		// Every session stays on the Switch that started it
+		for(ChoiceViewSession session : sessions) {
+			assertTrue(session.updateSession());
+			assertEquals("connected", session.getStatus());
+		}
+		for(StubSwitch stub : switches) {
+			assertEquals(2, stub.updates.get());
+		}
+		for(int i = 0; i < 6; i++) {
+			assertEquals(port(sessions.get(i % 3)), port(sessions.get(i)));
+		}
+	}
+
+	@Test
+	public void testFailover() throws Exception {
+		int unusedPort;
+		try(ServerSocket socket = new ServerSocket(0)) {
+			unusedPort = socket.getLocalPort();
+		}
+		SwitchEndpoint down = new SwitchEndpoint("localhost", unusedPort, false);
+		createClient(1, down);
+		for(int i = 0; i < 4; i++) {
+			ChoiceViewSession session = client.createSession();
+			assertTrue(session.startSession("7202950840", "call" + i));
+			assertEquals(switches.get(0).server.getServiceAddress().getPort(), port(session));
+		}
+		assertEquals(4, switches.get(0).started.get());
+		assertFalse(down.isHealthy());
+		assertEquals(0, down.getOutstandingRequests());
+	}
+
+	@Test
+	public void testHealthCheck() throws Exception {
+		createClient(2);
+		StubSwitch sick = switches.get(1);
+		sick.unavailable = true;
+		client.checkHealth();
+		assertTrue(client.getEndpoints().get(0).isHealthy());
+		assertFalse(client.getEndpoints().get(1).isHealthy());
+		for(int i = 0; i < 4; i++) {
+			assertTrue(client.createSession().startSession("7202950840", "call" + i));
+		}
+		assertEquals(4, switches.get(0).started.get());
+		assertEquals(0, sick.started.get());
+
+		sick.unavailable = false;
+		client.checkHealth();
+		assertTrue(client.getEndpoints().get(1).isHealthy());
+		for(int i = 0; i < 4; i++) {
+			assertTrue(client.createSession().startSession("7202950840", "call" + i));
+		}
+		assertEquals(2, sick.started.get());
+	}
+
+	@Test
+	public void testLeastOutstandingRequests() {
+		SwitchEndpoint busy = new SwitchEndpoint("switch1", false);
+		SwitchEndpoint idle = new SwitchEndpoint("switch2", false);
+		busy.requestStarted();
+		LoadBalancingPolicy policy = LoadBalancingPolicy.leastOutstandingRequests();
+		for(int i = 0; i < 10; i++) {
+			assertSame(idle, policy.choose(Arrays.asList(busy, idle)));
+		}
+		busy.requestCompleted(1000000);
+		int idleChosen = 0;
+		for(int i = 0; i < 10; i++) {
+			if(policy.choose(Arrays.asList(busy, idle)) == idle) {
+				idleChosen++;
+			}
+		}
+		assertEquals(5, idleChosen);
+	}
+
+	@Test
+	public void testLatencyWeighted() {
+		SwitchEndpoint fast = new SwitchEndpoint("switch1", false);
+		SwitchEndpoint slow = new SwitchEndpoint("switch2", false);
+		SwitchEndpoint unmeasured = new SwitchEndpoint("switch3", false);
+		fast.requestStarted();
+		fast.requestCompleted(Duration.ofMillis(10).toNanos());
+		slow.requestStarted();
+		slow.requestCompleted(Duration.ofMillis(1000).toNanos());
+		LoadBalancingPolicy policy = LoadBalancingPolicy.latencyWeighted();
+		Map<SwitchEndpoint, Integer> chosen = new HashMap<SwitchEndpoint, Integer>();
+		for(int i = 0; i < 10000; i++) {
+			chosen.merge(policy.choose(Arrays.asList(fast, slow, unmeasured)), 1, Integer::sum);
+		}
+		assertTrue(chosen.get(fast) > 4000);
+		assertTrue(chosen.get(unmeasured) > 4000);
+		assertTrue(chosen.getOrDefault(slow, 0) < 500);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testDuplicateEndpoints() {
+		new ChoiceViewClient(Arrays.asList(new SwitchEndpoint("switch1", 80, false),
+				new SwitchEndpoint("switch1", false)));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(client != null) {
+			client.close();
+		}
+		for(StubSwitch stub : switches) {
+			stub.server.stop();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationReceiverTest {
+
+	private NotificationReceiver receiver;
+	private LocalTestServer testServer;
+	private ChoiceViewClient client;
+	private DefaultHttpClient switchClient;
+	private final BlockingQueue<Notification> received = new LinkedBlockingQueue<Notification>();
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1000);
+
+	// Starts every session it is asked to, echoing back the call id
+	private HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			Map<String, String> params = mapper.readValue(
+					EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()),
+					new TypeReference<Map<String, String>>() {});
+			int sessionId = nextSessionId.incrementAndGet();
+			Map<String, Object> session = new HashMap<String, Object>();
+			session.put("sessionId", sessionId);
+			session.put("callerId", params.get("callerId"));
+			session.put("callId", params.get("callId"));
+			session.put("status", "connected");
+			Map<String, String> controlMessage = new HashMap<String, String>();
+			controlMessage.put("rel", ChoiceViewSession.ControlMessageRel);
+			controlMessage.put("href", "http://localhost:" + testServer.getServiceAddress().getPort() +
+					"/ivr/api/session/" + sessionId + "/controlmessage");
+			session.put("links", Arrays.asList(controlMessage));
+			response.setStatusCode(201);
+			response.setEntity(new StringEntity(mapper.writeValueAsString(session), ContentType.APPLICATION_JSON));
+			lastStartRequest = params;
+		}
+	};
+	private volatile Map<String, String> lastStartRequest;
+
+	// Every session has the same control message, available once pendingMessages is set
+	private final AtomicInteger pendingMessages = new AtomicInteger();
+	private final AtomicInteger controlMessageGets = new AtomicInteger();
+	private HttpRequestHandler controlMessageHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			response.setStatusCode(200);
+			if(request.getRequestLine().getMethod().equals("DELETE")) {
+				pendingMessages.decrementAndGet();
+			} else {
+				controlMessageGets.incrementAndGet();
+				if(pendingMessages.get() > 0) {
+					response.setEntity(new StringEntity("{\"ButtonName\":\"ChoiceView+Demo\"}", ContentType.APPLICATION_JSON));
+				}
+			}
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		receiver = new NotificationReceiver(new InetSocketAddress("localhost", 0),
+				URI.create("http://localhost:0/ivr"), 1);
+		receiver.setRefreshOnStateChange(false);
+		receiver.addListener(new NotificationListener() {
+			public void notificationReceived(Notification notification) {
+				received.add(notification);
+			}
+		});
+		receiver.start();
+		testServer = new LocalTestServer(null, null);
+		testServer.register("/ivr/api/sessions", sessionsHandler);
+		testServer.register("/ivr/api/session/*", controlMessageHandler);
+		testServer.start();
+		client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+		switchClient = new DefaultHttpClient();
+	}
+
+	private String localUri(URI callbackUri) {
+		return "http://localhost:" + receiver.getAddress().getPort() + callbackUri.getRawPath() +
+				(callbackUri.getRawQuery() == null ? "" : "?" + callbackUri.getRawQuery());
+	}
+
+	private int send(HttpUriRequest request) throws IOException {
+		HttpResponse response = switchClient.execute(request);
+		EntityUtils.consume(response.getEntity());
+		return response.getStatusLine().getStatusCode();
+	}
+
+	@Test
+	public void testCallbackUris() {
+		assertEquals(URI.create("http://localhost:0/ivr/statechange?callId=call+1"),
+				receiver.getStateChangeUri("call 1"));
+		assertEquals(URI.create("http://localhost:0/ivr/newmessage?callId=12345"),
+				receiver.getNewMessageUri("12345"));
+	}
+
+	@Test
+	public void testBasicStateChangeNotification() throws Exception {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(receiver.startSession(session, "7202950840", "12345", "basic"));
+
+		assertEquals(receiver.getStateChangeUri("12345").toString(), lastStartRequest.get("stateChangeUri"));
+		assertEquals(receiver.getNewMessageUri("12345").toString(), lastStartRequest.get("newMessageUri"));
+		assertEquals(1, receiver.getSessionCount());
+
+		assertEquals(200, send(new HttpGet(localUri(receiver.getStateChangeUri("12345")))));
+		Notification notification = received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(notification);
+		assertEquals(Notification.Type.STATE_CHANGE, notification.getType());
+		assertSame(session, notification.getSession());
+		assertEquals("12345", notification.getParameters().get("callId"));
+	}
+
+	@Test
+	public void testCcxmlNewMessageNotification() throws Exception {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(receiver.startSession(session, "7202950840", "12345", "ccxml"));
+
+		HttpPost request = new HttpPost(localUri(receiver.getNewMessageUri("12345")));
+		request.setEntity(new StringEntity("sessionid=ccxml-1&name=choiceview.newmessage&ButtonName=ChoiceView%2BDemo",
+				ContentType.APPLICATION_FORM_URLENCODED));
+		assertEquals(200, send(request));
+		Notification notification = received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(notification);
+		assertEquals(Notification.Type.NEW_MESSAGE, notification.getType());
+		assertSame(session, notification.getSession());
+		assertEquals("choiceview.newmessage", notification.getParameters().get("name"));
+		assertEquals("ChoiceView+Demo", notification.getParameters().get("ButtonName"));
+	}
+
+	@Test
+	public void testAwaitNotifiedControlMessage() throws Exception {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(receiver.startSession(session, "7202950840", "12345", "basic"));
+		CompletableFuture<Map<String, String>> result = session.awaitControlMessageAsync(Duration.ofSeconds(30));
+		Thread.sleep(300);
+		assertEquals(1, controlMessageGets.get());
+		assertFalse(result.isDone());
+
+		// Without the notification the next poll would be seconds away
+		pendingMessages.set(1);
+		long start = System.nanoTime();
+		assertEquals(200, send(new HttpGet(localUri(receiver.getNewMessageUri("12345")))));
+		assertEquals("ChoiceView+Demo", result.get(5, TimeUnit.SECONDS).get("ButtonName"));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		assertEquals(0, pendingMessages.get());
+	}
+
+	@Test
+	public void testUnknownSession() throws Exception {
+		assertEquals(404, send(new HttpGet(localUri(receiver.getStateChangeUri("unknown")))));
+		assertEquals(405, send(new HttpPut(localUri(receiver.getStateChangeUri("unknown")))));
+		assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testMatchBySessionId() throws Exception {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(receiver.startSession(session, "7202950840", "12345", "basic"));
+		assertEquals(200, send(new HttpGet(localUri(URI.create(receiver.getStateChangeUri(null) +
+				"?sessionId=" + session.getSessionId())))));
+		Notification notification = received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(notification);
+		assertSame(session, notification.getSession());
+
+		receiver.unregister(session);
+		assertEquals(0, receiver.getSessionCount());
+		assertEquals(404, send(new HttpGet(localUri(receiver.getStateChangeUri("12345")))));
+	}
+
+	@Test
+	public void testManySessions() throws Exception {
+		for(int i = 0; i < 500; i++) {
+			assertTrue(receiver.startSession(client.createSession(), "7202950840", String.valueOf(i), "basic"));
+		}
+		assertEquals(500, receiver.getSessionCount());
+		assertEquals(200, send(new HttpGet(localUri(receiver.getNewMessageUri("499")))));
+		Notification notification = received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(notification);
+		assertEquals("499", notification.getSession().getCallId());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		switchClient.getConnectionManager().shutdown();
+		client.close();
+		testServer.stop();
+		receiver.close();
+	}
+}
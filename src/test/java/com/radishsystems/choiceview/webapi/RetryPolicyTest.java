@@ -0,0 +1,53 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	@Test
+	public void testBackoff() {
+		RetryPolicy policy = new RetryPolicy(5, Duration.ofMillis(100), Duration.ofMillis(350), 0);
+		assertEquals(Duration.ofMillis(100), policy.getBackoff(1));
+		assertEquals(Duration.ofMillis(200), policy.getBackoff(2));
+		assertEquals(Duration.ofMillis(350), policy.getBackoff(3));
+		assertEquals(Duration.ofMillis(350), policy.getBackoff(40));
+	}
+
+	@Test
+	public void testJitter() {
+		RetryPolicy policy = new RetryPolicy(5, Duration.ofMillis(100), Duration.ofSeconds(1), 0.5);
+		for(int i = 0; i < 1000; i++) {
+			Duration backoff = policy.getBackoff(2);
+			assertTrue(backoff.compareTo(Duration.ofMillis(100)) >= 0);
+			assertTrue(backoff.compareTo(Duration.ofMillis(200)) <= 0);
+		}
+	}
+
+	@Test
+	public void testRetriable() {
+		RetryPolicy policy = RetryPolicy.DEFAULT;
+		assertTrue(policy.isRetriable("GET", 503));
+		assertTrue(policy.isRetriable("DELETE", 502));
+		assertFalse(policy.isRetriable("GET", 500));
+		assertFalse(policy.isRetriable("POST", 503));
+		assertTrue(policy.isRetriable("POST", new ConnectException()));
+		assertFalse(policy.isRetriable("POST", new IOException()));
+		assertTrue(policy.isRetriable("GET", new IOException()));
+		assertFalse(policy.isRetriable("GET", new SocketTimeoutException()));
+		assertFalse(policy.isRetriable("GET", new ConnectionPoolTimeoutException()));
+		assertFalse(policy.isRetriable("GET", new CircuitBreakerOpenException("localhost:80")));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoAttempts() {
+		new RetryPolicy(0, Duration.ZERO, Duration.ZERO, 0);
+	}
+}
@@ -0,0 +1,162 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionBatchTest {
+
+	private LocalTestServer testServer;
+	private ChoiceViewClient client;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1000);
+	private final AtomicInteger deletes = new AtomicInteger();
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	private volatile long delay = 50;
+
+	// Starts every session it is asked to, echoing back the caller and call ids
+	private HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			Map<String, String> params = mapper.readValue(
+					EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()),
+					new TypeReference<Map<String, String>>() {});
+			int sessionId = nextSessionId.incrementAndGet();
+			Map<String, Object> session = new HashMap<String, Object>();
+			session.put("sessionId", sessionId);
+			session.put("callerId", params.get("callerId"));
+			session.put("callId", params.get("callId"));
+			session.put("status", "connected");
+			Map<String, String> self = new HashMap<String, String>();
+			self.put("rel", "self");
+			self.put("href", "http://" + testServer.getServiceAddress().getHostName() + ":" +
+					testServer.getServiceAddress().getPort() + "/ivr/api/session/" + sessionId);
+			session.put("links", Collections.singletonList(self));
+			response.setStatusCode(201);
+			response.setEntity(new StringEntity(mapper.writeValueAsString(session), ContentType.APPLICATION_JSON));
+		}
+	};
+
+	private HttpRequestHandler sessionHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			int count = concurrent.incrementAndGet();
+			maxConcurrent.accumulateAndGet(count, Math::max);
+			try {
+				Thread.sleep(delay);
+			} catch(InterruptedException e) {
+				throw new IOException(e);
+			} finally {
+				concurrent.decrementAndGet();
+			}
+			if(request.getRequestLine().getMethod().equals("DELETE") ||
+					request.getRequestLine().getUri().endsWith("/transfer/Other")) {
+				deletes.incrementAndGet();
+				response.setStatusCode(200);
+			} else {
+				response.setStatusCode(404);
+			}
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		testServer = new LocalTestServer(null, null);
+		testServer.register("/ivr/api/sessions", sessionsHandler);
+		testServer.register("/ivr/api/session/*", sessionHandler);
+		testServer.start();
+		client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		testServer.stop();
+	}
+
+	private List<ChoiceViewSession> startSessions(int count) throws IOException {
+		List<ChoiceViewSession> sessions = new ArrayList<ChoiceViewSession>();
+		for(int i = 0; i < count; i++) {
+			ChoiceViewSession session = client.createSession();
+			assertTrue(session.startSession("7202950840", String.valueOf(i)));
+			sessions.add(session);
+		}
+		return sessions;
+	}
+
+	@Test
+	public void testEndSessionsWithBoundedConcurrency() throws Exception {
+		List<ChoiceViewSession> sessions = startSessions(20);
+		ChoiceViewSession ended = sessions.get(0);
+		assertTrue(ended.endSession());
+		deletes.set(0);
+		maxConcurrent.set(0);
+
+		SessionBatch batch = new SessionBatch(sessions);
+		batch.setMaxConcurrent(4);
+		BatchResult result = batch.endSessions();
+		assertEquals(sessions, new ArrayList<ChoiceViewSession>(result.getOutcomes().keySet()));
+		assertEquals(BatchResult.Outcome.REJECTED, result.getOutcome(ended));
+		assertEquals(19, result.getCount(BatchResult.Outcome.SUCCEEDED));
+		assertFalse(result.isSuccessful());
+		assertEquals(19, deletes.get());
+		assertTrue(maxConcurrent.get() > 1);
+		assertTrue(maxConcurrent.get() <= 4);
+		for(ChoiceViewSession session : sessions) {
+			assertEquals(SessionStatus.DISCONNECTED, session.getSessionStatus());
+		}
+	}
+
+	@Test
+	public void testTransferSessions() throws Exception {
+		List<ChoiceViewSession> sessions = startSessions(5);
+		BatchResult result = new SessionBatch(sessions).transferSessions("Other");
+		assertTrue(result.isSuccessful());
+		for(ChoiceViewSession session : sessions) {
+			assertEquals(SessionStatus.TRANSFERRED, session.getSessionStatus());
+		}
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		List<ChoiceViewSession> sessions = startSessions(10);
+		delay = 1000;
+		SessionBatch batch = new SessionBatch(sessions);
+		batch.setMaxConcurrent(2);
+		batch.setDeadline(Duration.ofMillis(300));
+		long start = System.nanoTime();
+		BatchResult result = batch.endSessionsAsync().get(5, TimeUnit.SECONDS);
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+		assertEquals(2, result.getCount(BatchResult.Outcome.FAILED));
+		assertEquals(8, result.getCount(BatchResult.Outcome.SKIPPED));
+		assertTrue(result.getError(sessions.get(0)) instanceof ChoiceViewTimeoutException);
+		assertNull(result.getError(sessions.get(9)));
+		assertEquals(SessionStatus.CONNECTED, sessions.get(9).getSessionStatus());
+	}
+}
@@ -0,0 +1,113 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+public class SessionParserTest {
+
+	final static String sessionJson = "{\"sessionId\":1001,\"callerId\":\"7202950840\",\"callId\":\"12345\"," +
+			"\"status\":\"connected\",\"networkQuality\":\"excellent\",\"networkType\":\"WiFi\"," +
+			"\"properties\":{\"TestKey1\":\"TestValue\",\"TestKey2\":\"TestValue\"}," +
+			"\"links\":[{\"rel\":\"self\",\"href\":\"http://localhost/ivr/api/session/1001\"}," +
+			"{\"rel\":\"/rels/controlmessage\",\"href\":\"http://localhost/ivr/api/session/1001/controlmessage\"}," +
+			"{\"rel\":\"/rels/properties\",\"href\":\"http://localhost/ivr/api/session/1001/properties\"}]}";
+	final static String payloadJson = "{\"properties\":{\"TestKey1\":\"UpdatedTestValue\"}," +
+			"\"links\":[{\"rel\":\"self\",\"href\":\"http://localhost/ivr/api/session/1001/properties\"}]}";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final SessionParser parser = new SessionParser(mapper.getJsonFactory());
+
+	private static ByteArrayInputStream stream(String json) {
+		return new ByteArrayInputStream(json.getBytes(ContentType.APPLICATION_JSON.getCharset()));
+	}
+
+	@Test
+	public void testReadSession() throws IOException {
+		ChoiceViewSession.Session session = parser.readSession(stream(sessionJson));
+		assertEquals(1001, session.sessionId);
+		assertEquals("7202950840", session.callerId);
+		assertEquals("12345", session.callId);
+		assertEquals("connected", session.status);
+		assertEquals("excellent", session.networkQuality);
+		assertEquals("WiFi", session.networkType);
+		assertEquals(2, session.properties.size());
+		assertEquals("TestValue", session.properties.get("TestKey1"));
+		assertEquals(3, session.links.size());
+		assertEquals("self", session.links.get(0).rel);
+		assertEquals("http://localhost/ivr/api/session/1001/properties", session.links.get(2).href);
+	}
+
+	@Test
+	public void testReadSessionSkipsUnknownFields() throws IOException {
+		ChoiceViewSession.Session session = parser.readSession(stream(
+				"{\"sessionId\":\"42\",\"extra\":{\"nested\":[1,2,{\"a\":null}]},\"callId\":null," +
+				"\"links\":[{\"rel\":\"self\",\"href\":\"http://localhost/\",\"title\":\"x\"}]}"));
+		assertEquals(42, session.sessionId);
+		assertNull(session.callId);
+		assertEquals("disconnected", session.status);
+		assertEquals(1, session.links.size());
+	}
+
+	@Test
+	public void testReadPayload() throws IOException {
+		ChoiceViewSession.Payload payload = parser.readPayload(stream(payloadJson));
+		assertEquals("UpdatedTestValue", payload.properties.get("TestKey1"));
+		assertEquals(1, payload.links.size());
+	}
+
+	@Test
+	public void testReadControlMessage() throws IOException {
+		assertNull(parser.readControlMessage(stream("")));
+		Map<String, String> message = parser.readControlMessage(stream("{\"ButtonNumber\":\"0\",\"MenuNumber\":1}"));
+		assertEquals("0", message.get("ButtonNumber"));
+		assertEquals("1", message.get("MenuNumber"));
+	}
+
+	@Test(expected=IOException.class)
+	public void testReadSessionRejectsArrays() throws IOException {
+		parser.readSession(stream("[1,2,3]"));
+	}
+
+	// Before/after comparison of the bytes allocated to decode one session response
+	@Test
+	public void testStreamingAllocatesLessThanBuffering() throws IOException {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+		final int iterations = 20000;
+		final StringEntity entity = new StringEntity(sessionJson, ContentType.APPLICATION_JSON);
+
+		for(int i = 0; i < iterations; i++) {
+			mapper.readValue(EntityUtils.toString(entity), ChoiceViewSession.Session.class);
+			parser.readSession(entity.getContent());
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long start = threads.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < iterations; i++) {
+			mapper.readValue(EntityUtils.toString(entity), ChoiceViewSession.Session.class);
+		}
+		long buffered = (threads.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+		start = threads.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < iterations; i++) {
+			parser.readSession(entity.getContent());
+		}
+		long streaming = (threads.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+		System.out.println(String.format("Session decode: buffered %d bytes/op, streaming %d bytes/op",
+				buffered, streaming));
+		assertTrue(streaming < buffered);
+	}
+}
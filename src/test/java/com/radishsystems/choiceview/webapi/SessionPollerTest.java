@@ -0,0 +1,216 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionPollerTest {
+
+	private LocalTestServer testServer;
+	private ChoiceViewClient client;
+	private SessionPoller poller;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1000);
+	private final AtomicInteger polls = new AtomicInteger();
+	private final AtomicInteger unavailableResponses = new AtomicInteger();
+	private final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+	private volatile String status = "connected";
+	private volatile String networkQuality = "excellent";
+
+	private String sessionJson(int sessionId) throws IOException {
+		Map<String, Object> session = new HashMap<String, Object>();
+		session.put("sessionId", sessionId);
+		session.put("callerId", "7202950840");
+		session.put("status", status);
+		session.put("networkQuality", networkQuality);
+		session.put("networkType", "WiFi");
+		Map<String, String> self = new HashMap<String, String>();
+		self.put("rel", "self");
+		self.put("href", "http://" + testServer.getServiceAddress().getHostName() + ":" +
+				testServer.getServiceAddress().getPort() + "/ivr/api/session/" + sessionId);
+		session.put("links", Collections.singletonList(self));
+		return mapper.writeValueAsString(session);
+	}
+
+	private HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			response.setStatusCode(201);
+			response.setEntity(new StringEntity(sessionJson(nextSessionId.incrementAndGet()),
+					ContentType.APPLICATION_JSON));
+		}
+	};
+
+	private HttpRequestHandler sessionHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			String uri = request.getRequestLine().getUri();
+			polls.incrementAndGet();
+			if(unavailableResponses.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+				response.setStatusCode(503);
+				return;
+			}
+			response.setEntity(new StringEntity(sessionJson(Integer.parseInt(uri.substring(uri.lastIndexOf('/') + 1))),
+					ContentType.APPLICATION_JSON));
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		testServer = new LocalTestServer(null, null);
+		testServer.register("/ivr/api/sessions", sessionsHandler);
+		testServer.register("/ivr/api/session/*", sessionHandler);
+		testServer.start();
+		client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+		poller = new SessionPoller();
+		poller.setConnectedInterval(20, TimeUnit.MILLISECONDS);
+		poller.setSuspendedInterval(100, TimeUnit.MILLISECONDS);
+		poller.addListener(new SessionChangeListener() {
+			public void sessionChanged(ChoiceViewSession session, String previousStatus,
+					String previousNetworkQuality, String previousNetworkType) {
+				changes.add(previousStatus + "/" + previousNetworkQuality + " -> " +
+						session.getStatus() + "/" + session.getNetworkQuality());
+			}
+		});
+	}
+
+	private ChoiceViewSession startSession() throws IOException {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(session.startSession("7202950840", null));
+		return session;
+	}
+
+	@Test
+	public void testListenersOnlySeeChanges() throws Exception {
+		ChoiceViewSession session = startSession();
+		assertTrue(poller.add(session));
+		assertFalse(poller.add(session));
+
+		while(polls.get() < 5) {
+			Thread.sleep(10);
+		}
+		assertNull(changes.poll());
+
+		networkQuality = "poor";
+		assertEquals("connected/excellent -> connected/poor", changes.poll(5, TimeUnit.SECONDS));
+		status = "suspended";
+		assertEquals("connected/poor -> suspended/poor", changes.poll(5, TimeUnit.SECONDS));
+		status = "disconnected";
+		assertEquals("suspended/poor -> disconnected/poor", changes.poll(5, TimeUnit.SECONDS));
+
+		// Polling stops after the session is disconnected
+		assertFalse(poller.contains(session));
+		int count = polls.get();
+		Thread.sleep(200);
+		assertEquals(count, polls.get());
+		assertNull(changes.poll());
+	}
+
+	@Test
+	public void testPollingResumesAfterSwitchUnavailable() throws Exception {
+		client.setRetryPolicy(RetryPolicy.NONE);
+		ChoiceViewSession session = startSession();
+		unavailableResponses.set(3);
+		assertTrue(poller.add(session));
+		long deadline = System.currentTimeMillis() + 5000;
+		while(unavailableResponses.get() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, unavailableResponses.get());
+		assertTrue(poller.contains(session));
+		assertEquals("connected", session.getStatus());
+
+		networkQuality = "poor";
+		assertEquals("connected/excellent -> connected/poor", changes.poll(5, TimeUnit.SECONDS));
+		assertTrue(poller.contains(session));
+	}
+
+	@Test
+	public void testSuspendedSessionsPollLessOften() throws Exception {
+		status = "suspended";
+		ChoiceViewSession session = startSession();
+		poller.setJitter(0);
+		assertTrue(poller.add(session));
+		Thread.sleep(550);
+		assertTrue("Polled " + polls.get() + " times", polls.get() >= 3 && polls.get() <= 7);
+	}
+
+	@Test
+	public void testDisconnectedSessionsAreNotPolled() throws Exception {
+		assertFalse(poller.add(client.createSession()));
+		assertEquals(0, poller.getSessionCount());
+	}
+
+	@Test
+	public void testManySessionsOnOneThread() throws Exception {
+		List<ChoiceViewSession> sessions = new ArrayList<ChoiceViewSession>();
+		for(int i = 0; i < 200; i++) {
+			sessions.add(startSession());
+		}
+		for(ChoiceViewSession session : sessions) {
+			assertTrue(poller.add(session));
+		}
+		assertEquals(200, poller.getSessionCount());
+		status = "disconnected";
+		for(int i = 0; i < 200; i++) {
+			assertNotNull(changes.poll(5, TimeUnit.SECONDS));
+		}
+		assertEquals(0, poller.getSessionCount());
+	}
+
+	@Test
+	public void testJitter() {
+		poller.setJitter(0.25);
+		for(int i = 0; i < 1000; i++) {
+			long delay = poller.withJitter(1000);
+			assertTrue(delay >= 750 && delay <= 1250);
+		}
+		poller.setJitter(0);
+		assertEquals(1000, poller.withJitter(1000));
+	}
+
+	@Test
+	public void testRemoveAndClose() throws Exception {
+		ChoiceViewSession session = startSession();
+		assertTrue(poller.add(session));
+		assertTrue(poller.remove(session));
+		assertFalse(poller.remove(session));
+		poller.close();
+		assertTrue(poller.isClosed());
+		try {
+			poller.add(session);
+			fail("Closed poller accepted a session");
+		} catch(IllegalStateException e) {
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		poller.close();
+		client.close();
+		testServer.stop();
+	}
+}
@@ -0,0 +1,166 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionRegistryTest {
+
+	private LocalTestServer testServer;
+	private ChoiceViewClient client;
+	private SessionRegistry registry;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1000);
+	private final AtomicInteger deletes = new AtomicInteger();
+
+	// Starts every session it is asked to, echoing back the caller and call ids
+	private HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			Map<String, String> params = mapper.readValue(
+					EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()),
+					new TypeReference<Map<String, String>>() {});
+			int sessionId = nextSessionId.incrementAndGet();
+			Map<String, Object> session = new HashMap<String, Object>();
+			session.put("sessionId", sessionId);
+			session.put("callerId", params.get("callerId"));
+			session.put("callId", params.get("callId"));
+			session.put("status", "connected");
+			Map<String, String> self = new HashMap<String, String>();
+			self.put("rel", "self");
+			self.put("href", "http://" + testServer.getServiceAddress().getHostName() + ":" +
+					testServer.getServiceAddress().getPort() + "/ivr/api/session/" + sessionId);
+			session.put("links", Collections.singletonList(self));
+			response.setStatusCode(201);
+			response.setEntity(new StringEntity(mapper.writeValueAsString(session), ContentType.APPLICATION_JSON));
+		}
+	};
+
+	private HttpRequestHandler sessionHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			if(request.getRequestLine().getMethod().equals("DELETE")) {
+				deletes.incrementAndGet();
+				response.setStatusCode(200);
+			} else {
+				response.setStatusCode(404);
+			}
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		testServer = new LocalTestServer(null, null);
+		testServer.register("/ivr/api/sessions", sessionsHandler);
+		testServer.register("/ivr/api/session/*", sessionHandler);
+		testServer.start();
+		client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+		registry = new SessionRegistry();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		testServer.stop();
+	}
+
+	private ChoiceViewSession startSession(String callerId, String callId) throws IOException {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(session.startSession(callerId, callId));
+		return session;
+	}
+
+	@Test
+	public void testFindSessions() throws Exception {
+		ChoiceViewSession first = startSession("7202950840", "1");
+		ChoiceViewSession second = startSession("7202950840", "2");
+		assertTrue(registry.register(first));
+		assertTrue(registry.register(second));
+		assertFalse(registry.register(first));
+		assertEquals(2, registry.size());
+
+		assertSame(first, registry.findByCallId("1"));
+		assertSame(second, registry.findBySessionId(second.getSessionId()));
+		assertEquals(2, registry.findByCallerId("7202950840").size());
+		assertTrue(registry.findByCallerId("3035551212").isEmpty());
+		assertNull(registry.findByCallId("3"));
+
+		assertTrue(registry.remove(first));
+		assertFalse(registry.contains(first));
+		assertNull(registry.findByCallId("1"));
+		assertNull(registry.findBySessionId(first.getSessionId()));
+		assertEquals(Collections.singleton(second), registry.findByCallerId("7202950840"));
+	}
+
+	@Test
+	public void testIndexedWhenStarted() throws Exception {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(registry.register(session, "12345"));
+		assertSame(session, registry.findByCallId("12345"));
+		assertTrue(registry.findByCallerId("7202950840").isEmpty());
+
+		assertTrue(session.startSession("7202950840", "12345"));
+		assertSame(session, registry.findBySessionId(session.getSessionId()));
+		assertTrue(registry.findByCallerId("7202950840").contains(session));
+	}
+
+	@Test
+	public void testEvictedWhenEnded() throws Exception {
+		ChoiceViewSession session = startSession("7202950840", "12345");
+		registry.register(session);
+		assertTrue(session.endSession());
+		assertEquals(0, registry.size());
+		assertNull(registry.findByCallId("12345"));
+		assertNull(registry.findBySessionId(session.getSessionId()));
+		assertTrue(registry.findByCallerId("7202950840").isEmpty());
+	}
+
+	@Test
+	public void testEndedSessionNotRegistered() throws Exception {
+		ChoiceViewSession session = startSession("7202950840", "12345");
+		assertTrue(session.endSession());
+		assertFalse(registry.register(session));
+		assertFalse(registry.register(session, "12345"));
+		assertEquals(0, registry.size());
+		assertNull(registry.findByCallId("12345"));
+
+		// Until it is started again
+		assertTrue(session.startSession("7202950840", "12345"));
+		assertTrue(registry.register(session));
+		assertSame(session, registry.findBySessionId(session.getSessionId()));
+	}
+
+	@Test
+	public void testEndSessionsOnSwitch() throws Exception {
+		for(int i = 0; i < 50; i++) {
+			registry.register(startSession("7202950840", String.valueOf(i)));
+		}
+		BatchResult result = registry.endSessions(client.getEndpoints().get(0)).get(10, TimeUnit.SECONDS);
+		assertEquals(50, result.getOutcomes().size());
+		assertTrue(result.isSuccessful());
+		assertEquals(50, deletes.get());
+		assertEquals(0, registry.size());
+	}
+}
@@ -0,0 +1,239 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionSenderTest {
+
+	private LocalTestServer testServer;
+	private ChoiceViewClient client;
+	private SessionSender sender;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1000);
+	// The texts each session received, in the order they arrived
+	private final Map<String, List<String>> received = new ConcurrentHashMap<String, List<String>>();
+	// Holds the Switch's answers while closed
+	private volatile CountDownLatch gate = new CountDownLatch(0);
+	private final Semaphore arrived = new Semaphore(0);
+
+	private HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			int sessionId = nextSessionId.incrementAndGet();
+			Map<String, Object> session = new HashMap<String, Object>();
+			session.put("sessionId", sessionId);
+			session.put("callerId", "7202950840");
+			session.put("status", "connected");
+			Map<String, String> self = new HashMap<String, String>();
+			self.put("rel", "self");
+			self.put("href", "http://" + testServer.getServiceAddress().getHostName() + ":" +
+					testServer.getServiceAddress().getPort() + "/ivr/api/session/" + sessionId);
+			session.put("links", Collections.singletonList(self));
+			response.setStatusCode(201);
+			response.setEntity(new StringEntity(mapper.writeValueAsString(session), ContentType.APPLICATION_JSON));
+		}
+	};
+
+	private HttpRequestHandler sessionHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			if(!request.getRequestLine().getMethod().equals("POST")) {
+				response.setStatusCode(404);
+				return;
+			}
+			String uri = request.getRequestLine().getUri();
+			String text = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity());
+			received.computeIfAbsent(uri.substring(uri.lastIndexOf('/') + 1),
+					id -> Collections.synchronizedList(new ArrayList<String>())).add(text);
+			arrived.release();
+			try {
+				gate.await(10, TimeUnit.SECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			response.setStatusCode(200);
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		testServer = new LocalTestServer(null, null);
+		testServer.register("/ivr/api/sessions", sessionsHandler);
+		testServer.register("/ivr/api/session/*", sessionHandler);
+		testServer.start();
+		client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+		sender = new SessionSender();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		gate.countDown();
+		sender.close();
+		client.close();
+		testServer.stop();
+	}
+
+	private ChoiceViewSession startSession() throws IOException {
+		ChoiceViewSession session = client.createSession();
+		assertTrue(session.startSession("7202950840", null));
+		return session;
+	}
+
+	private List<String> receivedBy(ChoiceViewSession session) {
+		List<String> texts = received.get(String.valueOf(session.getSessionId()));
+		return texts != null ? new ArrayList<String>(texts) : Collections.<String>emptyList();
+	}
+
+	// Queues a first text and waits until the Switch holds it, so the queue is empty
+	private CompletableFuture<Boolean> holdWorker(ChoiceViewSession session) throws Exception {
+		gate = new CountDownLatch(1);
+		CompletableFuture<Boolean> first = sender.sendText(session, "first");
+		assertTrue(arrived.tryAcquire(5, TimeUnit.SECONDS));
+		assertEquals(0, sender.getQueueDepth(session));
+		return first;
+	}
+
+	@Test
+	public void testCallsAreSentInOrder() throws Exception {
+		List<ChoiceViewSession> sessions = new ArrayList<ChoiceViewSession>();
+		for(int i = 0; i < 5; i++) {
+			sessions.add(startSession());
+		}
+		List<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>();
+		List<String> expected = new ArrayList<String>();
+		for(int i = 0; i < 20; i++) {
+			expected.add("text " + i);
+			for(ChoiceViewSession session : sessions) {
+				results.add(sender.sendText(session, "text " + i));
+			}
+		}
+		for(CompletableFuture<Boolean> result : results) {
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+		}
+		for(ChoiceViewSession session : sessions) {
+			assertEquals(expected, receivedBy(session));
+		}
+		assertEquals(100, sender.getQueueWait().getCount());
+		assertEquals(0, sender.getQueuedCount());
+	}
+
+	@Test
+	public void testDisconnectedSession() throws Exception {
+		assertFalse(sender.sendText(client.createSession(), "hello").get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testFailWhenFull() throws Exception {
+		ChoiceViewSession session = startSession();
+		sender.setCapacity(2);
+		sender.setOverflowPolicy(OverflowPolicy.FAIL);
+		CompletableFuture<Boolean> first = holdWorker(session);
+		CompletableFuture<Boolean> second = sender.sendText(session, "second");
+		CompletableFuture<Boolean> third = sender.sendText(session, "third");
+		assertEquals(2, sender.getQueueDepth(session));
+		assertEquals(2, sender.getQueuedCount());
+		try {
+			sender.sendText(session, "fourth");
+			fail("Queue is full");
+		} catch(SendQueueFullException e) {
+			assertEquals(session.getSessionId(), e.getSessionId());
+		}
+		gate.countDown();
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+		assertTrue(second.get(5, TimeUnit.SECONDS));
+		assertTrue(third.get(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("first", "second", "third"), receivedBy(session));
+	}
+
+	@Test
+	public void testDropOldestWhenFull() throws Exception {
+		ChoiceViewSession session = startSession();
+		sender.setCapacity(2);
+		sender.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		CompletableFuture<Boolean> first = holdWorker(session);
+		CompletableFuture<Boolean> second = sender.sendText(session, "second");
+		CompletableFuture<Boolean> third = sender.sendText(session, "third");
+		CompletableFuture<Boolean> fourth = sender.sendText(session, "fourth");
+		try {
+			second.get(5, TimeUnit.SECONDS);
+			fail("Oldest call is dropped");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof SendQueueFullException);
+		}
+		assertEquals(1, sender.getDroppedCount());
+		gate.countDown();
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+		assertTrue(third.get(5, TimeUnit.SECONDS));
+		assertTrue(fourth.get(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("first", "third", "fourth"), receivedBy(session));
+	}
+
+	@Test
+	public void testBlockUntilThereIsRoom() throws Exception {
+		final ChoiceViewSession session = startSession();
+		sender.setCapacity(1);
+		CompletableFuture<Boolean> first = holdWorker(session);
+		CompletableFuture<Boolean> second = sender.sendText(session, "second");
+		final CompletableFuture<CompletableFuture<Boolean>> third = new CompletableFuture<CompletableFuture<Boolean>>();
+		Thread caller = new Thread(() -> {
+			try {
+				third.complete(sender.sendText(session, "third"));
+			} catch(IOException e) {
+				third.completeExceptionally(e);
+			}
+		});
+		caller.start();
+		Thread.sleep(200);
+		assertFalse(third.isDone());
+		gate.countDown();
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+		assertTrue(second.get(5, TimeUnit.SECONDS));
+		assertTrue(third.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("first", "second", "third"), receivedBy(session));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		ChoiceViewSession session = startSession();
+		holdWorker(session);
+		CompletableFuture<Boolean> second = sender.sendText(session, "second");
+		sender.close();
+		assertTrue(second.isCancelled());
+		assertEquals(0, sender.getSessionCount());
+		try {
+			sender.sendText(session, "third");
+			fail("Sender is closed");
+		} catch(IllegalStateException e) {
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package com.radishsystems.choiceview.webapi;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// The load tests run only on Java 21 or later. The session count can be changed with -Dchoiceview.loadtest.sessions
+public class VirtualThreadLoadTest {
+
+	final static int sessionCount = Integer.getInteger("choiceview.loadtest.sessions", 10000);
+	final static int maxConnections = 200;
+	final static long startDelayMillis = 20;
+
+	private LocalTestServer testServer;
+	private ChoiceViewClient client;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicInteger nextSessionId = new AtomicInteger(1);
+
+	private String baseUri() {
+		return "http://" + testServer.getServiceAddress().getHostName() + ":" +
+				testServer.getServiceAddress().getPort();
+	}
+
+	private String sessionJson(String id, String callerId, String status) throws IOException {
+		String selfUri = baseUri() + "/ivr/api/session/" + id;
+		Map<String, Object> session = new HashMap<String, Object>();
+		session.put("sessionId", Integer.valueOf(id));
+		session.put("callerId", callerId);
+		session.put("callId", id);
+		session.put("status", status);
+		session.put("networkQuality", "excellent");
+		session.put("networkType", "WiFi");
+		session.put("properties", new HashMap<String, String>());
+		List<Map<String, String>> links = new ArrayList<Map<String, String>>();
+		links.add(link("self", selfUri));
+		links.add(link(ChoiceViewSession.ControlMessageRel, selfUri + "/controlmessage"));
+		links.add(link(ChoiceViewSession.PayloadRel, selfUri + "/properties"));
+		session.put("links", links);
+		return mapper.writeValueAsString(session);
+	}
+
+	private static Map<String, String> link(String rel, String href) {
+		Map<String, String> link = new HashMap<String, String>();
+		link.put("rel", rel);
+		link.put("href", href);
+		return link;
+	}
+
+	private HttpRequestHandler sessionsHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			// Simulate the wait for the caller to start the ChoiceView app
+			try {
+				Thread.sleep(startDelayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String id = String.valueOf(nextSessionId.getAndIncrement());
+			response.setStatusCode(201);
+			response.setEntity(new StringEntity(sessionJson(id, id, "connected"),
+					ContentType.create("application/json", "utf-8")));
+		}
+	};
+
+	private HttpRequestHandler sessionHandler = new HttpRequestHandler() {
+		public void handle(HttpRequest request, HttpResponse response,
+				HttpContext context) throws HttpException, IOException {
+			String method = request.getRequestLine().getMethod().toUpperCase();
+			String uri = request.getRequestLine().getUri();
+			String id = uri.substring(uri.lastIndexOf('/') + 1);
+			if(method.equals("GET")) {
+				response.setEntity(new StringEntity(sessionJson(id, id, "connected"),
+						ContentType.create("application/json", "utf-8")));
+			} else if(method.equals("POST")) {
+				EntityUtils.consume(((HttpEntityEnclosingRequest) request).getEntity());
+			}
+			response.setStatusCode(200);
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		testServer = new LocalTestServer(null, null);
+		testServer.register("/ivr/api/sessions", sessionsHandler);
+		testServer.register("/ivr/api/session/*", sessionHandler);
+		testServer.start();
+
+		client = new ChoiceViewClient(testServer.getServiceAddress().getHostName(),
+				testServer.getServiceAddress().getPort(), false);
+		client.setVirtualThreadMaxConnections(maxConnections);
+	}
+
+	private void useVirtualThreads() {
+		assumeTrue(ChoiceViewClient.isVirtualThreadSupported());
+		client.setExecutionMode(ExecutionMode.VIRTUAL_THREADS);
+	}
+
+	@Test
+	public void testExecutionModeSelectsExecutor() throws Exception {
+		assertEquals(ExecutionMode.NON_BLOCKING, client.getExecutionMode());
+		assertNull(client.getAsyncExecutor());
+		if(!ChoiceViewClient.isVirtualThreadSupported()) {
+			try {
+				client.setExecutionMode(ExecutionMode.VIRTUAL_THREADS);
+				fail("Virtual threads enabled before Java 21");
+			} catch(UnsupportedOperationException e) {
+			}
+			assertEquals(ExecutionMode.NON_BLOCKING, client.getExecutionMode());
+			assertNull(client.getAsyncExecutor());
+			return;
+		}
+		client.setExecutionMode(ExecutionMode.VIRTUAL_THREADS);
+		ExecutorService executor = client.getAsyncExecutor();
+		assertNotNull(executor);
+		assertTrue(executor.submit(() -> Thread.currentThread().toString().startsWith("VirtualThread")).get());
+		assertTrue(client.getMaxConnections() >= maxConnections);
+		assertTrue(client.getMaxConnectionsPerRoute() >= maxConnections);
+		client.setExecutionMode(ExecutionMode.NON_BLOCKING);
+		assertNull(client.getAsyncExecutor());
+		assertTrue(executor.isShutdown());
+	}
+
+	// The blocking methods run on the calling threads, which are virtual threads here
+	@Test
+	public void testConcurrentBlockingSessionsOnVirtualThreads() throws Exception {
+		useVirtualThreads();
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger peakInFlight = new AtomicInteger();
+		final AtomicInteger completed = new AtomicInteger();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		ExecutorService callers = VirtualThreads.newExecutor();
+		try {
+			for(int i = 0; i < sessionCount; i++) {
+				final String callerId = String.valueOf(7200000000L + i);
+				callers.execute(() -> {
+					ChoiceViewSession session = client.createSession();
+					int current = inFlight.incrementAndGet();
+					peakInFlight.accumulateAndGet(current, Math::max);
+					try {
+						if(session.startSession(callerId, callerId) &&
+						   session.sendUrl("http://www.radishsystems.com/") &&
+						   session.updateSession() &&
+						   session.endSession()) {
+							completed.incrementAndGet();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						inFlight.decrementAndGet();
+					}
+				});
+			}
+		} finally {
+			callers.shutdown();
+			assertTrue(callers.awaitTermination(5, TimeUnit.MINUTES));
+		}
+
+		assertEquals(sessionCount, completed.get());
+		// Callers waited for pooled connections instead of failing
+		assertTrue(peakInFlight.get() > maxConnections);
+		// One virtual thread per caller, but only the carriers and the stub server workers are platform threads
+		assertTrue(threads.getPeakThreadCount() < sessionCount / 2);
+	}
+
+	@Test
+	public void testAsyncMethodsRunOnVirtualThreads() throws Exception {
+		useVirtualThreads();
+		List<CompletableFuture<Boolean>> started = new ArrayList<CompletableFuture<Boolean>>();
+		List<ChoiceViewSession> sessions = new ArrayList<ChoiceViewSession>();
+		for(int i = 0; i < 1000; i++) {
+			ChoiceViewSession session = client.createSession();
+			sessions.add(session);
+			started.add(session.startSessionAsync(String.valueOf(i), String.valueOf(i)));
+		}
+		for(CompletableFuture<Boolean> result : started) {
+			assertTrue(result.get(2, TimeUnit.MINUTES));
+		}
+		for(ChoiceViewSession session : sessions) {
+			assertTrue(session.endSessionAsync().get(1, TimeUnit.MINUTES));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(client != null) {
+			client.close();
+		}
+		if(testServer != null) {
+			testServer.stop();
+		}
+	}
+}